@@ -0,0 +1,230 @@
+package org.ohmage.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Measures writing fitness activities as OMH data points with their field
+ * names given as strings, as the writers used to, and as pre-encoded
+ * {@link SerializedString}s, as they do now. The data points have the same
+ * fields as those written by the fitness activities API and their values
+ * are printed ahead of time, so only the field names differ.
+ * </p>
+ *
+ * <p>
+ * The points are written both to a UTF-8 stream and to a character writer,
+ * since Jackson caches a different encoding of the names for each. See
+ * bench/README.md for how to run it.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FieldNameWriteBenchmark {
+	/**
+	 * The number of data points written by each invocation.
+	 */
+	private static final int NUM_POINTS = 1000;
+
+	private static final SerializedString FIELD_METADATA =
+		new SerializedString("metadata");
+	private static final SerializedString FIELD_ID =
+		new SerializedString("id");
+	private static final SerializedString FIELD_TIMESTAMP =
+		new SerializedString("timestamp");
+	private static final SerializedString FIELD_DATA =
+		new SerializedString("data");
+	private static final SerializedString FIELD_DURATION =
+		new SerializedString("duration");
+	private static final SerializedString FIELD_START_TIME =
+		new SerializedString("start_time");
+	private static final SerializedString FIELD_TOTAL_DISTANCE =
+		new SerializedString("total_distance");
+	private static final SerializedString FIELD_TYPE =
+		new SerializedString("type");
+	private static final SerializedString FIELD_URI =
+		new SerializedString("uri");
+
+	private static final String[] TYPES =
+		new String[] { "Running", "Cycling", "Walking", "Swimming" };
+
+	/**
+	 * Where the data points are written: "stream" for a UTF-8 byte stream
+	 * or "writer" for a character writer.
+	 */
+	@Param({ "stream", "writer" })
+	public String output;
+
+	private final JsonFactory factory = new JsonFactory();
+	private final ByteArrayOutputStream bytes =
+		new ByteArrayOutputStream(256 * NUM_POINTS);
+	private final CharArrayWriter chars = new CharArrayWriter(256 * NUM_POINTS);
+
+	private final String[] ids = new String[NUM_POINTS];
+	private final String[] timestamps = new String[NUM_POINTS];
+	private final String[] startTimes = new String[NUM_POINTS];
+	private final double[] durations = new double[NUM_POINTS];
+	private final double[] totalDistances = new double[NUM_POINTS];
+	private final String[] types = new String[NUM_POINTS];
+	private final String[] uris = new String[NUM_POINTS];
+
+	/**
+	 * Creates the data points, which are the same for every run.
+	 */
+	@Setup
+	public void setUp() {
+		Random random = new Random(0);
+		char[] buffer = new char[RunKeeperDateTimeCodec.MAX_LENGTH];
+		long startTime = 1300000000000L;
+		for(int i = 0; i < NUM_POINTS; i++) {
+			long id = 100000000L + random.nextInt(100000000);
+			startTime -= random.nextInt(3 * 24 * 60 * 60 * 1000);
+
+			ids[i] = Long.toString(id);
+			timestamps[i] =
+				new String(
+					buffer,
+					0,
+					RunKeeperDateTimeCodec.printIso(startTime, buffer));
+			startTimes[i] =
+				new String(
+					buffer,
+					0,
+					RunKeeperDateTimeCodec.printRunKeeper(startTime, buffer));
+			durations[i] = random.nextDouble() * 7200;
+			totalDistances[i] = random.nextDouble() * 42195;
+			types[i] = TYPES[random.nextInt(TYPES.length)];
+			uris[i] = "/fitnessActivities/" + id;
+		}
+	}
+
+	/**
+	 * Writes the data points with string field names.
+	 *
+	 * @return The number of bytes or characters written.
+	 */
+	@Benchmark
+	public int stringNames() throws IOException {
+		JsonGenerator generator = createGenerator();
+		generator.writeStartArray();
+		for(int i = 0; i < NUM_POINTS; i++) {
+			generator.writeStartObject();
+
+			generator.writeFieldName("metadata");
+			generator.writeStartObject();
+			generator.writeFieldName("id");
+			generator.writeString(ids[i]);
+			generator.writeFieldName("timestamp");
+			generator.writeString(timestamps[i]);
+			generator.writeEndObject();
+
+			generator.writeFieldName("data");
+			generator.writeStartObject();
+			generator.writeFieldName("duration");
+			generator.writeNumber(durations[i]);
+			generator.writeFieldName("start_time");
+			generator.writeString(startTimes[i]);
+			generator.writeFieldName("total_distance");
+			generator.writeNumber(totalDistances[i]);
+			generator.writeFieldName("type");
+			generator.writeString(types[i]);
+			generator.writeFieldName("uri");
+			generator.writeString(uris[i]);
+			generator.writeEndObject();
+
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		return finish(generator);
+	}
+
+	/**
+	 * Writes the data points with pre-encoded field names.
+	 *
+	 * @return The number of bytes or characters written.
+	 */
+	@Benchmark
+	public int serializedNames() throws IOException {
+		JsonGenerator generator = createGenerator();
+		generator.writeStartArray();
+		for(int i = 0; i < NUM_POINTS; i++) {
+			generator.writeStartObject();
+
+			generator.writeFieldName(FIELD_METADATA);
+			generator.writeStartObject();
+			generator.writeFieldName(FIELD_ID);
+			generator.writeString(ids[i]);
+			generator.writeFieldName(FIELD_TIMESTAMP);
+			generator.writeString(timestamps[i]);
+			generator.writeEndObject();
+
+			generator.writeFieldName(FIELD_DATA);
+			generator.writeStartObject();
+			generator.writeFieldName(FIELD_DURATION);
+			generator.writeNumber(durations[i]);
+			generator.writeFieldName(FIELD_START_TIME);
+			generator.writeString(startTimes[i]);
+			generator.writeFieldName(FIELD_TOTAL_DISTANCE);
+			generator.writeNumber(totalDistances[i]);
+			generator.writeFieldName(FIELD_TYPE);
+			generator.writeString(types[i]);
+			generator.writeFieldName(FIELD_URI);
+			generator.writeString(uris[i]);
+			generator.writeEndObject();
+
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		return finish(generator);
+	}
+
+	/**
+	 * Creates a generator over the emptied output.
+	 *
+	 * @return The generator.
+	 */
+	private JsonGenerator createGenerator() throws IOException {
+		if("writer".equals(output)) {
+			chars.reset();
+			return factory.createJsonGenerator(chars);
+		}
+
+		bytes.reset();
+		return factory.createJsonGenerator(bytes, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * Flushes and closes a generator.
+	 *
+	 * @return The number of bytes or characters written.
+	 */
+	private int finish(final JsonGenerator generator) throws IOException {
+		generator.close();
+		return "writer".equals(output) ? chars.size() : bytes.size();
+	}
+}
@@ -0,0 +1,424 @@
+package org.ohmage.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * <p>
+ * Compares {@link RunKeeperDateTimeCodec} with the Joda formatters it
+ * replaces over a randomized corpus. Every printed value must be the same
+ * string and every parsed value must be the same instant, or both must be
+ * rejected.
+ * </p>
+ *
+ * <p>
+ * The corpus covers random instants in random time zones and locales,
+ * RunKeeper date-times whose day of the week disagrees with their date,
+ * local times in and around daylight saving gaps and overlaps, and years
+ * outside of 1000 to 9999. It is reproducible from its seed, which is
+ * printed and may be given as the first argument. The second argument is
+ * the number of cases per category. See bench/README.md for how to run it.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperDateTimeCodecCorpus {
+	/**
+	 * The default number of cases per category.
+	 */
+	private static final int DEFAULT_CASES = 200000;
+	/**
+	 * The most mismatches that are printed.
+	 */
+	private static final int MAX_REPORTED = 20;
+
+	/**
+	 * Zones whose offsets or transitions are unusual: half- and
+	 * quarter-hour offsets, thirty-minute daylight saving shifts, offsets
+	 * that are not whole minutes before 1972, and a skipped day.
+	 */
+	private static final String[] INTERESTING_ZONES =
+		new String[] {
+			"UTC",
+			"America/Los_Angeles",
+			"America/New_York",
+			"America/St_Johns",
+			"America/Sao_Paulo",
+			"Europe/London",
+			"Europe/Amsterdam",
+			"Europe/Dublin",
+			"Africa/Monrovia",
+			"Asia/Kolkata",
+			"Asia/Kathmandu",
+			"Australia/Lord_Howe",
+			"Pacific/Chatham",
+			"Pacific/Apia",
+			"Pacific/Kiritimati"
+		};
+
+	/**
+	 * Locales with and without the English names that are handled
+	 * directly.
+	 */
+	private static final Locale[] LOCALES =
+		new Locale[] {
+			Locale.US,
+			Locale.UK,
+			new Locale("en", "IN"),
+			Locale.GERMANY,
+			Locale.FRANCE,
+			Locale.JAPAN,
+			new Locale("ar", "EG"),
+			new Locale("th", "TH")
+		};
+
+	private static final String[] DAY_NAMES =
+		new String[] { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+	private static final String[] MONTH_NAMES =
+		new String[] {
+			"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+			"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+		};
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000;
+	private static final long MILLIS_PER_YEAR = 31556952000L;
+
+	/**
+	 * The formatters the codec must agree with, which, like the codec, use
+	 * the default time zone and locale at the time they are used.
+	 */
+	private static final DateTimeFormatter RUNKEEPER_FORMATTER =
+		DateTimeFormat.forPattern(RunKeeperDateTimeCodec.RUNKEEPER_FORMAT);
+	private static final DateTimeFormatter ISO_FORMATTER =
+		ISODateTimeFormat.dateTime();
+
+	private final Random random;
+	private final String[] zones;
+	private final char[] buffer = new char[RunKeeperDateTimeCodec.MAX_LENGTH];
+	private final List<String> mismatches = new ArrayList<String>();
+	private long numMismatches = 0;
+	private long numChecks = 0;
+
+	/**
+	 * Creates a corpus.
+	 *
+	 * @param seed The seed for the corpus.
+	 */
+	private RunKeeperDateTimeCodecCorpus(final long seed) {
+		random = new Random(seed);
+
+		Set<String> ids = DateTimeZone.getAvailableIDs();
+		zones = ids.toArray(new String[ids.size()]);
+	}
+
+	/**
+	 * Runs the corpus.
+	 *
+	 * @param args The optional seed and number of cases per category.
+	 */
+	public static void main(final String[] args) {
+		long seed = (args.length > 0) ?
+			Long.parseLong(args[0]) :
+			System.currentTimeMillis();
+		int cases = (args.length > 1) ?
+			Integer.parseInt(args[1]) :
+			DEFAULT_CASES;
+
+		System.out.println("Seed: " + seed + ", cases per category: " + cases);
+
+		Locale defaultLocale = Locale.getDefault();
+		DateTimeZone defaultZone = DateTimeZone.getDefault();
+		RunKeeperDateTimeCodecCorpus corpus =
+			new RunKeeperDateTimeCodecCorpus(seed);
+		try {
+			corpus.randomInstants(cases);
+			corpus.mismatchedWeekdays(cases);
+			corpus.transitions(cases);
+			corpus.extremeYears(cases);
+		}
+		finally {
+			Locale.setDefault(defaultLocale);
+			DateTimeZone.setDefault(defaultZone);
+		}
+
+		for(String mismatch : corpus.mismatches) {
+			System.out.println(mismatch);
+		}
+		System.out.println(
+			corpus.numChecks + " checks, " +
+				corpus.numMismatches + " mismatches.");
+		if(corpus.numMismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints and re-parses random instants between the years 1000 and 9999
+	 * in random zones and locales.
+	 *
+	 * @param cases The number of instants.
+	 */
+	private void randomInstants(final int cases) {
+		long min = -970 * MILLIS_PER_YEAR;
+		long max = 8029 * MILLIS_PER_YEAR;
+		for(int i = 0; i < cases; i++) {
+			useRandomZoneAndLocale();
+
+			long millis = min + (long) (random.nextDouble() * (max - min));
+			checkPrint(millis);
+		}
+	}
+
+	/**
+	 * Parses RunKeeper date-times whose day of the week disagrees with
+	 * their date.
+	 *
+	 * @param cases The number of date-times.
+	 */
+	private void mismatchedWeekdays(final int cases) {
+		for(int i = 0; i < cases; i++) {
+			useRandomZone();
+			useRandomLocale(true);
+
+			int year = 1000 + random.nextInt(9000);
+			int month = 1 + random.nextInt(12);
+			int day = 1 + random.nextInt(31);
+			checkParse(
+				format(
+					DAY_NAMES[random.nextInt(7)],
+					day,
+					MONTH_NAMES[month - 1],
+					Integer.toString(year),
+					random.nextInt(24),
+					random.nextInt(60),
+					random.nextInt(60)));
+		}
+	}
+
+	/**
+	 * Prints the instants around, and parses the local times in and around,
+	 * each zone's daylight saving gaps and overlaps.
+	 *
+	 * @param cases The number of transitions.
+	 */
+	private void transitions(final int cases) {
+		for(int i = 0; i < cases; i++) {
+			DateTimeZone zone = useRandomZone();
+			useRandomLocale(true);
+
+			long start =
+				(long) ((random.nextDouble() * 200 - 100) * MILLIS_PER_YEAR);
+			long transition = zone.nextTransition(start);
+			if(transition == start) {
+				continue;
+			}
+
+			for(long delta = -2 * 60; delta <= 2 * 60; delta += 15) {
+				long millis = transition + (delta * MILLIS_PER_MINUTE);
+				checkPrint(millis);
+				checkPrint(millis - 1);
+
+				// Print the local time as if it had the offset from before
+				// the transition, so that it falls in the gap or repeats in
+				// the overlap.
+				long local = millis + zone.getOffset(transition - 1);
+				checkParse(
+					RUNKEEPER_FORMATTER
+						.withZone(DateTimeZone.UTC)
+						.withLocale(Locale.US)
+						.print(local));
+			}
+		}
+	}
+
+	/**
+	 * Prints instants and parses date-times with years outside of 1000 to
+	 * 9999, which the codec hands to Joda.
+	 *
+	 * @param cases The number of instants and date-times.
+	 */
+	private void extremeYears(final int cases) {
+		for(int i = 0; i < cases; i++) {
+			useRandomZone();
+			useRandomLocale(false);
+
+			long years = random.nextBoolean() ?
+				-(random.nextInt(20000) + 971) :
+				random.nextInt(20000) + 8030;
+			long millis =
+				(years * MILLIS_PER_YEAR) +
+				(long) (random.nextDouble() * MILLIS_PER_YEAR);
+			checkPrint(millis);
+
+			Locale.setDefault(Locale.US);
+			int year = random.nextBoolean() ?
+				random.nextInt(1000) :
+				10000 + random.nextInt(90000);
+			checkParse(
+				format(
+					DAY_NAMES[random.nextInt(7)],
+					1 + random.nextInt(28),
+					MONTH_NAMES[random.nextInt(12)],
+					Integer.toString(year),
+					random.nextInt(24),
+					random.nextInt(60),
+					random.nextInt(60)));
+		}
+	}
+
+	/**
+	 * Compares the printed forms of an instant and, where Joda can parse
+	 * its own output, the instant that is parsed back from them.
+	 *
+	 * @param millis The instant.
+	 */
+	private void checkPrint(final long millis) {
+		String expected = RUNKEEPER_FORMATTER.print(millis);
+		String actual =
+			new String(
+				buffer,
+				0,
+				RunKeeperDateTimeCodec.printRunKeeper(millis, buffer));
+		compare("printRunKeeper(" + millis + ")", expected, actual);
+
+		expected = ISO_FORMATTER.print(millis);
+		actual =
+			new String(
+				buffer,
+				0,
+				RunKeeperDateTimeCodec.printIso(millis, buffer));
+		compare("printIso(" + millis + ")", expected, actual);
+
+		checkParse(RUNKEEPER_FORMATTER.print(millis));
+	}
+
+	/**
+	 * Compares the instants parsed from a RunKeeper date-time or that both
+	 * reject it.
+	 *
+	 * @param text The date-time.
+	 */
+	private void checkParse(final String text) {
+		String expected;
+		try {
+			expected = Long.toString(RUNKEEPER_FORMATTER.parseMillis(text));
+		}
+		catch(IllegalArgumentException e) {
+			expected = "rejected";
+		}
+
+		String actual;
+		try {
+			actual =
+				Long.toString(
+					RunKeeperDateTimeCodec
+						.parseRunKeeper(
+							text.toCharArray(),
+							0,
+							text.length()));
+		}
+		catch(IllegalArgumentException e) {
+			actual = "rejected";
+		}
+
+		compare("parseRunKeeper(\"" + text + "\")", expected, actual);
+	}
+
+	/**
+	 * Records a mismatch if the values differ.
+	 *
+	 * @param description What was compared.
+	 *
+	 * @param expected Joda's value.
+	 *
+	 * @param actual The codec's value.
+	 */
+	private void compare(
+			final String description,
+			final String expected,
+			final String actual) {
+
+		numChecks++;
+		if(! expected.equals(actual)) {
+			numMismatches++;
+			if(mismatches.size() < MAX_REPORTED) {
+				mismatches.add(
+					description + " in " + DateTimeZone.getDefault() +
+						" and " + Locale.getDefault() + ": expected " +
+						expected + " but was " + actual);
+			}
+		}
+	}
+
+	/**
+	 * Sets the default zone and locale to random ones.
+	 */
+	private void useRandomZoneAndLocale() {
+		useRandomZone();
+		useRandomLocale(false);
+	}
+
+	/**
+	 * Sets the default zone to a random one, favoring the interesting ones.
+	 *
+	 * @return The zone.
+	 */
+	private DateTimeZone useRandomZone() {
+		String id = random.nextBoolean() ?
+			INTERESTING_ZONES[random.nextInt(INTERESTING_ZONES.length)] :
+			zones[random.nextInt(zones.length)];
+		DateTimeZone zone = DateTimeZone.forID(id);
+		DateTimeZone.setDefault(zone);
+		return zone;
+	}
+
+	/**
+	 * Sets the default locale to a random one.
+	 *
+	 * @param english Whether or not the locale must use English names, as
+	 * 				  RunKeeper's date-times do.
+	 */
+	private void useRandomLocale(final boolean english) {
+		Locale locale;
+		do {
+			locale = LOCALES[random.nextInt(LOCALES.length)];
+		} while(english && (! "en".equals(locale.getLanguage())));
+		Locale.setDefault(locale);
+	}
+
+	/**
+	 * Builds a RunKeeper date-time from its fields without validating them.
+	 *
+	 * @return The date-time.
+	 */
+	private static String format(
+			final String dayName,
+			final int dayOfMonth,
+			final String monthName,
+			final String year,
+			final int hour,
+			final int minute,
+			final int second) {
+
+		return
+			dayName + ", " + dayOfMonth + " " + monthName + " " + year + " " +
+				pad(hour) + ":" + pad(minute) + ":" + pad(second);
+	}
+
+	/**
+	 * Pads a number to two digits.
+	 *
+	 * @return The padded number.
+	 */
+	private static String pad(final int value) {
+		return (value < 10) ? "0" + value : Integer.toString(value);
+	}
+}
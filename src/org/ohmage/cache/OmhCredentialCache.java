@@ -0,0 +1,447 @@
+package org.ohmage.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ohmage.exception.ServiceException;
+import org.ohmage.service.OmhServices;
+
+/**
+ * <p>
+ * A bounded, in-memory cache of individual Open mHealth third-party
+ * credentials keyed by their domain and name, e.g. "run_keeper" and
+ * "bearer_&lt;username&gt;".
+ * </p>
+ *
+ * <p>
+ * Each entry, including the absence of a credential, expires after a fixed
+ * time-to-live. When the cache is full, the least recently used entry is
+ * evicted. Entries may also be {@link #invalidate(String, String)
+ * invalidated} explicitly, e.g. when the third party rejects a credential.
+ * </p>
+ *
+ * <p>
+ * The database only offers all of a domain's credentials at once, so a miss
+ * loads and caches all of them, and the other credentials in the domain are
+ * then hits until they expire. Concurrent misses in the same domain share a
+ * single load.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class OmhCredentialCache {
+	private static final Logger LOGGER =
+		Logger.getLogger(OmhCredentialCache.class);
+
+	/**
+	 * The default maximum number of credentials to cache.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	/**
+	 * The default number of milliseconds a credential is cached.
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+	/**
+	 * The singleton instance.
+	 */
+	private static volatile OmhCredentialCache instance =
+		new OmhCredentialCache(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+
+	/**
+	 * A cached credential.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class CachedCredential {
+		/**
+		 * The credential or null if there is no such credential.
+		 */
+		private final String value;
+		/**
+		 * The {@link System#nanoTime()} after which this entry is stale.
+		 */
+		private final long expiresAt;
+
+		/**
+		 * Creates a new entry.
+		 *
+		 * @param value The credential or null.
+		 *
+		 * @param expiresAt The time after which this entry is stale.
+		 */
+		private CachedCredential(final String value, final long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * All of a domain's credentials as they were loaded from the database.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class Load {
+		/**
+		 * The credentials or null if the domain has none.
+		 */
+		private final Map<String, String> credentials;
+		/**
+		 * Whether or not the credentials were cached. They are not if any
+		 * credential was invalidated while they were being loaded.
+		 */
+		private final boolean cached;
+
+		/**
+		 * Creates a load.
+		 *
+		 * @param credentials The credentials or null.
+		 *
+		 * @param cached Whether or not they were cached.
+		 */
+		private Load(
+				final Map<String, String> credentials,
+				final boolean cached) {
+
+			this.credentials = credentials;
+			this.cached = cached;
+		}
+	}
+
+	private final int maxSize;
+	private final long timeToLiveNanos;
+
+	/**
+	 * The cached entries in least-recently-used order.
+	 */
+	private final LinkedHashMap<String, CachedCredential> entries;
+	/**
+	 * The number of times any entry was invalidated or the cache was
+	 * cleared. A load that started before the latest invalidation may have
+	 * read a credential that was since revoked, so it is not cached. This is
+	 * guarded by {@link #entries}.
+	 */
+	private long invalidationEpoch = 0;
+	/**
+	 * The loads that are in flight, keyed by their domain.
+	 */
+	private final ConcurrentMap<String, FutureTask<Load>> loads =
+		new ConcurrentHashMap<String, FutureTask<Load>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong loadTime = new AtomicLong();
+
+	/**
+	 * Creates a new, empty cache.
+	 *
+	 * @param maxSize The maximum number of entries.
+	 *
+	 * @param timeToLive The number of milliseconds an entry is valid.
+	 */
+	private OmhCredentialCache(final int maxSize, final long timeToLive) {
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = timeToLive * 1000 * 1000;
+
+		entries = new LinkedHashMap<String, CachedCredential>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * Evicts the least recently used entry once the cache is full.
+			 */
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, CachedCredential> eldest) {
+
+				return size() > OmhCredentialCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Replaces the cache with a new, empty one with the given limits.
+	 *
+	 * @param maxSize The maximum number of credentials to cache.
+	 *
+	 * @param timeToLive The number of milliseconds a credential is cached.
+	 *
+	 * @throws IllegalArgumentException One of the limits is not positive.
+	 */
+	public static void initialize(final int maxSize, final long timeToLive) {
+		if(maxSize <= 0) {
+			throw new IllegalArgumentException(
+				"The maximum size must be positive.");
+		}
+		if(timeToLive <= 0) {
+			throw new IllegalArgumentException(
+				"The time-to-live must be positive.");
+		}
+
+		instance = new OmhCredentialCache(maxSize, timeToLive);
+	}
+
+	/**
+	 * Returns the singleton instance.
+	 *
+	 * @return The singleton instance.
+	 */
+	public static OmhCredentialCache instance() {
+		return instance;
+	}
+
+	/**
+	 * Returns a single credential, loading and caching all of the domain's
+	 * credentials from the database if it is not cached or its entry has
+	 * expired.
+	 *
+	 * @param domain The domain to which the credential belongs.
+	 *
+	 * @param name The name of the credential within the domain.
+	 *
+	 * @return The credential or null if the domain has no such credential.
+	 *
+	 * @throws ServiceException There was an error loading the credentials.
+	 */
+	public String get(
+			final String domain,
+			final String name)
+			throws ServiceException {
+
+		String key = getKey(domain, name);
+
+		synchronized(entries) {
+			CachedCredential entry = entries.get(key);
+			if((entry != null) && (entry.expiresAt - System.nanoTime() > 0)) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+		}
+		misses.incrementAndGet();
+
+		Load load = load(domain);
+		String value =
+			(load.credentials == null) ? null : load.credentials.get(name);
+
+		// Remember that the credential does not exist, too.
+		if(load.cached && (value == null)) {
+			synchronized(entries) {
+				if(! entries.containsKey(key)) {
+					entries
+						.put(
+							key,
+							new CachedCredential(
+								null,
+								System.nanoTime() + timeToLiveNanos));
+				}
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Loads all of a domain's credentials and caches them, sharing the load
+	 * with any other thread that is loading the same domain.
+	 *
+	 * @param domain The domain.
+	 *
+	 * @return The load.
+	 *
+	 * @throws ServiceException There was an error loading the credentials.
+	 */
+	private Load load(final String domain) throws ServiceException {
+		FutureTask<Load> task =
+			new FutureTask<Load>(
+				new Callable<Load>() {
+					/**
+					 * Loads the credentials.
+					 */
+					@Override
+					public Load call() throws ServiceException {
+						return loadNow(domain);
+					}
+				});
+
+		FutureTask<Load> inFlight = loads.putIfAbsent(domain, task);
+		if(inFlight == null) {
+			try {
+				task.run();
+			}
+			finally {
+				loads.remove(domain, task);
+			}
+			inFlight = task;
+		}
+
+		try {
+			return inFlight.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(
+				"Interrupted while waiting for the credentials to load.",
+				e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ServiceException) {
+				throw (ServiceException) cause;
+			}
+			else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new ServiceException(
+				"The credentials could not be loaded.",
+				cause);
+		}
+	}
+
+	/**
+	 * Loads all of a domain's credentials from the database and caches 
+	 * them, unless a credential was invalidated in the meantime.
+	 *
+	 * @param domain The domain.
+	 *
+	 * @return The load.
+	 *
+	 * @throws ServiceException There was an error loading the credentials.
+	 */
+	private Load loadNow(final String domain) throws ServiceException {
+		long epoch;
+		synchronized(entries) {
+			epoch = invalidationEpoch;
+		}
+
+		long start = System.nanoTime();
+		Map<String, String> credentials =
+			OmhServices.instance().getCredentials(domain);
+		long end = System.nanoTime();
+		loadTime.addAndGet(end - start);
+
+		synchronized(entries) {
+			if(epoch != invalidationEpoch) {
+				return new Load(credentials, false);
+			}
+
+			if(credentials != null) {
+				long expiresAt = end + timeToLiveNanos;
+				for(Map.Entry<String, String> credential :
+						credentials.entrySet()) {
+
+					entries
+						.put(
+							getKey(domain, credential.getKey()),
+							new CachedCredential(
+								credential.getValue(),
+								expiresAt));
+				}
+			}
+		}
+
+		return new Load(credentials, true);
+	}
+
+	/**
+	 * Removes a credential from the cache so that the next request for it is
+	 * loaded from the database.
+	 *
+	 * @param domain The domain to which the credential belongs.
+	 *
+	 * @param name The name of the credential within the domain.
+	 */
+	public void invalidate(final String domain, final String name) {
+		boolean removed;
+		synchronized(entries) {
+			invalidationEpoch++;
+			removed = (entries.remove(getKey(domain, name)) != null);
+		}
+
+		if(removed) {
+			invalidations.incrementAndGet();
+			LOGGER.info("Invalidated the cached credential: " + domain);
+		}
+	}
+
+	/**
+	 * Removes all credentials from the cache.
+	 */
+	public void clear() {
+		synchronized(entries) {
+			invalidationEpoch++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of credentials that were found in the cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of credentials that had to be loaded.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of credentials that were explicitly invalidated.
+	 *
+	 * @return The number of invalidations.
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Returns the total time spent loading credentials.
+	 *
+	 * @return The total load time in nanoseconds.
+	 */
+	public long getLoadTimeNanos() {
+		return loadTime.get();
+	}
+
+	/**
+	 * Returns the number of credentials currently cached, including those
+	 * that have expired but have not yet been evicted.
+	 *
+	 * @return The number of cached credentials.
+	 */
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Builds the key for a credential.
+	 *
+	 * @param domain The credential's domain.
+	 *
+	 * @param name The credential's name.
+	 *
+	 * @return The key for the credential.
+	 */
+	private static String getKey(final String domain, final String name) {
+		return domain + '\u0000' + name;
+	}
+}
\ No newline at end of file
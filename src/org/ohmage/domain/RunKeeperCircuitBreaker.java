@@ -0,0 +1,506 @@
+package org.ohmage.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * Stops calling RunKeeper while it is failing or too slow, so that requests
+ * fail at once rather than each tying up a thread until it times out.
+ * </p>
+ *
+ * <p>
+ * The breaker starts closed, and every call is allowed. It tracks the
+ * outcomes of the last {@value #WINDOW_SIZE} calls and, once at least
+ * {@value #MIN_CALLS} have been made, opens when too many of them failed or
+ * were slow. A call fails if it could not be completed or RunKeeper
+ * responded with a server error.
+ * </p>
+ *
+ * <p>
+ * While the breaker is open, every call is rejected. Once it has been open
+ * for a while, it becomes half-open and lets up to
+ * {@value #HALF_OPEN_PROBES} calls through as probes. If all of them
+ * succeed, the breaker closes; if any of them fails or is slow, it opens
+ * again.
+ * </p>
+ *
+ * <p>
+ * Every change of state starts a new generation. Each permit remembers the
+ * generation it was given in, and the outcome of a call from an earlier
+ * generation is ignored, so that a call or probe that was slow to finish
+ * cannot count toward a later decision.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperCircuitBreaker {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperCircuitBreaker.class);
+
+	/**
+	 * The states of the breaker.
+	 *
+	 * @author John Jenkins
+	 */
+	public static enum State {
+		/**
+		 * Every call is allowed.
+		 */
+		CLOSED,
+		/**
+		 * Every call is rejected.
+		 */
+		OPEN,
+		/**
+		 * A few calls are allowed to test whether RunKeeper has recovered.
+		 */
+		HALF_OPEN;
+	}
+
+	/**
+	 * The default percentage of failed calls that opens the breaker.
+	 */
+	public static final int DEFAULT_FAILURE_RATE = 50;
+	/**
+	 * The default number of milliseconds after which a call is slow.
+	 */
+	public static final long DEFAULT_SLOW_CALL_DURATION = 10 * 1000;
+	/**
+	 * The default percentage of slow calls that opens the breaker.
+	 */
+	public static final int DEFAULT_SLOW_CALL_RATE = 80;
+	/**
+	 * The default number of milliseconds the breaker stays open before it
+	 * lets probes through.
+	 */
+	public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+
+	/**
+	 * The number of the most recent calls whose outcomes are tracked.
+	 */
+	private static final int WINDOW_SIZE = 20;
+	/**
+	 * The number of calls that must be tracked before the breaker may open.
+	 */
+	private static final int MIN_CALLS = 10;
+	/**
+	 * The number of probes that must succeed to close the breaker.
+	 */
+	private static final int HALF_OPEN_PROBES = 3;
+
+	/**
+	 * The number of calls that were rejected.
+	 */
+	private static final AtomicLong REJECTED = new AtomicLong();
+	/**
+	 * The number of times the breaker opened.
+	 */
+	private static final AtomicLong TRIPS = new AtomicLong();
+
+	/**
+	 * The current breaker.
+	 */
+	private static volatile RunKeeperCircuitBreaker instance =
+		new RunKeeperCircuitBreaker(
+			DEFAULT_FAILURE_RATE,
+			DEFAULT_SLOW_CALL_DURATION,
+			DEFAULT_SLOW_CALL_RATE,
+			DEFAULT_OPEN_DURATION);
+
+	/**
+	 * The cause of the exception thrown when a call is rejected, so that
+	 * callers may tell rejections apart from other failures.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class OpenException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates a new exception.
+		 */
+		private OpenException() {
+			super("The RunKeeper circuit breaker is open.");
+		}
+	}
+
+	/**
+	 * Permission to make a single call. Exactly one of
+	 * {@link #succeeded(long)}, {@link #failed(long)}, or
+	 * {@link #release()} must be called once the call is finished.
+	 *
+	 * @author John Jenkins
+	 */
+	public static final class Permit {
+		private final RunKeeperCircuitBreaker breaker;
+		private final boolean probe;
+		private final long generation;
+
+		/**
+		 * Creates a new permit.
+		 *
+		 * @param breaker The breaker that gave the permit.
+		 *
+		 * @param probe Whether or not the call is a half-open probe.
+		 *
+		 * @param generation The breaker's generation when the permit was
+		 * 					 given.
+		 */
+		private Permit(
+				final RunKeeperCircuitBreaker breaker,
+				final boolean probe,
+				final long generation) {
+
+			this.breaker = breaker;
+			this.probe = probe;
+			this.generation = generation;
+		}
+
+		/**
+		 * Records that the call succeeded.
+		 *
+		 * @param nanos The number of nanoseconds the call took.
+		 */
+		public void succeeded(final long nanos) {
+			breaker.record(this, false, nanos);
+		}
+
+		/**
+		 * Records that the call failed.
+		 *
+		 * @param nanos The number of nanoseconds the call took.
+		 */
+		public void failed(final long nanos) {
+			breaker.record(this, true, nanos);
+		}
+
+		/**
+		 * Gives back the permit without recording an outcome, e.g. because
+		 * the call was cancelled before it finished.
+		 */
+		public void release() {
+			breaker.release(this);
+		}
+	}
+
+	private final int failureRate;
+	private final long slowCallDuration;
+	private final int slowCallRate;
+	private final long openDuration;
+
+	private State state = State.CLOSED;
+	/**
+	 * The number of times the state has changed.
+	 */
+	private long generation = 0;
+	/**
+	 * The {@link System#nanoTime()} at which the breaker last opened.
+	 */
+	private long openedAt = 0;
+	/**
+	 * The tracked outcomes as a ring of whether each call failed and
+	 * whether it was slow.
+	 */
+	private final boolean[] failures = new boolean[WINDOW_SIZE];
+	private final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+	private int next = 0;
+	private int numCalls = 0;
+	private int numFailures = 0;
+	private int numSlowCalls = 0;
+	/**
+	 * The number of probes that have been let through but have not
+	 * finished.
+	 */
+	private int probesInFlight = 0;
+	/**
+	 * The number of probes that have succeeded.
+	 */
+	private int probesSucceeded = 0;
+
+	/**
+	 * Creates a closed breaker.
+	 *
+	 * @see #configure(int, long, int, long)
+	 */
+	private RunKeeperCircuitBreaker(
+			final int failureRate,
+			final long slowCallDuration,
+			final int slowCallRate,
+			final long openDuration) {
+
+		this.failureRate = failureRate;
+		this.slowCallDuration = slowCallDuration * 1000 * 1000;
+		this.slowCallRate = slowCallRate;
+		this.openDuration = openDuration * 1000 * 1000;
+	}
+
+	/**
+	 * Replaces the breaker with a closed one.
+	 *
+	 * @param failureRate The percentage of failed calls that opens the
+	 * 					  breaker. If zero, failures never open it.
+	 *
+	 * @param slowCallDuration The number of milliseconds after which a call
+	 * 						   is slow.
+	 *
+	 * @param slowCallRate The percentage of slow calls that opens the
+	 * 					   breaker. If zero, slow calls never open it.
+	 *
+	 * @param openDuration The number of milliseconds the breaker stays open
+	 * 					   before it lets probes through.
+	 *
+	 * @throws IllegalArgumentException A percentage is not between 0 and
+	 * 									100 or a duration is negative.
+	 */
+	public static void configure(
+			final int failureRate,
+			final long slowCallDuration,
+			final int slowCallRate,
+			final long openDuration) {
+
+		if(	(failureRate < 0) || (failureRate > 100) ||
+			(slowCallRate < 0) || (slowCallRate > 100)) {
+
+			throw new IllegalArgumentException(
+				"The rates must be between 0 and 100.");
+		}
+		if((slowCallDuration < 0) || (openDuration < 0)) {
+			throw new IllegalArgumentException(
+				"The durations must not be negative.");
+		}
+
+		instance =
+			new RunKeeperCircuitBreaker(
+				failureRate,
+				slowCallDuration,
+				slowCallRate,
+				openDuration);
+	}
+
+	/**
+	 * Asks for permission to make a call.
+	 *
+	 * @return The permit for the call.
+	 *
+	 * @throws DomainException The breaker is open, so the call must not be
+	 * 						   made.
+	 *
+	 * @see #isRejection(DomainException)
+	 */
+	public static Permit acquire() throws DomainException {
+		RunKeeperCircuitBreaker breaker = instance;
+
+		Permit permit = breaker.tryAcquire(System.nanoTime());
+		if(permit == null) {
+			REJECTED.incrementAndGet();
+			throw new DomainException(
+				"RunKeeper is unavailable, so the call was not made.",
+				new OpenException());
+		}
+
+		return permit;
+	}
+
+	/**
+	 * Returns whether or not the exception was caused by the breaker
+	 * rejecting a call.
+	 *
+	 * @param e The exception thrown from one of the request methods.
+	 *
+	 * @return True if the call was rejected because the breaker was open.
+	 */
+	public static boolean isRejection(final DomainException e) {
+		return e.getCause() instanceof OpenException;
+	}
+
+	/**
+	 * Returns the current state of the breaker.
+	 *
+	 * @return The current state.
+	 */
+	public static State getState() {
+		RunKeeperCircuitBreaker breaker = instance;
+		synchronized(breaker) {
+			return breaker.state;
+		}
+	}
+
+	/**
+	 * Returns the number of calls that were rejected.
+	 *
+	 * @return The number of rejected calls.
+	 */
+	public static long getRejected() {
+		return REJECTED.get();
+	}
+
+	/**
+	 * Returns the number of times the breaker opened.
+	 *
+	 * @return The number of times the breaker opened.
+	 */
+	public static long getTrips() {
+		return TRIPS.get();
+	}
+
+	/**
+	 * Decides whether or not a call may be made.
+	 *
+	 * @param now The current {@link System#nanoTime()}.
+	 *
+	 * @return The permit for the call, which may be a probe, or null if the
+	 * 		   call must be rejected.
+	 */
+	private synchronized Permit tryAcquire(final long now) {
+		if(State.OPEN.equals(state)) {
+			if(now - openedAt < openDuration) {
+				return null;
+			}
+
+			LOGGER.info("Probing whether or not RunKeeper has recovered.");
+			state = State.HALF_OPEN;
+			generation++;
+			probesInFlight = 0;
+			probesSucceeded = 0;
+		}
+
+		if(State.HALF_OPEN.equals(state)) {
+			if(probesInFlight + probesSucceeded >= HALF_OPEN_PROBES) {
+				return null;
+			}
+
+			probesInFlight++;
+			return new Permit(this, true, generation);
+		}
+
+		return new Permit(this, false, generation);
+	}
+
+	/**
+	 * Records the outcome of a call.
+	 *
+	 * @param permit The call's permit.
+	 *
+	 * @param failed Whether or not the call failed.
+	 *
+	 * @param nanos The number of nanoseconds the call took.
+	 */
+	private synchronized void record(
+			final Permit permit,
+			final boolean failed,
+			final long nanos) {
+
+		// Calls that were allowed before the state last changed are ignored.
+		if(permit.generation != generation) {
+			return;
+		}
+
+		boolean slow = (nanos > slowCallDuration);
+
+		// Probes decide whether to close or reopen the breaker.
+		if(permit.probe) {
+			probesInFlight--;
+
+			if(failed || slow) {
+				trip(
+					"a probe " + (failed ? "failed" : "was slow"),
+					System.nanoTime());
+			}
+			else if(++probesSucceeded >= HALF_OPEN_PROBES) {
+				LOGGER.info("RunKeeper has recovered, so calls are allowed.");
+				state = State.CLOSED;
+				generation++;
+				clear();
+			}
+			return;
+		}
+
+		if(numCalls == WINDOW_SIZE) {
+			if(failures[next]) {
+				numFailures--;
+			}
+			if(slowCalls[next]) {
+				numSlowCalls--;
+			}
+		}
+		else {
+			numCalls++;
+		}
+		failures[next] = failed;
+		slowCalls[next] = slow;
+		if(failed) {
+			numFailures++;
+		}
+		if(slow) {
+			numSlowCalls++;
+		}
+		next = (next + 1) % WINDOW_SIZE;
+
+		if(numCalls < MIN_CALLS) {
+			return;
+		}
+		if(	(failureRate > 0) &&
+			(numFailures * 100 >= failureRate * numCalls)) {
+
+			trip(
+				numFailures + " of the last " + numCalls + " calls failed",
+				System.nanoTime());
+		}
+		else if(
+			(slowCallRate > 0) &&
+			(numSlowCalls * 100 >= slowCallRate * numCalls)) {
+
+			trip(
+				numSlowCalls + " of the last " + numCalls + " calls were " +
+					"slow",
+				System.nanoTime());
+		}
+	}
+
+	/**
+	 * Gives back a permit without recording an outcome.
+	 *
+	 * @param permit The permit.
+	 */
+	private synchronized void release(final Permit permit) {
+		if(permit.probe && (permit.generation == generation)) {
+			probesInFlight--;
+		}
+	}
+
+	/**
+	 * Opens the breaker.
+	 *
+	 * @param reason Why the breaker is opening, for the log.
+	 *
+	 * @param now The current {@link System#nanoTime()}.
+	 */
+	private void trip(final String reason, final long now) {
+		LOGGER
+			.warn(
+				"Calls to RunKeeper are being rejected for " +
+					(openDuration / (1000 * 1000)) + "ms because " + reason +
+					".");
+
+		TRIPS.incrementAndGet();
+		state = State.OPEN;
+		generation++;
+		openedAt = now;
+		clear();
+	}
+
+	/**
+	 * Forgets the tracked outcomes.
+	 */
+	private void clear() {
+		next = 0;
+		numCalls = 0;
+		numFailures = 0;
+		numSlowCalls = 0;
+		probesInFlight = 0;
+		probesSucceeded = 0;
+	}
+}
@@ -0,0 +1,646 @@
+package org.ohmage.domain;
+
+import java.text.DateFormatSymbols;
+import java.util.Calendar;
+import java.util.Locale;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * <p>
+ * Parses and prints the date-times that RunKeeper uses, e.g.
+ * "Tue, 1 Mar 2011 07:00:00", and prints ISO-8601 date-times, e.g.
+ * "2011-03-01T07:00:00.000-08:00", without creating any objects. Values are
+ * read from and written to caller-supplied character buffers, so a single
+ * buffer may be reused for every value in a response.
+ * </p>
+ *
+ * <p>
+ * The results are exactly those of Joda's "E, d MMM y HH:mm:ss" and
+ * {@link ISODateTimeFormat#dateTime()} formatters in the default time zone.
+ * Only the common case is handled directly: a default locale whose month
+ * and day abbreviations are the English ones, e.g. "Sep" and not "Sept",
+ * four-digit years, and time zone offsets of whole minutes. Anything else
+ * is handed to those formatters.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperDateTimeCodec {
+	/**
+	 * The smallest buffer that can hold any printed date-time.
+	 */
+	public static final int MAX_LENGTH = 64;
+
+	/**
+	 * The RunKeeper date-time format.
+	 */
+	public static final String RUNKEEPER_FORMAT = "E, d MMM y HH:mm:ss";
+
+	/**
+	 * The formatter for the RunKeeper date-times that are not handled
+	 * directly.
+	 */
+	private static final DateTimeFormatter RUNKEEPER_FORMATTER =
+		DateTimeFormat.forPattern(RUNKEEPER_FORMAT);
+	/**
+	 * The formatter for the ISO-8601 date-times that are not handled
+	 * directly.
+	 */
+	private static final DateTimeFormatter ISO_FORMATTER =
+		ISODateTimeFormat.dateTime();
+
+	private static final long MILLIS_PER_SECOND = 1000;
+	private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+	private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+	private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+	/**
+	 * The English abbreviations of the days of the week, starting with
+	 * Monday.
+	 */
+	private static final char[][] DAY_NAMES =
+		new char[][] {
+			"Mon".toCharArray(),
+			"Tue".toCharArray(),
+			"Wed".toCharArray(),
+			"Thu".toCharArray(),
+			"Fri".toCharArray(),
+			"Sat".toCharArray(),
+			"Sun".toCharArray()
+		};
+	/**
+	 * The English abbreviations of the months, starting with January.
+	 */
+	private static final char[][] MONTH_NAMES =
+		new char[][] {
+			"Jan".toCharArray(),
+			"Feb".toCharArray(),
+			"Mar".toCharArray(),
+			"Apr".toCharArray(),
+			"May".toCharArray(),
+			"Jun".toCharArray(),
+			"Jul".toCharArray(),
+			"Aug".toCharArray(),
+			"Sep".toCharArray(),
+			"Oct".toCharArray(),
+			"Nov".toCharArray(),
+			"Dec".toCharArray()
+		};
+
+	/**
+	 * Whether or not a locale's abbreviations are the ones handled directly.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class LocaleNames {
+		private final Locale locale;
+		private final boolean english;
+
+		/**
+		 * Compares a locale's abbreviations, which are the ones Joda uses,
+		 * with the ones handled directly.
+		 *
+		 * @param locale The locale.
+		 */
+		private LocaleNames(final Locale locale) {
+			this.locale = locale;
+
+			DateFormatSymbols symbols = DateFormatSymbols.getInstance(locale);
+			String[] months = symbols.getShortMonths();
+			String[] days = symbols.getShortWeekdays();
+			boolean matches = true;
+			for(int i = 0; matches && (i < MONTH_NAMES.length); i++) {
+				matches = new String(MONTH_NAMES[i]).equals(months[i]);
+			}
+			for(int i = 0; matches && (i < DAY_NAMES.length); i++) {
+				matches =
+					new String(DAY_NAMES[i])
+						.equals(days[((i + 1) % 7) + Calendar.SUNDAY]);
+			}
+			english = matches;
+		}
+	}
+
+	/**
+	 * The abbreviations of the most recently used default locale.
+	 */
+	private static volatile LocaleNames localeNames = null;
+
+	/**
+	 * Default constructor made private to prevent instantiation.
+	 */
+	private RunKeeperDateTimeCodec() {}
+
+	/**
+	 * Parses a RunKeeper date-time in the default time zone.
+	 *
+	 * @param text The buffer that contains the date-time.
+	 *
+	 * @param offset The index of the first character of the date-time.
+	 *
+	 * @param length The number of characters in the date-time.
+	 *
+	 * @return The date-time in milliseconds since the epoch.
+	 *
+	 * @throws IllegalArgumentException The text is not a valid date-time.
+	 */
+	public static long parseRunKeeper(
+			final char[] text,
+			final int offset,
+			final int length) {
+
+		long millis = parseRunKeeperFast(text, offset, length);
+		if(millis != Long.MIN_VALUE) {
+			return millis;
+		}
+
+		return
+			RUNKEEPER_FORMATTER
+				.parseMillis(new String(text, offset, length));
+	}
+
+	/**
+	 * Prints a date-time in the RunKeeper format in the default time zone.
+	 *
+	 * @param millis The date-time in milliseconds since the epoch.
+	 *
+	 * @param buffer The buffer to print to, which must have room for
+	 * 				 {@link #MAX_LENGTH} characters.
+	 *
+	 * @return The number of characters that were printed.
+	 */
+	public static int printRunKeeper(final long millis, final char[] buffer) {
+		if(isEnglish()) {
+			long local = toLocal(millis);
+			long days = floorDiv(local, MILLIS_PER_DAY);
+			int year = yearOfDays(days);
+			if((year >= 1000) && (year <= 9999)) {
+				int pos = 0;
+
+				char[] dayName = DAY_NAMES[dayOfWeek(days) - 1];
+				buffer[pos++] = dayName[0];
+				buffer[pos++] = dayName[1];
+				buffer[pos++] = dayName[2];
+				buffer[pos++] = ',';
+				buffer[pos++] = ' ';
+
+				int dayOfMonth = dayOfMonthOfDays(days);
+				if(dayOfMonth >= 10) {
+					buffer[pos++] = (char) ('0' + (dayOfMonth / 10));
+				}
+				buffer[pos++] = (char) ('0' + (dayOfMonth % 10));
+				buffer[pos++] = ' ';
+
+				char[] monthName = MONTH_NAMES[monthOfDays(days) - 1];
+				buffer[pos++] = monthName[0];
+				buffer[pos++] = monthName[1];
+				buffer[pos++] = monthName[2];
+				buffer[pos++] = ' ';
+
+				pos = printDigits(year, 4, buffer, pos);
+				buffer[pos++] = ' ';
+
+				return
+					printTime(
+						local - (days * MILLIS_PER_DAY),
+						false,
+						buffer,
+						pos);
+			}
+		}
+
+		return copy(RUNKEEPER_FORMATTER.print(millis), buffer);
+	}
+
+	/**
+	 * Prints a date-time in the ISO-8601 format, with milliseconds and the
+	 * time zone offset, in the default time zone.
+	 *
+	 * @param millis The date-time in milliseconds since the epoch.
+	 *
+	 * @param buffer The buffer to print to, which must have room for
+	 * 				 {@link #MAX_LENGTH} characters.
+	 *
+	 * @return The number of characters that were printed.
+	 */
+	public static int printIso(final long millis, final char[] buffer) {
+		int zoneOffset = DateTimeZone.getDefault().getOffset(millis);
+		long local = millis + zoneOffset;
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int year = yearOfDays(days);
+		if(	(year >= 0) &&
+			(year <= 9999) &&
+			((zoneOffset % MILLIS_PER_MINUTE) == 0)) {
+
+			int pos = printDigits(year, 4, buffer, 0);
+			buffer[pos++] = '-';
+			pos = printDigits(monthOfDays(days), 2, buffer, pos);
+			buffer[pos++] = '-';
+			pos = printDigits(dayOfMonthOfDays(days), 2, buffer, pos);
+			buffer[pos++] = 'T';
+			pos = printTime(local - (days * MILLIS_PER_DAY), true, buffer, pos);
+
+			if(zoneOffset == 0) {
+				buffer[pos++] = 'Z';
+			}
+			else {
+				int absOffset = Math.abs(zoneOffset);
+				buffer[pos++] = (zoneOffset < 0) ? '-' : '+';
+				pos =
+					printDigits(
+						(int) (absOffset / MILLIS_PER_HOUR),
+						2,
+						buffer,
+						pos);
+				buffer[pos++] = ':';
+				pos =
+					printDigits(
+						(int) ((absOffset / MILLIS_PER_MINUTE) % 60),
+						2,
+						buffer,
+						pos);
+			}
+
+			return pos;
+		}
+
+		return copy(ISO_FORMATTER.print(millis), buffer);
+	}
+
+	/**
+	 * Parses the common form of a RunKeeper date-time, e.g.
+	 * "Tue, 1 Mar 2011 07:00:00".
+	 *
+	 * @return The date-time in milliseconds since the epoch or
+	 * 		   {@link Long#MIN_VALUE} if the text is not in the common form or
+	 * 		   is not a valid date-time.
+	 */
+	private static long parseRunKeeperFast(
+			final char[] text,
+			final int offset,
+			final int length) {
+
+		// "Www, D Mmm YYYY HH:mm:ss" or "Www, DD Mmm YYYY HH:mm:ss"
+		int dayDigits = length - 23;
+		if(((dayDigits != 1) && (dayDigits != 2)) || (! isEnglish())) {
+			return Long.MIN_VALUE;
+		}
+
+		int pos = offset;
+		int dayOfWeek = indexOf(DAY_NAMES, text, pos) + 1;
+		pos += 3;
+		if(	(dayOfWeek == 0) ||
+			(text[pos++] != ',') ||
+			(text[pos++] != ' ')) {
+
+			return Long.MIN_VALUE;
+		}
+
+		int dayOfMonth = parseDigits(text, pos, dayDigits);
+		pos += dayDigits;
+		if((dayOfMonth < 0) || (text[pos++] != ' ')) {
+			return Long.MIN_VALUE;
+		}
+
+		int month = indexOf(MONTH_NAMES, text, pos) + 1;
+		pos += 3;
+		if((month == 0) || (text[pos++] != ' ')) {
+			return Long.MIN_VALUE;
+		}
+
+		int year = parseDigits(text, pos, 4);
+		pos += 4;
+		if((year < 0) || (text[pos++] != ' ')) {
+			return Long.MIN_VALUE;
+		}
+
+		int hour = parseDigits(text, pos, 2);
+		pos += 2;
+		if((hour < 0) || (text[pos++] != ':')) {
+			return Long.MIN_VALUE;
+		}
+		int minute = parseDigits(text, pos, 2);
+		pos += 2;
+		if((minute < 0) || (text[pos++] != ':')) {
+			return Long.MIN_VALUE;
+		}
+		int second = parseDigits(text, pos, 2);
+
+		if(	(second < 0) ||
+			(hour > 23) ||
+			(minute > 59) ||
+			(second > 59) ||
+			(dayOfMonth < 1) ||
+			(dayOfMonth > daysInMonth(year, month))) {
+
+			return Long.MIN_VALUE;
+		}
+
+		// Like Joda, a day of the week that disagrees with the date moves
+		// the date to that day of the same Monday-based week.
+		long days = daysOfDate(year, month, dayOfMonth);
+		days += dayOfWeek - dayOfWeek(days);
+
+		long local =
+			(days * MILLIS_PER_DAY) +
+			(hour * MILLIS_PER_HOUR) +
+			(minute * MILLIS_PER_MINUTE) +
+			(second * MILLIS_PER_SECOND);
+
+		// Local times that fall in a daylight saving gap do not exist.
+		DateTimeZone zone = DateTimeZone.getDefault();
+		int zoneOffset = zone.getOffsetFromLocal(local);
+		long millis = local - zoneOffset;
+		if(zone.getOffset(millis) != zoneOffset) {
+			return Long.MIN_VALUE;
+		}
+
+		return millis;
+	}
+
+	/**
+	 * Prints the time of day as "HH:mm:ss" and, optionally, ".SSS".
+	 *
+	 * @return The index after the last printed character.
+	 */
+	private static int printTime(
+			final long millisOfDay,
+			final boolean withMillis,
+			final char[] buffer,
+			int pos) {
+
+		pos = printDigits((int) (millisOfDay / MILLIS_PER_HOUR), 2, buffer, pos);
+		buffer[pos++] = ':';
+		pos =
+			printDigits(
+				(int) ((millisOfDay / MILLIS_PER_MINUTE) % 60),
+				2,
+				buffer,
+				pos);
+		buffer[pos++] = ':';
+		pos =
+			printDigits(
+				(int) ((millisOfDay / MILLIS_PER_SECOND) % 60),
+				2,
+				buffer,
+				pos);
+		if(withMillis) {
+			buffer[pos++] = '.';
+			pos =
+				printDigits(
+					(int) (millisOfDay % MILLIS_PER_SECOND),
+					3,
+					buffer,
+					pos);
+		}
+
+		return pos;
+	}
+
+	/**
+	 * Prints a non-negative number that has at most the given number of
+	 * digits, padded with zeros to exactly that many digits.
+	 *
+	 * @return The index after the last printed character.
+	 */
+	private static int printDigits(
+			int value,
+			final int digits,
+			final char[] buffer,
+			final int pos) {
+
+		for(int i = pos + digits - 1; i >= pos; i--) {
+			buffer[i] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+
+		return pos + digits;
+	}
+
+	/**
+	 * Parses exactly the given number of decimal digits.
+	 *
+	 * @return The value or -1 if any of the characters is not a digit.
+	 */
+	private static int parseDigits(
+			final char[] text,
+			final int pos,
+			final int digits) {
+
+		int value = 0;
+		for(int i = pos; i < pos + digits; i++) {
+			char c = text[i];
+			if((c < '0') || (c > '9')) {
+				return -1;
+			}
+			value = (value * 10) + (c - '0');
+		}
+
+		return value;
+	}
+
+	/**
+	 * Finds the three-letter name that starts at the given position.
+	 *
+	 * @return The index of the name or -1 if none of them match.
+	 */
+	private static int indexOf(
+			final char[][] names,
+			final char[] text,
+			final int pos) {
+
+		for(int i = 0; i < names.length; i++) {
+			char[] name = names[i];
+			if(	(text[pos] == name[0]) &&
+				(text[pos + 1] == name[1]) &&
+				(text[pos + 2] == name[2])) {
+
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns whether or not the default locale uses the English names that
+	 * are handled directly. Some English locales do not, e.g. "en_GB"
+	 * abbreviates September as "Sept".
+	 */
+	private static boolean isEnglish() {
+		Locale locale = Locale.getDefault();
+		LocaleNames names = localeNames;
+		if((names == null) || (! names.locale.equals(locale))) {
+			names = new LocaleNames(locale);
+			localeNames = names;
+		}
+
+		return names.english;
+	}
+
+	/**
+	 * Converts a date-time to the local time in the default time zone.
+	 */
+	private static long toLocal(final long millis) {
+		return millis + DateTimeZone.getDefault().getOffset(millis);
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to a date in the proleptic
+	 * Gregorian calendar.
+	 */
+	private static long daysOfDate(
+			final int year,
+			final int month,
+			final int dayOfMonth) {
+
+		long y = (month <= 2) ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		long yearOfEra = y - (era * 400);
+		long dayOfYear =
+			(((153 * ((month > 2) ? month - 3 : month + 9)) + 2) / 5) +
+			dayOfMonth - 1;
+		long dayOfEra =
+			(yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) +
+			dayOfYear;
+
+		return (era * 146097) + dayOfEra - 719468;
+	}
+
+	/**
+	 * Returns the year of the date that is the given number of days from
+	 * 1970-01-01.
+	 */
+	private static int yearOfDays(final long days) {
+		long dayOfEra = dayOfEra(days);
+		long yearOfEra = yearOfEra(dayOfEra);
+		long year = yearOfEra + (floorDiv(days + 719468, 146097) * 400);
+
+		return (int) ((monthOfDays(days) <= 2) ? year + 1 : year);
+	}
+
+	/**
+	 * Returns the month, from 1 to 12, of the date that is the given number
+	 * of days from 1970-01-01.
+	 */
+	private static int monthOfDays(final long days) {
+		int marchMonth = marchMonth(dayOfMarchYear(days));
+		return (marchMonth < 10) ? marchMonth + 3 : marchMonth - 9;
+	}
+
+	/**
+	 * Returns the day of the month of the date that is the given number of
+	 * days from 1970-01-01.
+	 */
+	private static int dayOfMonthOfDays(final long days) {
+		int dayOfMarchYear = dayOfMarchYear(days);
+		return
+			dayOfMarchYear -
+				(((153 * marchMonth(dayOfMarchYear)) + 2) / 5) +
+				1;
+	}
+
+	/**
+	 * Returns the day of the week, from 1 for Monday to 7 for Sunday, of the
+	 * date that is the given number of days from 1970-01-01.
+	 */
+	private static int dayOfWeek(final long days) {
+		return (int) (floorMod(days + 3, 7) + 1);
+	}
+
+	/**
+	 * Returns the day within the 400-year era, which starts on 0000-03-01,
+	 * of the date that is the given number of days from 1970-01-01.
+	 */
+	private static long dayOfEra(final long days) {
+		return floorMod(days + 719468, 146097);
+	}
+
+	/**
+	 * Returns the March-based year within the 400-year era of a day within
+	 * that era.
+	 */
+	private static long yearOfEra(final long dayOfEra) {
+		return
+			(dayOfEra - (dayOfEra / 1460) + (dayOfEra / 36524) -
+				(dayOfEra / 146096)) / 365;
+	}
+
+	/**
+	 * Returns the day within the year that starts on March 1st of the date
+	 * that is the given number of days from 1970-01-01.
+	 */
+	private static int dayOfMarchYear(final long days) {
+		long dayOfEra = dayOfEra(days);
+		long yearOfEra = yearOfEra(dayOfEra);
+
+		return
+			(int) (dayOfEra -
+				((365 * yearOfEra) + (yearOfEra / 4) - (yearOfEra / 100)));
+	}
+
+	/**
+	 * Returns the month, from 0 for March to 11 for February, of a day within
+	 * the year that starts on March 1st.
+	 */
+	private static int marchMonth(final int dayOfMarchYear) {
+		return ((5 * dayOfMarchYear) + 2) / 153;
+	}
+
+	/**
+	 * Returns the number of days in a month of the proleptic Gregorian
+	 * calendar.
+	 */
+	private static int daysInMonth(final int year, final int month) {
+		switch(month) {
+		case 2:
+			boolean leap =
+				((year % 4) == 0) &&
+				(((year % 100) != 0) || ((year % 400) == 0));
+			return leap ? 29 : 28;
+
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Divides, rounding towards negative infinity.
+	 */
+	private static long floorDiv(final long dividend, final long divisor) {
+		long quotient = dividend / divisor;
+		if(((dividend % divisor) != 0) && ((dividend < 0) != (divisor < 0))) {
+			quotient--;
+		}
+
+		return quotient;
+	}
+
+	/**
+	 * Returns the remainder of {@link #floorDiv(long, long)}, which has the
+	 * same sign as the divisor.
+	 */
+	private static long floorMod(final long dividend, final long divisor) {
+		return dividend - (floorDiv(dividend, divisor) * divisor);
+	}
+
+	/**
+	 * Copies a date-time that was printed by Joda into the buffer.
+	 *
+	 * @return The number of characters that were copied.
+	 */
+	private static int copy(final String printed, final char[] buffer) {
+		printed.getChars(0, printed.length(), buffer, 0);
+		return printed.length();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,224 @@
+package org.ohmage.domain;
+
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * A point in time by which some RunKeeper work must be finished. Deadlines
+ * are measured with {@link System#nanoTime()}, so they are unaffected by
+ * changes to the wall clock.
+ * </p>
+ *
+ * <p>
+ * Each RunKeeper read is given a deadline when it is created, which is then
+ * passed down to every call it makes. Anything that waits, e.g. for a pooled
+ * connection, a socket, the rate limit, or a retry, waits no longer than the
+ * time that remains.
+ * </p>
+ *
+ * <p>
+ * A deadline also carries the read's {@link RunKeeperTiming timing}, so that
+ * the calls it is passed to can record how long each phase took.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperDeadline {
+	/**
+	 * A deadline that never expires.
+	 */
+	public static final RunKeeperDeadline NONE =
+		new RunKeeperDeadline(0, false, RunKeeperTiming.NONE);
+
+	private final long deadline;
+	private final boolean bounded;
+	private final RunKeeperTiming timing;
+
+	/**
+	 * The cause of the exception thrown when a deadline has passed, so that
+	 * callers may tell it apart from other failures.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class ExpiredException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates a new exception.
+		 */
+		private ExpiredException() {
+			super("The deadline passed.");
+		}
+	}
+
+	/**
+	 * Creates a new deadline.
+	 *
+	 * @param deadline The {@link System#nanoTime()} at which the deadline
+	 * 				   expires.
+	 *
+	 * @param bounded Whether or not the deadline ever expires.
+	 *
+	 * @param timing The timing of the read this deadline is for.
+	 */
+	private RunKeeperDeadline(
+			final long deadline,
+			final boolean bounded,
+			final RunKeeperTiming timing) {
+
+		this.deadline = deadline;
+		this.bounded = bounded;
+		this.timing = timing;
+	}
+
+	/**
+	 * Creates a deadline that expires after the given number of milliseconds
+	 * from now.
+	 *
+	 * @param millis The number of milliseconds until the deadline. If this
+	 * 				 is not positive, the deadline has already expired.
+	 *
+	 * @return The new deadline.
+	 */
+	public static RunKeeperDeadline after(final long millis) {
+		return
+			new RunKeeperDeadline(
+				System.nanoTime() + (millis * 1000 * 1000),
+				true,
+				RunKeeperTiming.NONE);
+	}
+
+	/**
+	 * Creates a deadline that is the same as this one but carries the given
+	 * timing.
+	 *
+	 * @param timing The timing of the read this deadline is for.
+	 *
+	 * @return The new deadline.
+	 */
+	public RunKeeperDeadline withTiming(final RunKeeperTiming timing) {
+		if(timing == null) {
+			throw new IllegalArgumentException("The timing is null.");
+		}
+
+		return new RunKeeperDeadline(deadline, bounded, timing);
+	}
+
+	/**
+	 * Returns the timing of the read this deadline is for.
+	 *
+	 * @return The timing, which is {@link RunKeeperTiming#NONE} if the read
+	 * 		   is not being timed.
+	 */
+	public RunKeeperTiming getTiming() {
+		return timing;
+	}
+
+	/**
+	 * Returns whether or not this deadline ever expires.
+	 *
+	 * @return False if this deadline never expires.
+	 */
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	/**
+	 * Returns whether or not this deadline has passed.
+	 *
+	 * @return True if this deadline is bounded and has passed.
+	 */
+	public boolean isExpired() {
+		return bounded && (remainingNanos() <= 0);
+	}
+
+	/**
+	 * Returns the time remaining until this deadline.
+	 *
+	 * @return The number of nanoseconds remaining, which is negative if the
+	 * 		   deadline has passed, or {@link Long#MAX_VALUE} if this
+	 * 		   deadline is not bounded.
+	 */
+	public long remainingNanos() {
+		if(! bounded) {
+			return Long.MAX_VALUE;
+		}
+
+		return deadline - System.nanoTime();
+	}
+
+	/**
+	 * Returns the time remaining until this deadline, rounded up to the next
+	 * millisecond.
+	 *
+	 * @return The number of milliseconds remaining, which is zero if the
+	 * 		   deadline has passed, or {@link Long#MAX_VALUE} if this
+	 * 		   deadline is not bounded.
+	 */
+	public long remainingMillis() {
+		if(! bounded) {
+			return Long.MAX_VALUE;
+		}
+
+		long remaining = remainingNanos();
+		if(remaining <= 0) {
+			return 0;
+		}
+
+		return (remaining + 999999) / 1000000;
+	}
+
+	/**
+	 * Returns the earlier of this deadline and another one.
+	 *
+	 * @param other The other deadline.
+	 *
+	 * @return The deadline that expires first, which carries this deadline's
+	 * 		   timing.
+	 */
+	public RunKeeperDeadline min(final RunKeeperDeadline other) {
+		if((! other.bounded) || (bounded && (deadline - other.deadline <= 0))) {
+			return this;
+		}
+
+		return new RunKeeperDeadline(other.deadline, true, timing);
+	}
+
+	/**
+	 * Fails if this deadline has passed.
+	 *
+	 * @throws DomainException This deadline has passed.
+	 *
+	 * @see #isExpiration(DomainException)
+	 */
+	public void check() throws DomainException {
+		if(isExpired()) {
+			throw expired();
+		}
+	}
+
+	/**
+	 * Creates the exception for work that did not finish by its deadline.
+	 *
+	 * @return The exception, which should be thrown.
+	 *
+	 * @see #isExpiration(DomainException)
+	 */
+	public DomainException expired() {
+		return
+			new DomainException(
+				"The RunKeeper request did not finish in time.",
+				new ExpiredException());
+	}
+
+	/**
+	 * Returns whether or not the exception was caused by a deadline passing.
+	 *
+	 * @param e The exception thrown from one of the request methods.
+	 *
+	 * @return True if the work did not finish by its deadline.
+	 */
+	public static boolean isExpiration(final DomainException e) {
+		return e.getCause() instanceof ExpiredException;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,536 @@
+package org.ohmage.domain;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.log4j.Logger;
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * Runs RunKeeper requests in the background, e.g. when multiple pages of a
+ * request are fetched at the same time. These tasks spend nearly all of
+ * their time blocked on RunKeeper, so, when the JVM supports them, each task
+ * is run on its own virtual thread. Otherwise, they are run on a bounded
+ * pool of platform threads.
+ * </p>
+ *
+ * <p>
+ * Tasks may be given a {@link RunKeeperDeadline deadline} after which they
+ * are cancelled or a delay before which they are not started. Cancelling a
+ * task, whether explicitly or because of its deadline, interrupts it and
+ * aborts any RunKeeper request it is making, because blocking socket reads
+ * do not respond to interrupts.
+ * </p>
+ *
+ * <p>
+ * The executor is created with its defaults the first time it is used. It
+ * may be explicitly configured with {@link #initialize(ThreadMode, int)}
+ * before that and should be {@link #shutdown() shut down} when the web
+ * application is stopped, after which tasks are rejected.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperExecutor {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperExecutor.class);
+
+	/**
+	 * The kinds of threads that may run the tasks.
+	 *
+	 * @author John Jenkins
+	 */
+	public static enum ThreadMode {
+		/**
+		 * Virtual threads if the JVM supports them; otherwise, platform
+		 * threads.
+		 */
+		AUTO,
+		/**
+		 * Virtual threads. If the JVM does not support them, platform threads
+		 * are used and a warning is logged.
+		 */
+		VIRTUAL,
+		/**
+		 * A bounded pool of platform threads.
+		 */
+		PLATFORM;
+	}
+
+	/**
+	 * The default number of platform threads in the pool.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 16;
+
+	/**
+	 * The task currently running on this thread, if it was submitted to this
+	 * executor.
+	 */
+	private static final ThreadLocal<Task<?>> CURRENT_TASK =
+		new ThreadLocal<Task<?>>();
+
+	/**
+	 * The singleton executor.
+	 */
+	private static ExecutorService executor = null;
+	/**
+	 * The timer that cancels tasks whose deadlines have passed and starts
+	 * tasks whose delays have passed.
+	 */
+	private static ScheduledExecutorService timer = null;
+	/**
+	 * Whether or not the executor has been shut down, guarded by the class's
+	 * lock.
+	 */
+	private static boolean terminated = false;
+
+	/**
+	 * A task that can abort the RunKeeper request it is making when it is
+	 * cancelled.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class Task<T> extends FutureTask<T> {
+		/**
+		 * The RunKeeper request this task is making, if any.
+		 */
+		private volatile HttpUriRequest request = null;
+		/**
+		 * The timer's future that will cancel this task at its deadline or
+		 * start it after its delay, if it has one.
+		 */
+		private volatile ScheduledFuture<?> timerFuture = null;
+
+		/**
+		 * Creates a new task.
+		 *
+		 * @param callable The work to do.
+		 */
+		private Task(final Callable<T> callable) {
+			super(callable);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.FutureTask#run()
+		 */
+		@Override
+		public void run() {
+			CURRENT_TASK.set(this);
+			try {
+				super.run();
+			}
+			finally {
+				CURRENT_TASK.remove();
+				request = null;
+			}
+		}
+
+		/**
+		 * Cancels the task and aborts its current request so that a thread
+		 * blocked on RunKeeper is released.
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+			HttpUriRequest currRequest = request;
+			if(cancelled && mayInterruptIfRunning && (currRequest != null)) {
+				currRequest.abort();
+			}
+
+			return cancelled;
+		}
+
+		/**
+		 * Stops waiting for the deadline or delay once the task is finished.
+		 */
+		@Override
+		protected void done() {
+			ScheduledFuture<?> currTimerFuture = timerFuture;
+			if(currTimerFuture != null) {
+				currTimerFuture.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Default constructor made private to prevent instantiation.
+	 */
+	private RunKeeperExecutor() {}
+
+	/**
+	 * Creates the executor. If an executor already exists, it is shut down
+	 * and replaced.
+	 *
+	 * @param mode The kind of threads to use.
+	 *
+	 * @param poolSize The number of threads in the pool if platform threads
+	 * 				   are used.
+	 *
+	 * @throws IllegalArgumentException The mode is null or the pool size is
+	 * 									not positive.
+	 *
+	 * @throws IllegalStateException The executor has been shut down.
+	 */
+	public static synchronized void initialize(
+			final ThreadMode mode,
+			final int poolSize) {
+
+		if(mode == null) {
+			throw new IllegalArgumentException("The thread mode is null.");
+		}
+		if(poolSize <= 0) {
+			throw new IllegalArgumentException(
+				"The pool size must be positive.");
+		}
+		if(terminated) {
+			throw new IllegalStateException(
+				"The RunKeeper executor has been shut down.");
+		}
+
+		close();
+
+		if(! ThreadMode.PLATFORM.equals(mode)) {
+			executor = createVirtualThreadExecutor();
+			if(executor != null) {
+				LOGGER
+					.info("Running RunKeeper requests on virtual threads.");
+			}
+			else if(ThreadMode.VIRTUAL.equals(mode)) {
+				LOGGER
+					.warn(
+						"Virtual threads are not supported by this JVM, so " +
+							"platform threads will be used.");
+			}
+		}
+		if(executor == null) {
+			LOGGER
+				.info(
+					"Creating the RunKeeper thread pool with " +
+						poolSize + " threads.");
+			ThreadPoolExecutor pool =
+				new ThreadPoolExecutor(
+					poolSize,
+					poolSize,
+					60,
+					TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new DaemonThreadFactory("RunKeeper worker"));
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+
+		timer =
+			new ScheduledThreadPoolExecutor(
+				1,
+				new DaemonThreadFactory("RunKeeper timer"));
+	}
+
+	/**
+	 * Submits a task without a deadline.
+	 *
+	 * @param task The task to run.
+	 *
+	 * @return The task's future. Cancelling it aborts the task's current
+	 * 		   RunKeeper request.
+	 *
+	 * @see #submit(Callable, RunKeeperDeadline)
+	 */
+	public static <T> Future<T> submit(final Callable<T> task) {
+		return submit(task, RunKeeperDeadline.NONE);
+	}
+
+	/**
+	 * Submits a task that is cancelled if it has not finished by its
+	 * deadline. The executor is created with its defaults if it has not yet
+	 * been {@link #initialize(ThreadMode, int) initialized}.
+	 *
+	 * @param task The task to run.
+	 *
+	 * @param deadline The deadline for the task.
+	 *
+	 * @return The task's future. Cancelling it aborts the task's current
+	 * 		   RunKeeper request.
+	 *
+	 * @throws RejectedExecutionException The executor has been shut down.
+	 */
+	public static <T> Future<T> submit(
+			final Callable<T> task,
+			final RunKeeperDeadline deadline) {
+
+		final Task<T> result = new Task<T>(task);
+
+		synchronized(RunKeeperExecutor.class) {
+			if(terminated) {
+				throw new RejectedExecutionException(
+					"The RunKeeper executor has been shut down.");
+			}
+			if(executor == null) {
+				initialize(ThreadMode.AUTO, DEFAULT_POOL_SIZE);
+			}
+
+			if(deadline.isBounded()) {
+				result.timerFuture =
+					timer.schedule(
+						new Runnable() {
+							/**
+							 * Cancels the task because its deadline passed.
+							 */
+							@Override
+							public void run() {
+								result.cancel(true);
+							}
+						},
+						Math.max(0, deadline.remainingNanos()),
+						TimeUnit.NANOSECONDS);
+			}
+
+			executor.execute(result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Submits a task that is only started after a delay. If the task is
+	 * cancelled before then, it is never started. The executor is created
+	 * with its defaults if it has not yet been
+	 * {@link #initialize(ThreadMode, int) initialized}.
+	 *
+	 * @param task The task to run.
+	 *
+	 * @param delay The number of nanoseconds to wait before starting the
+	 * 				task.
+	 *
+	 * @return The task's future. Cancelling it aborts the task's current
+	 * 		   RunKeeper request.
+	 *
+	 * @throws RejectedExecutionException The executor has been shut down.
+	 */
+	public static <T> Future<T> submitAfter(
+			final Callable<T> task,
+			final long delay) {
+
+		final Task<T> result = new Task<T>(task);
+
+		synchronized(RunKeeperExecutor.class) {
+			if(terminated) {
+				throw new RejectedExecutionException(
+					"The RunKeeper executor has been shut down.");
+			}
+			if(executor == null) {
+				initialize(ThreadMode.AUTO, DEFAULT_POOL_SIZE);
+			}
+
+			final ExecutorService currExecutor = executor;
+			result.timerFuture =
+				timer.schedule(
+					new Runnable() {
+						/**
+						 * Starts the task because its delay passed.
+						 */
+						@Override
+						public void run() {
+							try {
+								currExecutor.execute(result);
+							}
+							catch(RejectedExecutionException e) {
+								result.cancel(false);
+							}
+						}
+					},
+					Math.max(0, delay),
+					TimeUnit.NANOSECONDS);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Waits for a task to finish, but no longer than its deadline. If the
+	 * deadline passes or the waiting thread is interrupted, the task is
+	 * cancelled.
+	 *
+	 * @param future The task's future.
+	 *
+	 * @param deadline The latest time to wait until.
+	 *
+	 * @return The task's result.
+	 *
+	 * @throws DomainException The task failed, was cancelled, or did not
+	 * 						   finish by the deadline. If the task threw a
+	 * 						   DomainException, it is rethrown as-is.
+	 */
+	public static <T> T await(
+			final Future<T> future,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		try {
+			if(deadline.isBounded()) {
+				return
+					future.get(
+						Math.max(0, deadline.remainingNanos()),
+						TimeUnit.NANOSECONDS);
+			}
+			else {
+				return future.get();
+			}
+		}
+		catch(TimeoutException e) {
+			future.cancel(true);
+			throw deadline.expired();
+		}
+		catch(InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new DomainException(
+				"Interrupted while waiting for the RunKeeper request.",
+				e);
+		}
+		catch(CancellationException e) {
+			throw new DomainException(
+				"The RunKeeper request was cancelled.",
+				e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof DomainException) {
+				throw (DomainException) cause;
+			}
+			else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new DomainException(
+				"The RunKeeper request failed.",
+				cause);
+		}
+	}
+
+	/**
+	 * Records the RunKeeper request that the current task is making so that
+	 * it may be aborted if the task is cancelled. This has no effect if the
+	 * current thread is not running one of this executor's tasks.
+	 *
+	 * @param request The request being made or null once it is finished.
+	 *
+	 * @return True if the current task has already been cancelled, in which
+	 * 		   case the request should not be made.
+	 */
+	static boolean setCurrentRequest(final HttpUriRequest request) {
+		Task<?> task = CURRENT_TASK.get();
+		if(task == null) {
+			return false;
+		}
+
+		task.request = request;
+		return task.isCancelled();
+	}
+
+	/**
+	 * Stops the executor, cancelling any running tasks. Tasks that are
+	 * submitted after this are rejected and the executor cannot be
+	 * initialized again, so that a stopped web application does not start
+	 * new threads.
+	 */
+	public static synchronized void shutdown() {
+		terminated = true;
+		close();
+	}
+
+	/**
+	 * Stops the current executor and timer, if any, cancelling any running
+	 * tasks.
+	 */
+	private static synchronized void close() {
+		if(executor != null) {
+			LOGGER.info("Shutting down the RunKeeper executor.");
+
+			for(Runnable runnable : executor.shutdownNow()) {
+				if(runnable instanceof Future) {
+					((Future<?>) runnable).cancel(true);
+				}
+			}
+			executor = null;
+		}
+		if(timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread.
+	 *
+	 * @return The executor or null if virtual threads are not supported.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory =
+				Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch(NoSuchMethodException e) {
+			return null;
+		}
+		catch(Exception e) {
+			LOGGER.warn("The virtual thread executor could not be created.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates daemon threads so that an abandoned pool never prevents the JVM
+	 * from exiting.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * Creates a new factory.
+		 *
+		 * @param prefix The prefix for the threads' names.
+		 */
+		private DaemonThreadFactory(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread =
+				new Thread(runnable, prefix + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
\ No newline at end of file
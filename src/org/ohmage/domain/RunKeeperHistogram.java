@@ -0,0 +1,147 @@
+package org.ohmage.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A histogram of non-negative values, e.g. latencies in nanoseconds, that
+ * may be recorded to from any number of threads without locking. Each
+ * power of two is split into {@value #SUB_BUCKETS} buckets, so any value
+ * read back from the histogram is within 25% of a value that was
+ * recorded.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperHistogram {
+	/**
+	 * The number of bits of each value, after its leading one, that choose
+	 * its bucket within its power of two.
+	 */
+	private static final int SUB_BITS = 2;
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/**
+	 * The number of buckets needed to cover every non-negative long.
+	 */
+	private static final int NUM_BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public RunKeeperHistogram() {
+		// Do nothing.
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value The value.
+	 */
+	public void record(final long value) {
+		long nonNegative = Math.max(0, value);
+
+		counts.incrementAndGet(getIndex(nonNegative));
+		sum.addAndGet(nonNegative);
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of values that have been recorded.
+	 *
+	 * @return The number of values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the mean of the values that have been recorded.
+	 *
+	 * @return The mean or zero if no values have been recorded.
+	 */
+	public double getMean() {
+		long currCount = count.get();
+		return (currCount == 0) ? 0 : ((double) sum.get()) / currCount;
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of the values that
+	 * have been recorded. Values that are recorded while this is being
+	 * computed may or may not be included.
+	 *
+	 * @param percentile The percentile, from 0 to 100.
+	 *
+	 * @return The upper bound of the bucket that contains the percentile or
+	 * 		   zero if no values have been recorded.
+	 */
+	public long getPercentile(final double percentile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0;
+		for(int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) {
+			return 0;
+		}
+
+		long target =
+			Math.max(
+				1,
+				(long) Math.ceil(
+					(Math.min(100, Math.max(0, percentile)) / 100) * total));
+		long seen = 0;
+		for(int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= target) {
+				return getUpperBound(i);
+			}
+		}
+
+		return getUpperBound(NUM_BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the bucket for a value.
+	 *
+	 * @param value The non-negative value.
+	 *
+	 * @return The bucket's index.
+	 */
+	private static int getIndex(final long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa =
+			(int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) | mantissa;
+	}
+
+	/**
+	 * Returns the largest value that belongs in a bucket.
+	 *
+	 * @param index The bucket's index.
+	 *
+	 * @return The largest value in the bucket.
+	 */
+	private static long getUpperBound(final int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+		long mantissa = index & (SUB_BUCKETS - 1);
+		long lower = (1L << exponent) | (mantissa << (exponent - SUB_BITS));
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
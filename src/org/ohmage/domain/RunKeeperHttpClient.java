@@ -0,0 +1,478 @@
+package org.ohmage.domain;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * The single HTTP client that is shared by all of the
+ * {@link RunKeeperPayloadId.RunKeeperApi RunKeeper APIs}. It is backed by a
+ * pooled connection manager so that connections to RunKeeper are kept alive
+ * and reused between requests instead of paying for a new TCP and TLS
+ * handshake on every call.
+ * </p>
+ *
+ * <p>
+ * The client is created with its default limits the first time it is
+ * requested. It may be explicitly configured with
+ * {@link #initialize(int, int, long)} before that and should be
+ * {@link #shutdown() shut down} when the web application is stopped, after
+ * which no client is created again.
+ * </p>
+ *
+ * <p>
+ * Every request waits a bounded time to lease a pooled connection, to
+ * connect, and for each read from its socket. These timeouts are shortened
+ * to fit within the request's {@link RunKeeperDeadline deadline}, if it has
+ * one, by {@link #setTimeouts(HttpRequestBase, RunKeeperDeadline)}.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperHttpClient {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperHttpClient.class);
+
+	/**
+	 * The default maximum number of connections across all routes.
+	 */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 50;
+	/**
+	 * The default maximum number of connections to any one route. All of our
+	 * requests go to the same host, so this is effectively the limit.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	/**
+	 * The default number of milliseconds a connection may sit idle in the
+	 * pool before it is closed.
+	 */
+	public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+	/**
+	 * The number of milliseconds to keep a connection alive when the server
+	 * does not tell us how long it will keep it open.
+	 */
+	private static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+	/**
+	 * The attribute of a request's context that, if it is present when the
+	 * request is executed, is set to the {@link System#nanoTime()} at which
+	 * a connection was ready and the request was about to be sent.
+	 */
+	static final String ATTRIBUTE_SENT = "org.ohmage.runkeeper.sent";
+	/**
+	 * The default number of milliseconds to wait to lease a connection from
+	 * the pool.
+	 */
+	public static final long DEFAULT_LEASE_TIMEOUT = 5 * 1000;
+	/**
+	 * The default number of milliseconds to wait to connect to RunKeeper.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	/**
+	 * The default number of milliseconds to wait for each read from the
+	 * socket.
+	 */
+	public static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+
+	private static volatile long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+	private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static volatile int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	/**
+	 * Whether or not RunKeeper is asked to compress its responses.
+	 */
+	private static volatile boolean compression = true;
+
+	/**
+	 * The singleton instance. It is read without locking and only replaced
+	 * while holding the class's lock.
+	 */
+	private static volatile RunKeeperHttpClient instance = null;
+	/**
+	 * Whether or not the client has been shut down, guarded by the class's
+	 * lock.
+	 */
+	private static boolean terminated = false;
+
+	private final ThreadSafeClientConnManager connectionManager;
+	private final DefaultHttpClient httpClient;
+	private final IdleConnectionMonitor idleConnectionMonitor;
+
+	/**
+	 * A daemon thread that periodically evicts expired and idle connections
+	 * from the pool. Without this, a connection that the server has closed
+	 * would only be discovered the next time it was leased.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class IdleConnectionMonitor extends Thread {
+		private final ThreadSafeClientConnManager connectionManager;
+		private final long idleTimeout;
+		private volatile boolean shutdown = false;
+
+		/**
+		 * Creates the monitor but does not start it.
+		 *
+		 * @param connectionManager The connection manager to monitor.
+		 *
+		 * @param idleTimeout The number of milliseconds a connection may be
+		 * 					  idle before it is closed.
+		 */
+		private IdleConnectionMonitor(
+				final ThreadSafeClientConnManager connectionManager,
+				final long idleTimeout) {
+
+			super("RunKeeper idle connection monitor");
+			setDaemon(true);
+
+			this.connectionManager = connectionManager;
+			this.idleTimeout = idleTimeout;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				while(! shutdown) {
+					synchronized(this) {
+						wait(Math.max(1000, idleTimeout / 2));
+					}
+
+					connectionManager.closeExpiredConnections();
+					connectionManager
+						.closeIdleConnections(
+							idleTimeout,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+			catch(InterruptedException e) {
+				// We are being shut down.
+			}
+		}
+
+		/**
+		 * Stops the monitor.
+		 */
+		private void shutdown() {
+			shutdown = true;
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Creates the pooled client and starts its idle connection monitor.
+	 *
+	 * @param maxTotal The maximum number of connections across all routes.
+	 *
+	 * @param maxPerRoute The maximum number of connections to one route.
+	 *
+	 * @param idleTimeout The number of milliseconds a connection may be idle
+	 * 					  before it is closed.
+	 */
+	private RunKeeperHttpClient(
+			final int maxTotal,
+			final int maxPerRoute,
+			final long idleTimeout) {
+
+		connectionManager = new ThreadSafeClientConnManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		httpClient = new DefaultHttpClient(connectionManager);
+		httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			/**
+			 * Honors the server's "Keep-Alive: timeout=" value if one was
+			 * given; otherwise, uses our default.
+			 */
+			@Override
+			public long getKeepAliveDuration(
+					final HttpResponse response,
+					final HttpContext context) {
+
+				HeaderElementIterator elements =
+					new BasicHeaderElementIterator(
+						response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+				while(elements.hasNext()) {
+					HeaderElement element = elements.nextElement();
+					if(	"timeout".equalsIgnoreCase(element.getName()) &&
+						(element.getValue() != null)) {
+
+						try {
+							return Long.parseLong(element.getValue()) * 1000;
+						}
+						catch(NumberFormatException e) {
+							// Fall through to the default.
+						}
+					}
+				}
+
+				return DEFAULT_KEEP_ALIVE;
+			}
+		});
+		httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			/**
+			 * Records when the request is sent, if the caller asked for it.
+			 * This is only called once a connection has been leased and
+			 * connected.
+			 */
+			@Override
+			public void process(
+					final HttpRequest request,
+					final HttpContext context) {
+
+				if(context.getAttribute(ATTRIBUTE_SENT) != null) {
+					context.setAttribute(ATTRIBUTE_SENT, System.nanoTime());
+				}
+			}
+		});
+
+		idleConnectionMonitor =
+			new IdleConnectionMonitor(connectionManager, idleTimeout);
+		idleConnectionMonitor.start();
+	}
+
+	/**
+	 * Creates the shared client with the given limits. If a client already
+	 * exists, it is shut down and replaced.
+	 *
+	 * @param maxTotal The maximum number of connections across all routes.
+	 *
+	 * @param maxPerRoute The maximum number of connections to one route.
+	 *
+	 * @param idleTimeout The number of milliseconds a connection may be idle
+	 * 					  before it is closed.
+	 *
+	 * @throws IllegalArgumentException One of the limits is not positive.
+	 *
+	 * @throws IllegalStateException The client has been shut down.
+	 */
+	public static synchronized void initialize(
+			final int maxTotal,
+			final int maxPerRoute,
+			final long idleTimeout) {
+
+		if(maxTotal <= 0) {
+			throw new IllegalArgumentException(
+				"The maximum number of connections must be positive.");
+		}
+		if(maxPerRoute <= 0) {
+			throw new IllegalArgumentException(
+				"The maximum number of connections per route must be positive.");
+		}
+		if(idleTimeout <= 0) {
+			throw new IllegalArgumentException(
+				"The idle connection timeout must be positive.");
+		}
+		if(terminated) {
+			throw new IllegalStateException(
+				"The RunKeeper HTTP client has been shut down.");
+		}
+
+		if(instance != null) {
+			instance.close();
+		}
+
+		LOGGER
+			.info(
+				"Creating the RunKeeper HTTP client with " +
+					maxTotal + " total connections and " +
+					maxPerRoute + " connections per route.");
+		instance = new RunKeeperHttpClient(maxTotal, maxPerRoute, idleTimeout);
+	}
+
+	/**
+	 * Configures the longest that any request waits. These apply to requests
+	 * made after this call.
+	 *
+	 * @param leaseTimeout The number of milliseconds to wait to lease a
+	 * 					   connection from the pool.
+	 *
+	 * @param connectTimeout The number of milliseconds to wait to connect to
+	 * 						 RunKeeper.
+	 *
+	 * @param socketTimeout The number of milliseconds to wait for each read
+	 * 						from the socket.
+	 *
+	 * @throws IllegalArgumentException One of the timeouts is not positive.
+	 */
+	public static void configureTimeouts(
+			final long leaseTimeout,
+			final int connectTimeout,
+			final int socketTimeout) {
+
+		if((leaseTimeout <= 0) || (connectTimeout <= 0) || (socketTimeout <= 0)) {
+			throw new IllegalArgumentException(
+				"The timeouts must be positive.");
+		}
+
+		RunKeeperHttpClient.leaseTimeout = leaseTimeout;
+		RunKeeperHttpClient.connectTimeout = connectTimeout;
+		RunKeeperHttpClient.socketTimeout = socketTimeout;
+	}
+
+	/**
+	 * Sets whether or not RunKeeper is asked to compress its responses. This
+	 * applies to requests made after this call.
+	 *
+	 * @param compression Whether or not to ask for compressed responses.
+	 */
+	public static void setCompression(final boolean compression) {
+		RunKeeperHttpClient.compression = compression;
+	}
+
+	/**
+	 * Returns whether or not RunKeeper is asked to compress its responses.
+	 *
+	 * @return Whether or not to ask for compressed responses.
+	 */
+	public static boolean isCompressionEnabled() {
+		return compression;
+	}
+
+	/**
+	 * Sets a request's lease, connect, and socket timeouts to the configured
+	 * ones or, if less time than that remains, to the time remaining until
+	 * the deadline.
+	 *
+	 * @param request The request that is about to be executed.
+	 *
+	 * @param deadline The request's deadline.
+	 */
+	public static void setTimeouts(
+			final HttpRequestBase request,
+			final RunKeeperDeadline deadline) {
+
+		// A timeout of zero means to wait forever, so always wait at least a
+		// millisecond.
+		long remaining = Math.max(1, deadline.remainingMillis());
+
+		HttpParams params = request.getParams();
+		HttpClientParams
+			.setConnectionManagerTimeout(
+				params,
+				Math.min(leaseTimeout, remaining));
+		HttpConnectionParams
+			.setConnectionTimeout(
+				params,
+				(int) Math.min(connectTimeout, remaining));
+		HttpConnectionParams
+			.setSoTimeout(params, (int) Math.min(socketTimeout, remaining));
+	}
+
+	/**
+	 * Returns whether or not an exception is a timeout that fired because it
+	 * was shortened by {@link #setTimeouts(HttpRequestBase, RunKeeperDeadline)}
+	 * to fit the request's deadline. Such a timeout means that we ran out of
+	 * time, not that RunKeeper was slow.
+	 *
+	 * @param request The request that failed.
+	 *
+	 * @param exception The exception it failed with.
+	 *
+	 * @return True if the timeout that fired was shorter than the configured
+	 * 		   one.
+	 */
+	public static boolean isClampedTimeout(
+			final HttpRequestBase request,
+			final IOException exception) {
+
+		HttpParams params = request.getParams();
+		if(exception instanceof ConnectionPoolTimeoutException) {
+			return
+				HttpClientParams.getConnectionManagerTimeout(params) <
+					leaseTimeout;
+		}
+		else if(exception instanceof ConnectTimeoutException) {
+			return
+				HttpConnectionParams.getConnectionTimeout(params) <
+					connectTimeout;
+		}
+		else if(exception instanceof SocketTimeoutException) {
+			return HttpConnectionParams.getSoTimeout(params) < socketTimeout;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the shared HTTP client, creating it with the default limits if
+	 * it has not yet been {@link #initialize(int, int, long) initialized}.
+	 *
+	 * @return The shared HTTP client.
+	 *
+	 * @throws IllegalStateException The client has been shut down.
+	 */
+	public static HttpClient getHttpClient() {
+		RunKeeperHttpClient current = instance;
+		if(current == null) {
+			current = getOrCreate();
+		}
+
+		return current.httpClient;
+	}
+
+	/**
+	 * Returns the shared client, creating it with the default limits if it
+	 * does not yet exist.
+	 *
+	 * @return The shared client.
+	 *
+	 * @throws IllegalStateException The client has been shut down.
+	 */
+	private static synchronized RunKeeperHttpClient getOrCreate() {
+		if(instance == null) {
+			initialize(
+				DEFAULT_MAX_TOTAL_CONNECTIONS,
+				DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+				DEFAULT_IDLE_CONNECTION_TIMEOUT);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Shuts down the shared client, closing all of its pooled connections.
+	 * The client cannot be requested or initialized after this, so that a
+	 * stopped web application does not start a new idle connection monitor.
+	 */
+	public static synchronized void shutdown() {
+		terminated = true;
+		if(instance != null) {
+			LOGGER.info("Shutting down the RunKeeper HTTP client.");
+
+			instance.close();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Stops the idle connection monitor and closes all of the connections.
+	 */
+	private void close() {
+		idleConnectionMonitor.shutdown();
+		connectionManager.shutdown();
+	}
+}
\ No newline at end of file
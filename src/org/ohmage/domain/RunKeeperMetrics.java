@@ -0,0 +1,450 @@
+package org.ohmage.domain;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * The metrics for one RunKeeper API. Every value is recorded without
+ * locking, so recording them costs little more than reading the clock.
+ * </p>
+ *
+ * <p>
+ * Each API has one instance, which may be published over JMX as an
+ * {@link RunKeeperMetricsMXBean MXBean} under its
+ * {@link #getObjectName() object name}.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperMetrics implements RunKeeperMetricsMXBean {
+	/**
+	 * The JMX domain the metrics are published under.
+	 */
+	public static final String JMX_DOMAIN = "org.ohmage.runkeeper";
+
+	/**
+	 * A snapshot of a latency histogram, in milliseconds.
+	 *
+	 * @author John Jenkins
+	 */
+	public static final class Latency {
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p95;
+		private final double p99;
+
+		/**
+		 * Creates a snapshot.
+		 *
+		 * @param count The number of values.
+		 *
+		 * @param mean The mean.
+		 *
+		 * @param p50 The 50th percentile.
+		 *
+		 * @param p95 The 95th percentile.
+		 *
+		 * @param p99 The 99th percentile.
+		 */
+		@ConstructorProperties({ "count", "mean", "p50", "p95", "p99" })
+		public Latency(
+				final long count,
+				final double mean,
+				final double p50,
+				final double p95,
+				final double p99) {
+
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p95 = p95;
+			this.p99 = p99;
+		}
+
+		/**
+		 * Takes a snapshot of a histogram of nanoseconds.
+		 *
+		 * @param histogram The histogram.
+		 *
+		 * @return The snapshot.
+		 */
+		private static Latency of(final RunKeeperHistogram histogram) {
+			return
+				new Latency(
+					histogram.getCount(),
+					histogram.getMean() / NANOS_PER_MILLI,
+					histogram.getPercentile(50) / NANOS_PER_MILLI,
+					histogram.getPercentile(95) / NANOS_PER_MILLI,
+					histogram.getPercentile(99) / NANOS_PER_MILLI);
+		}
+
+		/**
+		 * Returns the number of values.
+		 *
+		 * @return The number of values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean.
+		 *
+		 * @return The mean in milliseconds.
+		 */
+		public double getMean() {
+			return mean;
+		}
+
+		/**
+		 * Returns the 50th percentile.
+		 *
+		 * @return An upper bound of the 50th percentile in milliseconds.
+		 */
+		public double getP50() {
+			return p50;
+		}
+
+		/**
+		 * Returns the 95th percentile.
+		 *
+		 * @return An upper bound of the 95th percentile in milliseconds.
+		 */
+		public double getP95() {
+			return p95;
+		}
+
+		/**
+		 * Returns the 99th percentile.
+		 *
+		 * @return An upper bound of the 99th percentile in milliseconds.
+		 */
+		public double getP99() {
+			return p99;
+		}
+	}
+
+	/**
+	 * The number of nanoseconds in a millisecond.
+	 */
+	private static final double NANOS_PER_MILLI = 1000 * 1000;
+
+	private final String path;
+
+	private final RunKeeperHistogram upstreamLatency =
+		new RunKeeperHistogram();
+	private final RunKeeperHistogram parseTime = new RunKeeperHistogram();
+	private final RunKeeperHistogram serviceTime = new RunKeeperHistogram();
+	private final RunKeeperHistogram respondTime = new RunKeeperHistogram();
+	private final RunKeeperHistogram credentialLookupTime =
+		new RunKeeperHistogram();
+
+	private final AtomicLong status2xx = new AtomicLong();
+	private final AtomicLong status3xx = new AtomicLong();
+	private final AtomicLong status4xx = new AtomicLong();
+	private final AtomicLong status5xx = new AtomicLong();
+	private final AtomicLong ioErrors = new AtomicLong();
+
+	private final RunKeeperTransferStats transferStats =
+		new RunKeeperTransferStats();
+
+	private final AtomicLong recordsParsed = new AtomicLong();
+	private final AtomicLong recordsFiltered = new AtomicLong();
+	private final AtomicLong recordsReturned = new AtomicLong();
+
+	/**
+	 * Creates the metrics for an API.
+	 *
+	 * @param path The API's path.
+	 */
+	public RunKeeperMetrics(final String path) {
+		this.path = path;
+	}
+
+	/**
+	 * Returns the name these metrics are published under over JMX.
+	 *
+	 * @return The object name.
+	 *
+	 * @throws MalformedObjectNameException The path cannot be used in an
+	 * 										object name.
+	 */
+	public ObjectName getObjectName() throws MalformedObjectNameException {
+		return
+			new ObjectName(
+				JMX_DOMAIN + ":type=RunKeeperApi,path=" +
+					ObjectName.quote(path));
+	}
+
+	/**
+	 * Returns the counters for the bytes of the API's responses.
+	 *
+	 * @return The transfer counters.
+	 */
+	public RunKeeperTransferStats getTransferStats() {
+		return transferStats;
+	}
+
+	/**
+	 * Records how long RunKeeper took to respond to a call.
+	 *
+	 * @param nanos The number of nanoseconds until the response's headers
+	 * 				were received.
+	 */
+	public void recordUpstreamLatency(final long nanos) {
+		upstreamLatency.record(nanos);
+	}
+
+	/**
+	 * Records how long a response's body was being read and parsed.
+	 *
+	 * @param nanos The number of nanoseconds.
+	 */
+	public void recordParseTime(final long nanos) {
+		parseTime.record(nanos);
+	}
+
+	/**
+	 * Records how long a request took to be serviced.
+	 *
+	 * @param nanos The number of nanoseconds.
+	 */
+	public void recordServiceTime(final long nanos) {
+		serviceTime.record(nanos);
+	}
+
+	/**
+	 * Records how long a request took to write its response.
+	 *
+	 * @param nanos The number of nanoseconds.
+	 */
+	public void recordRespondTime(final long nanos) {
+		respondTime.record(nanos);
+	}
+
+	/**
+	 * Records how long a request took to look up the user's credentials.
+	 *
+	 * @param nanos The number of nanoseconds.
+	 */
+	public void recordCredentialLookupTime(final long nanos) {
+		credentialLookupTime.record(nanos);
+	}
+
+	/**
+	 * Records the status of one of RunKeeper's responses.
+	 *
+	 * @param statusCode The status code.
+	 */
+	public void recordStatus(final int statusCode) {
+		switch(statusCode / 100) {
+		case 2:
+			status2xx.incrementAndGet();
+			break;
+
+		case 3:
+			status3xx.incrementAndGet();
+			break;
+
+		case 4:
+			status4xx.incrementAndGet();
+			break;
+
+		case 5:
+			status5xx.incrementAndGet();
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Records a call that failed without a response.
+	 */
+	public void recordIoError() {
+		ioErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records records that were parsed from RunKeeper's responses.
+	 *
+	 * @param count The number of records.
+	 */
+	public void recordParsed(final long count) {
+		if(count > 0) {
+			recordsParsed.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Records parsed records that were discarded.
+	 *
+	 * @param count The number of records.
+	 */
+	public void recordFiltered(final long count) {
+		if(count > 0) {
+			recordsFiltered.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Records records that were written to a response.
+	 *
+	 * @param count The number of records.
+	 */
+	public void recordReturned(final long count) {
+		if(count > 0) {
+			recordsReturned.addAndGet(count);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getPath()
+	 */
+	@Override
+	public String getPath() {
+		return path;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getUpstreamLatency()
+	 */
+	@Override
+	public Latency getUpstreamLatency() {
+		return Latency.of(upstreamLatency);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getParseTime()
+	 */
+	@Override
+	public Latency getParseTime() {
+		return Latency.of(parseTime);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getServiceTime()
+	 */
+	@Override
+	public Latency getServiceTime() {
+		return Latency.of(serviceTime);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getRespondTime()
+	 */
+	@Override
+	public Latency getRespondTime() {
+		return Latency.of(respondTime);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getCredentialLookupTime()
+	 */
+	@Override
+	public Latency getCredentialLookupTime() {
+		return Latency.of(credentialLookupTime);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getStatus2xx()
+	 */
+	@Override
+	public long getStatus2xx() {
+		return status2xx.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getStatus3xx()
+	 */
+	@Override
+	public long getStatus3xx() {
+		return status3xx.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getStatus4xx()
+	 */
+	@Override
+	public long getStatus4xx() {
+		return status4xx.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getStatus5xx()
+	 */
+	@Override
+	public long getStatus5xx() {
+		return status5xx.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getIoErrors()
+	 */
+	@Override
+	public long getIoErrors() {
+		return ioErrors.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getBytesReceived()
+	 */
+	@Override
+	public long getBytesReceived() {
+		return transferStats.getCompressedBytes();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getBytesParsed()
+	 */
+	@Override
+	public long getBytesParsed() {
+		return transferStats.getDecompressedBytes();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getRecordsParsed()
+	 */
+	@Override
+	public long getRecordsParsed() {
+		return recordsParsed.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getRecordsFiltered()
+	 */
+	@Override
+	public long getRecordsFiltered() {
+		return recordsFiltered.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ohmage.domain.RunKeeperMetricsMXBean#getRecordsReturned()
+	 */
+	@Override
+	public long getRecordsReturned() {
+		return recordsReturned.get();
+	}
+}
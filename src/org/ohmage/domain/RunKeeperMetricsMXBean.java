@@ -0,0 +1,137 @@
+package org.ohmage.domain;
+
+import org.ohmage.domain.RunKeeperMetrics.Latency;
+
+/**
+ * <p>
+ * The management interface for the {@link RunKeeperMetrics metrics} of one
+ * RunKeeper API. All of the values are cumulative since the web application
+ * was started.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public interface RunKeeperMetricsMXBean {
+	/**
+	 * Returns the path of the API these metrics are for.
+	 *
+	 * @return The API's path.
+	 */
+	public String getPath();
+
+	/**
+	 * Returns how long RunKeeper took to respond to each call, until its
+	 * headers were received. This does not include time spent waiting for
+	 * the rate limit.
+	 *
+	 * @return The upstream latency.
+	 */
+	public Latency getUpstreamLatency();
+
+	/**
+	 * Returns how long each response's body was being read and parsed.
+	 *
+	 * @return The parse time.
+	 */
+	public Latency getParseTime();
+
+	/**
+	 * Returns how long each request took to be serviced, including all of
+	 * its calls to RunKeeper.
+	 *
+	 * @return The service time.
+	 */
+	public Latency getServiceTime();
+
+	/**
+	 * Returns how long each request took to write its response.
+	 *
+	 * @return The respond time.
+	 */
+	public Latency getRespondTime();
+
+	/**
+	 * Returns how long each request took to look up the user's RunKeeper
+	 * credentials.
+	 *
+	 * @return The credential lookup time.
+	 */
+	public Latency getCredentialLookupTime();
+
+	/**
+	 * Returns the number of calls RunKeeper answered with a "2xx" status.
+	 *
+	 * @return The number of successful calls.
+	 */
+	public long getStatus2xx();
+
+	/**
+	 * Returns the number of calls RunKeeper answered with a "3xx" status.
+	 *
+	 * @return The number of redirected or unmodified calls.
+	 */
+	public long getStatus3xx();
+
+	/**
+	 * Returns the number of calls RunKeeper answered with a "4xx" status.
+	 *
+	 * @return The number of calls that RunKeeper rejected.
+	 */
+	public long getStatus4xx();
+
+	/**
+	 * Returns the number of calls RunKeeper answered with a "5xx" status.
+	 *
+	 * @return The number of calls that failed in RunKeeper.
+	 */
+	public long getStatus5xx();
+
+	/**
+	 * Returns the number of calls that failed without a response.
+	 *
+	 * @return The number of calls that failed with an I/O error.
+	 */
+	public long getIoErrors();
+
+	/**
+	 * Returns the number of bytes received from RunKeeper.
+	 *
+	 * @return The number of bytes received, which were compressed if
+	 * 		   RunKeeper compressed them.
+	 *
+	 * @see RunKeeperTransferStats#getCompressedBytes()
+	 */
+	public long getBytesReceived();
+
+	/**
+	 * Returns the number of bytes parsed, after they were decompressed.
+	 *
+	 * @return The number of bytes parsed.
+	 *
+	 * @see RunKeeperTransferStats#getDecompressedBytes()
+	 */
+	public long getBytesParsed();
+
+	/**
+	 * Returns the number of records that were parsed from RunKeeper's
+	 * responses.
+	 *
+	 * @return The number of records parsed.
+	 */
+	public long getRecordsParsed();
+
+	/**
+	 * Returns the number of parsed records that were discarded, because they
+	 * were outside of the requested dates or before the requested window.
+	 *
+	 * @return The number of records filtered out.
+	 */
+	public long getRecordsFiltered();
+
+	/**
+	 * Returns the number of records that were written to responses.
+	 *
+	 * @return The number of records returned.
+	 */
+	public long getRecordsReturned();
+}
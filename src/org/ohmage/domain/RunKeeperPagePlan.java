@@ -0,0 +1,193 @@
+package org.ohmage.domain;
+
+/**
+ * <p>
+ * Maps a window of records, given as a number to skip and a number to
+ * return, onto RunKeeper's page-based API. RunKeeper only allows a page
+ * number and a page size, so the window must be covered by one or more
+ * consecutive pages of the same size.
+ * </p>
+ *
+ * <p>
+ * The plan uses the fewest pages possible without exceeding the maximum page
+ * size and, among those, the smallest page size, which minimizes the number
+ * of records that are fetched only to be thrown away.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperPagePlan {
+	/**
+	 * A plan that fetches nothing.
+	 */
+	private static final RunKeeperPagePlan EMPTY =
+		new RunKeeperPagePlan(0, 0, 0, 0, 0);
+
+	private final long firstPage;
+	private final long pageSize;
+	private final long numPages;
+	private final long offset;
+	private final long limit;
+
+	/**
+	 * Creates a new plan.
+	 *
+	 * @param firstPage The first page to request.
+	 *
+	 * @param pageSize The size of each page.
+	 *
+	 * @param numPages The number of consecutive pages to request.
+	 *
+	 * @param offset The number of records to skip in the first page.
+	 *
+	 * @param limit The number of records to keep after skipping.
+	 */
+	private RunKeeperPagePlan(
+			final long firstPage,
+			final long pageSize,
+			final long numPages,
+			final long offset,
+			final long limit) {
+
+		this.firstPage = firstPage;
+		this.pageSize = pageSize;
+		this.numPages = numPages;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * Creates the plan for a window of records.
+	 *
+	 * @param numToSkip The number of records to skip.
+	 *
+	 * @param numToReturn The number of records to return after skipping.
+	 *
+	 * @param maxPageSize The largest page size RunKeeper allows.
+	 *
+	 * @return The plan for the window.
+	 *
+	 * @throws IllegalArgumentException A parameter is negative or the
+	 * 									maximum page size is not positive.
+	 */
+	public static RunKeeperPagePlan create(
+			final long numToSkip,
+			final long numToReturn,
+			final long maxPageSize) {
+
+		if(numToSkip < 0) {
+			throw new IllegalArgumentException(
+				"The number to skip is negative.");
+		}
+		if(numToReturn < 0) {
+			throw new IllegalArgumentException(
+				"The number to return is negative.");
+		}
+		if(maxPageSize <= 0) {
+			throw new IllegalArgumentException(
+				"The maximum page size must be positive.");
+		}
+
+		if(numToReturn == 0) {
+			return EMPTY;
+		}
+
+		// The index of the last record we want.
+		long last = numToSkip + numToReturn - 1;
+
+		// Find the page size that needs the fewest pages and, for the same
+		// number of pages, fetches the fewest records. No page size smaller
+		// than the smallest possible one for the maximum number of pages can
+		// do better, so we only need to look at sizes from there up.
+		long bestSize = maxPageSize;
+		long bestPages = (last / maxPageSize) - (numToSkip / maxPageSize) + 1;
+		long minSize = Math.max(1, numToReturn / (bestPages + 1));
+		for(long size = minSize; size < maxPageSize; size++) {
+			long pages = (last / size) - (numToSkip / size) + 1;
+			if(	(pages < bestPages) ||
+				((pages == bestPages) && (size < bestSize))) {
+
+				bestSize = size;
+				bestPages = pages;
+			}
+		}
+
+		long firstPage = numToSkip / bestSize;
+		return
+			new RunKeeperPagePlan(
+				firstPage,
+				bestSize,
+				bestPages,
+				numToSkip - (firstPage * bestSize),
+				numToReturn);
+	}
+
+	/**
+	 * Returns whether or not this plan fetches nothing.
+	 *
+	 * @return True if no pages need to be requested.
+	 */
+	public boolean isEmpty() {
+		return numPages == 0;
+	}
+
+	/**
+	 * Returns the first page to request. Pages are numbered from zero.
+	 *
+	 * @return The first page to request.
+	 */
+	public long getFirstPage() {
+		return firstPage;
+	}
+
+	/**
+	 * Returns the size of every page.
+	 *
+	 * @return The page size.
+	 */
+	public long getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Returns the number of consecutive pages to request.
+	 *
+	 * @return The number of pages.
+	 */
+	public long getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Returns the number of records to discard from the start of the first
+	 * page.
+	 *
+	 * @return The number of records to discard.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the number of records to keep after the offset.
+	 *
+	 * @return The number of records to keep.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return
+			"page=" + firstPage +
+			", pageSize=" + pageSize +
+			", pages=" + numPages +
+			", offset=" + offset +
+			", limit=" + limit;
+	}
+}
\ No newline at end of file
@@ -1,24 +1,48 @@
 package org.ohmage.domain;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
@@ -26,11 +50,11 @@ import org.codehaus.jackson.JsonGenerator.Feature;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.io.SerializedString;
 import org.codehaus.jackson.map.MappingJsonFactory;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.ohmage.annotator.Annotator.ErrorCode;
 import org.ohmage.exception.DomainException;
 import org.ohmage.exception.InvalidRequestException;
@@ -50,12 +74,190 @@ import org.ohmage.request.omh.OmhReadRunKeeperRequest;
 public class RunKeeperPayloadId implements PayloadId {
 	public static final String DOMAIN_ID = "run_keeper";
 	
+	/**
+	 * The results of servicing a {@link RunKeeperApi} for a single request.
+	 * Each call to
+	 * {@link RunKeeperApi#service(String, DateTime, DateTime, long, long, RunKeeperDeadline)}
+	 * creates a new one, so, unlike the APIs, these may hold state.
+	 *
+	 * @author John Jenkins
+	 */
+	public abstract static class RunKeeperResult implements OmhReadResponder {
+		/**
+		 * Returns whether or not these results may be responded with by 
+		 * other requests, possibly at the same time. By default, this is 
+		 * true, so subclasses must not modify their results once they have
+		 * been returned from their API.
+		 * 
+		 * @return Whether or not these results may be shared.
+		 */
+		public boolean isShareable() {
+			return true;
+		}
+		
+		/**
+		 * Releases any resources held by these results for a request that 
+		 * will not be responded to, e.g. because it failed. By default, this
+		 * does nothing.
+		 */
+		public void release() {
+			// Do nothing.
+		}
+		
+		/**
+		 * The time, in milliseconds since the epoch, at which these results 
+		 * were retrieved from RunKeeper.
+		 */
+		private long retrieved = System.currentTimeMillis();
+		/**
+		 * Whether or not these results were already out of date when they
+		 * were created.
+		 */
+		private boolean stale = false;
+		
+		/**
+		 * Marks these results as having been retrieved earlier, e.g. from a 
+		 * local copy that could not be brought up to date, so that every 
+		 * data point is written as stale. This must be called before these
+		 * results are returned from their API.
+		 * 
+		 * @param retrieved The time, in milliseconds since the epoch, at 
+		 * 					which the data were retrieved from RunKeeper.
+		 */
+		protected void markStale(final long retrieved) {
+			this.retrieved = retrieved;
+			stale = true;
+		}
+		
+		/**
+		 * Returns when these results were retrieved if they were 
+		 * {@link #markStale(long) marked as stale}.
+		 * 
+		 * @return The time, in milliseconds since the epoch, at which these
+		 * 		   results were retrieved or -1 if they are fresh.
+		 */
+		private long getStaleSince() {
+			return stale ? retrieved : -1;
+		}
+		
+		/**
+		 * Writes these results as fresh data, unless they were 
+		 * {@link #markStale(long) marked as stale}.
+		 */
+		@Override
+		public final void respond(
+				final JsonGenerator generator,
+				final ColumnNode<String> columns)
+				throws JsonGenerationException, IOException, DomainException {
+			
+			respond(generator, columns, getStaleSince());
+		}
+		
+		/**
+		 * Writes these results.
+		 * 
+		 * @param generator The generator to write to.
+		 * 
+		 * @param columns The columns to write.
+		 * 
+		 * @param staleSince The time, in milliseconds since the epoch, at 
+		 * 					 which these results were retrieved if they are
+		 * 					 being served in place of fresh data or -1 if 
+		 * 					 they are fresh.
+		 * 
+		 * @see RunKeeperApi#writeStaleness(JsonGenerator, long, char[])
+		 */
+		protected abstract void respond(
+				final JsonGenerator generator,
+				final ColumnNode<String> columns,
+				final long staleSince)
+				throws JsonGenerationException, IOException, DomainException;
+		
+		/**
+		 * Returns a view of these results that marks every data point as 
+		 * stale, to be used when fresh data cannot be retrieved. These 
+		 * results must be {@link #isShareable() shareable}.
+		 * 
+		 * @return The stale view of these results.
+		 */
+		public RunKeeperResult asStale() {
+			return new StaleResult(this);
+		}
+		
+		/**
+		 * Results that were retrieved earlier and are being served in place 
+		 * of fresh data.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class StaleResult extends RunKeeperResult {
+			private final RunKeeperResult result;
+			
+			/**
+			 * Creates a stale view of some results.
+			 * 
+			 * @param result The results.
+			 */
+			private StaleResult(final RunKeeperResult result) {
+				this.result = result;
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * @see org.ohmage.request.omh.OmhReadResponder#getNumDataPoints()
+			 */
+			@Override
+			public long getNumDataPoints() {
+				return result.getNumDataPoints();
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperResult#respond(org.codehaus.jackson.JsonGenerator, org.ohmage.request.observer.StreamReadRequest.ColumnNode, long)
+			 */
+			@Override
+			protected void respond(
+					final JsonGenerator generator,
+					final ColumnNode<String> columns,
+					final long staleSince)
+					throws JsonGenerationException, IOException, DomainException {
+				
+				result.respond(generator, columns, result.retrieved);
+			}
+			
+			/**
+			 * Stale results are never stored, so they are never shared.
+			 */
+			@Override
+			public boolean isShareable() {
+				return false;
+			}
+			
+			/**
+			 * Returns itself, since it is already stale.
+			 */
+			@Override
+			public RunKeeperResult asStale() {
+				return this;
+			}
+		}
+	}
+	
 	/**
 	 * The superclass for all Health Graph APIs.
+	 * 
+	 * <p>
+	 * There is only one instance of each API, which is held by its
+	 * {@link RunKeeperApiFactory factory}. The APIs are immutable and hold no
+	 * per-request state, so they may be shared by every request. Instead, 
+	 * each call to 
+	 * {@link #service(String, DateTime, DateTime, long, long, RunKeeperDeadline)} returns its
+	 * own {@link RunKeeperResult}.
+	 * </p>
 	 *
 	 * @author John Jenkins
 	 */
-	public abstract static class RunKeeperApi implements OmhReadResponder {
+	public abstract static class RunKeeperApi {
 		/**
 		 * The base URL for the RunKeeper (Health Graph) APIs. This does not 
 		 * contain a path and one should be added from the 
@@ -81,22 +283,12 @@ public class RunKeeperPayloadId implements PayloadId {
 			DateTimeFormat.forPattern(DATE_TIME_REQUEST_FORMAT_STRING);
 		
 		/**
-		 * The pattern for parsing and writing the date and time value for the
-		 * user's birthday value. 
-		 * 
-		 * @see DATE_TIME_FORMATTER
+		 * The pattern for parsing and writing the date and time values in
+		 * RunKeeper's responses. These are parsed and written by the
+		 * {@link RunKeeperDateTimeCodec}.
 		 */
 		protected static final String DATE_TIME_RESPONSE_FORMAT_STRING = 
-			"E, d MMM y HH:mm:ss";
-		/**
-		 * The formatter that is used to parse and print the date time based on
-		 * the
-		 * {@link #DATE_TIME_RESPONSE_FORMAT_STRING response format string}. 
-		 * 
-		 * @see DATE_TIME_RESPONSE_FORMAT_STRING
-		 */
-		protected static final DateTimeFormatter DATE_TIME_RESPONSE_FORMATTER = 
-			DateTimeFormat.forPattern(DATE_TIME_RESPONSE_FORMAT_STRING);
+			RunKeeperDateTimeCodec.RUNKEEPER_FORMAT;
 		
 		/**
 		 * A JSON factory to be used by the sub-classes.
@@ -106,15 +298,73 @@ public class RunKeeperPayloadId implements PayloadId {
 				.configure(Feature.AUTO_CLOSE_JSON_CONTENT, true)
 				.configure(Feature.AUTO_CLOSE_TARGET, true);
 		
+		/**
+		 * The pre-encoded names of the fields shared by every data point.
+		 */
+		protected static final SerializedString FIELD_METADATA = 
+			new SerializedString("metadata");
+		protected static final SerializedString FIELD_ID =
+			new SerializedString("id");
+		protected static final SerializedString FIELD_TIMESTAMP =
+			new SerializedString("timestamp");
+		protected static final SerializedString FIELD_DATA =
+			new SerializedString("data");
+		/**
+		 * The pre-encoded names of the fields that mark a data point as 
+		 * stale.
+		 * 
+		 * @see #writeStaleness(JsonGenerator, long, char[])
+		 */
+		protected static final SerializedString FIELD_STALE =
+			new SerializedString("stale");
+		protected static final SerializedString FIELD_RETRIEVED =
+			new SerializedString("retrieved");
+		
+		/**
+		 * The rendered registry entries and Concordia schemas keyed by their
+		 * APIs' paths.
+		 */
+		private static final ConcurrentMap<String, RenderedDefinition> 
+			RENDERED_DEFINITIONS =
+				new ConcurrentHashMap<String, RenderedDefinition>();
+		
+		/**
+		 * An API's registry entry and Concordia schema rendered as JSON. 
+		 * These never change, so they are rendered once and then copied 
+		 * directly to each response.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class RenderedDefinition {
+			private final char[] registryEntry;
+			private final char[] concordia;
+			
+			/**
+			 * Creates a new rendered definition.
+			 * 
+			 * @param registryEntry The rendered registry entry.
+			 * 
+			 * @param concordia The rendered Concordia schema.
+			 */
+			private RenderedDefinition(
+					final char[] registryEntry,
+					final char[] concordia) {
+				
+				this.registryEntry = registryEntry;
+				this.concordia = concordia;
+			}
+		}
+		
 		/**
 		 * The path to be used with the base URL.
 		 */
 		private final String path;
 		
 		/**
-		 * A flag to indicate if this request has been made yet or not.
+		 * The metrics for this API, including the counters for the bytes of
+		 * its responses.
 		 */
-		private boolean madeRequest = false;
+		private final RunKeeperMetrics metrics;
 		
 		/**
 		 * Builds a base {@link RunKeeperApi RunKeeper API} with its default
@@ -135,6 +385,7 @@ public class RunKeeperPayloadId implements PayloadId {
 			}
 			
 			this.path = path;
+			metrics = new RunKeeperMetrics(path);
 		}
 		
 		/**
@@ -163,6 +414,24 @@ public class RunKeeperPayloadId implements PayloadId {
 		 * @return The path for this API.
 		 */
 		public abstract String getPath();
+		
+		/**
+		 * Returns the counters for the bytes of this API's responses.
+		 * 
+		 * @return The counters.
+		 */
+		public final RunKeeperTransferStats getTransferStats() {
+			return metrics.getTransferStats();
+		}
+		
+		/**
+		 * Returns the metrics for this API.
+		 * 
+		 * @return The metrics.
+		 */
+		public final RunKeeperMetrics getMetrics() {
+			return metrics;
+		}
 
 		/**
 		 * Returns whether or not the records at this API will have an ID 
@@ -189,7 +458,9 @@ public class RunKeeperPayloadId implements PayloadId {
 		public abstract boolean hasLocation();
 		
 		/**
-		 * Creates the registry entry for this RunKeeper API.
+		 * Writes the registry entry for this RunKeeper API. The entry is
+		 * {@link #prerender() rendered} once and then copied to the generator
+		 * as-is.
 		 * 
 		 * @param generator The generator to use to write the definition.
 		 * 
@@ -202,6 +473,125 @@ public class RunKeeperPayloadId implements PayloadId {
 				final JsonGenerator generator)
 				throws JsonGenerationException, IOException {
 			
+			char[] registryEntry = getRenderedDefinition().registryEntry;
+			generator.writeRawValue(registryEntry, 0, registryEntry.length);
+		}
+		
+		/**
+		 * Writes the Concordia schema for this RunKeeper API. The schema is
+		 * {@link #prerender() rendered} once and then copied to the generator
+		 * as-is.
+		 * 
+		 * @param generator The generator to use to write the definition.
+		 * 
+		 * @throws JsonGenerationException There was an error creating the 
+		 * 								   JSON.
+		 * 
+		 * @throws IOException There was an error writing to the generator.
+		 */
+		public void writeConcordia(
+				final JsonGenerator generator)
+				throws JsonGenerationException, IOException {
+			
+			char[] concordia = getRenderedDefinition().concordia;
+			generator.writeRawValue(concordia, 0, concordia.length);
+		}
+		
+		/**
+		 * Renders the registry entries and Concordia schemas of every API so
+		 * that they may be written without being regenerated. Any API that
+		 * has not been rendered when it is first written is rendered then.
+		 * 
+		 * @throws DomainException An API could not be rendered.
+		 */
+		public static void prerender() throws DomainException {
+			for(RunKeeperApiFactory factory : RunKeeperApiFactory.values()) {
+				RunKeeperApi api = factory.api;
+				try {
+					RENDERED_DEFINITIONS
+						.put(api.getPath(), api.renderDefinition());
+				}
+				catch(IOException e) {
+					throw new DomainException(
+						"The definition could not be rendered: " + 
+							api.getPath(),
+						e);
+				}
+			}
+		}
+		
+		/**
+		 * Returns the metrics of every API.
+		 * 
+		 * @return The metrics, one per API.
+		 */
+		public static List<RunKeeperMetrics> getAllMetrics() {
+			RunKeeperApiFactory[] factories = RunKeeperApiFactory.values();
+			List<RunKeeperMetrics> result = 
+				new ArrayList<RunKeeperMetrics>(factories.length);
+			for(RunKeeperApiFactory factory : factories) {
+				result.add(factory.api.getMetrics());
+			}
+			return result;
+		}
+		
+		/**
+		 * Returns the rendered definition for this API, rendering it if it 
+		 * has not been already.
+		 * 
+		 * @return The rendered definition.
+		 * 
+		 * @throws IOException The definition could not be rendered.
+		 */
+		private RenderedDefinition getRenderedDefinition() throws IOException {
+			RenderedDefinition definition = RENDERED_DEFINITIONS.get(path);
+			if(definition == null) {
+				definition = renderDefinition();
+				RENDERED_DEFINITIONS.putIfAbsent(path, definition);
+			}
+			
+			return definition;
+		}
+		
+		/**
+		 * Renders this API's registry entry and Concordia schema.
+		 * 
+		 * @return The rendered definition.
+		 * 
+		 * @throws IOException The definition could not be rendered.
+		 */
+		private RenderedDefinition renderDefinition() throws IOException {
+			StringWriter registryEntry = new StringWriter();
+			JsonGenerator generator = 
+				JSON_FACTORY.createJsonGenerator(registryEntry);
+			renderRegistryEntry(generator);
+			generator.close();
+			
+			StringWriter concordia = new StringWriter();
+			generator = JSON_FACTORY.createJsonGenerator(concordia);
+			toConcordia(generator);
+			generator.close();
+			
+			return 
+				new RenderedDefinition(
+					registryEntry.toString().toCharArray(),
+					concordia.toString().toCharArray());
+		}
+		
+		/**
+		 * Generates the registry entry for this RunKeeper API.
+		 * 
+		 * @param generator The generator to use to write the definition.
+		 * 
+		 * @throws JsonGenerationException There was an error creating the 
+		 * 								   JSON.
+		 * 
+		 * @throws IOException There was an error writing to the generator.
+		 */
+		private void renderRegistryEntry(
+				final JsonGenerator generator)
+				throws JsonGenerationException, IOException {
+			
 			// RunKeeper definition
 			generator.writeStartObject();
 			
@@ -262,7 +652,7 @@ public class RunKeeperPayloadId implements PayloadId {
 			throws JsonGenerationException, IOException;
 		
 		/**
-		 * Makes the request to the API and stores the received data.
+		 * Makes the request to the API and returns the received data.
 		 * 
 		 * @param bearer The "Bearer" token generated by RunKeeper.
 		 * 
@@ -280,31 +670,46 @@ public class RunKeeperPayloadId implements PayloadId {
 		 * 					  be returned. This is processed after records have
 		 * 					  been skipped.
 		 * 
+		 * @param deadline The deadline by which the request must finish. 
+		 * 				   Every call to RunKeeper waits no longer than this.
+		 * 
+		 * @return The results of this request.
+		 * 
 		 * @throws DomainException There was an error making the call.
 		 */
-		public final void service(
+		public final RunKeeperResult service(
 				final String bearer,
 				final DateTime startDate,
 				final DateTime endDate,
 				final long numToSkip,
-				final long numToReturn)
+				final long numToReturn,
+				final RunKeeperDeadline deadline)
 				throws DomainException {
 			
-			if(madeRequest) {
-				return;
+			long start = System.nanoTime();
+			try {
+				return 
+					makeRequest(
+						bearer,
+						startDate,
+						endDate,
+						numToSkip,
+						numToReturn,
+						deadline);
+			}
+			finally {
+				metrics.recordServiceTime(System.nanoTime() - start);
 			}
-			
-			makeRequest(bearer, startDate, endDate, numToSkip, numToReturn);
-			
-			madeRequest = true;
 		}
 		
 		/**
-		 * Makes the request to the API and stores the received data. This will
-		 * be called while the
-		 * {@link #service(String, DateTime, DateTime, long, long)} call is
+		 * Makes the request to the API and returns the received data. This 
+		 * will be called while the
+		 * {@link #service(String, DateTime, DateTime, long, long, RunKeeperDeadline)} call is
 		 * being made. This allows the superclass to do some work before the
-		 * subclasses make their call.
+		 * subclasses make their call. Implementations must keep all of the
+		 * request's state in the returned results, because the API is shared
+		 * by every request.
 		 * 
 		 * @param bearer The "Bearer" token generated by RunKeeper.
 		 * 
@@ -322,31 +727,80 @@ public class RunKeeperPayloadId implements PayloadId {
 		 * 					  be returned. This is processed after records have
 		 * 					  been skipped.
 		 * 
+		 * @param deadline The deadline by which the request must finish. 
+		 * 				   Every call to RunKeeper waits no longer than this.
+		 * 
+		 * @return The results of this request.
+		 * 
 		 * @throws DomainException There was an error making the call.
 		 */
-		protected abstract void makeRequest(
+		protected abstract RunKeeperResult makeRequest(
 			final String bearer,
 			final DateTime startDate,
 			final DateTime endDate,
 			final long numToSkip,
-			final long numToReturn)
+			final long numToReturn,
+			final RunKeeperDeadline deadline)
 			throws DomainException;
 		
 		/**
-		 * Builds and makes the HTTP GET request. This will return the data as
-		 * a string.
+		 * Builds and makes the HTTP GET request. The body of the response is
+		 * not read; instead, a parser is bound directly to the connection's
+		 * stream and returned for the caller to read from.
+		 * 
+		 * The caller must finish the returned response with either
+		 * {@link RunKeeperResponse#close()} or
+		 * {@link RunKeeperResponse#abort()} or the connection will never be
+		 * returned to the pool.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param params The HTTP parameters to add to the request.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The open response from RunKeeper.
+		 * 
+		 * @throws DomainException There was a problem making the request or
+		 * 						   the server returned an error.
+		 * 
+		 * @see #openRequest(String, Map, Map, RunKeeperDeadline)
+		 */
+		protected final RunKeeperResponse openRequest(
+				final String bearer,
+				final Map<String, String> params,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			return openRequest(bearer, params, null, deadline);
+		}
+		
+		/**
+		 * Builds and makes the HTTP GET request with additional headers. This
+		 * is identical to {@link #openRequest(String, Map, RunKeeperDeadline)} except that a 
+		 * "304 Not Modified" response is not an error. Instead, it is 
+		 * returned without a parser, and it should simply be closed.
 		 * 
 		 * @param bearer The "Bearer" token generated by RunKeeper.
 		 * 
 		 * @param params The HTTP parameters to add to the request.
 		 * 
-		 * @return The response from RunKeeper as a String.
+		 * @param headers Additional headers to add to the request, e.g. 
+		 * 				  validators for a conditional request. This may be 
+		 * 				  null.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
 		 * 
-		 * @throws DomainException There was a problem making the request.
+		 * @return The open response from RunKeeper.
+		 * 
+		 * @throws DomainException There was a problem making the request or
+		 * 						   the server returned an error.
 		 */
-		protected final String makeRequest(
+		protected final RunKeeperResponse openRequest(
 				final String bearer,
-				final Map<String, String> params)
+				final Map<String, String> params,
+				final Map<String, String> headers,
+				final RunKeeperDeadline deadline)
 				throws DomainException {
 
 			StringBuilder uriBuilder = new StringBuilder(getUri().toString());
@@ -379,55 +833,678 @@ public class RunKeeperPayloadId implements PayloadId {
 				}
 			}
 			
-			HttpGet httpGet = new HttpGet(uriBuilder.toString());
-			httpGet.addHeader("Authorization", "Bearer " + bearer);
+			return openUri(bearer, uriBuilder.toString(), headers, deadline);
+		}
+		
+		/**
+		 * Makes the HTTP GET request for a "next" (or "previous") link that 
+		 * was given in one of RunKeeper's responses. These links are relative
+		 * to the {@link #BASE_URL base URL} and already contain all of the 
+		 * parameters that were given to the original request.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param link The link from RunKeeper's response.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The open response from RunKeeper.
+		 * 
+		 * @throws DomainException The link was invalid, there was a problem
+		 * 						   making the request, or the server returned
+		 * 						   an error.
+		 * 
+		 * @see #openRequest(String, Map, RunKeeperDeadline)
+		 */
+		protected final RunKeeperResponse openLink(
+				final String bearer,
+				final String link,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
 			
-			HttpClient httpClient = new DefaultHttpClient();
-			HttpResponse httpResponse;
+			String uri;
 			try {
-				httpResponse = httpClient.execute(httpGet);
+				uri = (new URI(BASE_URL)).resolve(link).toString();
 			}
-			catch(ClientProtocolException e) {
-				throw new DomainException("There was an HTTP error.", e);
+			catch(URISyntaxException e) {
+				throw new DomainException("The base URL is invalid.", e);
 			}
-			catch(IOException e) {
-				throw new DomainException(
-					"There was an error communicating with the server.",
-					e);
+			catch(IllegalArgumentException e) {
+				throw new DomainException("The link is invalid: " + link, e);
 			}
 			
-			try {
-				return 
-					(new BasicResponseHandler()).handleResponse(httpResponse);
-			}
-			catch(HttpResponseException e) {
-				throw new DomainException(
-					"The server returned an error.",
-					e);
-			}
-			catch(IOException e) {
-				throw new DomainException(
-					"There was an error commmunicating with the server.",
-					e);
-			}
+			return openUri(bearer, uri, null, deadline);
 		}
-	};
-	
-	/**
-	 * A {@link RunKeeperApi} for the user's profile.
-	 *
-	 * @author John Jenkins
-	 */
-	public static class ProfileApi extends RunKeeperApi {
-		/**
-		 * The URL's path to the profile. Should be used in conjunction with 
-		 * the {@link #BASE_URL base URL}.
-		 */
-		private static final String PATH = "profile";
-
+		
 		/**
-		 * The 'birthday' parameter field name.
-		 */
+		 * Makes the HTTP GET request to a fully-qualified URI. If it fails
+		 * with a transient error, it is retried as allowed by the 
+		 * {@link RunKeeperRetryPolicy retry policy}.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param uri The URI including any parameters.
+		 * 
+		 * @param headers Additional headers to add to the request. This may be
+		 * 				  null.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The open response from RunKeeper.
+		 * 
+		 * @throws DomainException There was a problem making the request or
+		 * 						   the server returned an error.
+		 * 
+		 * @see #openRequest(String, Map, Map, RunKeeperDeadline)
+		 */
+		private RunKeeperResponse openUri(
+				final String bearer,
+				final String uri,
+				final Map<String, String> headers,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			int retries = 0;
+			while(true) {
+				// Don't start a call that could not finish in time.
+				deadline.check();
+				
+				Exchange exchange;
+				try {
+					exchange = exchange(bearer, uri, headers, deadline);
+				}
+				catch(ClientProtocolException e) {
+					metrics.recordIoError();
+					throw new DomainException("There was an HTTP error.", e);
+				}
+				catch(IOException e) {
+					metrics.recordIoError();
+					if(	RunKeeperRetryPolicy.canRetry(retries) &&
+						RunKeeperRetryPolicy.isRetryable(e)) {
+						
+						RunKeeperRetryPolicy
+							.backoff(retries++, e.toString(), deadline);
+						continue;
+					}
+					
+					throw new DomainException(
+						"There was an error communicating with the server.",
+						e);
+				}
+				
+				// If RunKeeper's error is likely to be transient, release the
+				// connection and try again.
+				int statusCode = 
+					exchange.response.getStatusLine().getStatusCode();
+				metrics.recordUpstreamLatency(exchange.elapsed);
+				metrics.recordStatus(statusCode);
+				RunKeeperTiming timing = deadline.getTiming();
+				timing.add(RunKeeperTiming.Phase.LEASE, exchange.leased);
+				timing
+					.add(
+						RunKeeperTiming.Phase.UPSTREAM,
+						exchange.elapsed - exchange.leased);
+				if(	RunKeeperRetryPolicy.isRetryable(statusCode) &&
+					RunKeeperRetryPolicy.canRetry(retries)) {
+					
+					exchange.release();
+					RunKeeperRetryPolicy
+						.backoff(
+							retries++,
+							"RunKeeper responded with " + statusCode,
+							deadline);
+					continue;
+				}
+				
+				return open(exchange, metrics, timing);
+			}
+		}
+		
+		/**
+		 * A request to RunKeeper and the response it received, whose body
+		 * has not been read yet.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class Exchange {
+			/**
+			 * Marks a hedged call whose original request failed before 
+			 * either request was answered.
+			 */
+			private static final Exchange NONE = 
+				new Exchange(null, null, 0, 0);
+			
+			private final HttpGet request;
+			private final HttpResponse response;
+			private final long elapsed;
+			private final long leased;
+			
+			/**
+			 * Creates a new exchange.
+			 * 
+			 * @param request The request.
+			 * 
+			 * @param response The response.
+			 * 
+			 * @param elapsed The number of nanoseconds RunKeeper took to 
+			 * 				  respond.
+			 * 
+			 * @param leased The number of those nanoseconds that were spent
+			 * 				 leasing and connecting a connection or zero if
+			 * 				 that was not measured.
+			 */
+			private Exchange(
+					final HttpGet request,
+					final HttpResponse response,
+					final long elapsed,
+					final long leased) {
+				
+				this.request = request;
+				this.response = response;
+				this.elapsed = elapsed;
+				this.leased = leased;
+			}
+			
+			/**
+			 * Reads and discards the body so that the connection may be
+			 * reused. If that fails, the connection is discarded instead.
+			 */
+			private void release() {
+				try {
+					EntityUtils.consume(response.getEntity());
+				}
+				catch(IOException e) {
+					request.abort();
+				}
+			}
+			
+			/**
+			 * Discards the connection without reading the body.
+			 */
+			private void abort() {
+				request.abort();
+			}
+		}
+		
+		/**
+		 * Sends a request to RunKeeper, hedging it if the
+		 * {@link RunKeeperRetryPolicy retry policy} says to.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param uri The URI including any parameters.
+		 * 
+		 * @param headers Additional headers to add to the request. This may be
+		 * 				  null.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The request and its response.
+		 * 
+		 * @throws DomainException The request was cancelled, RunKeeper is
+		 * 						   unavailable, or the request could not be
+		 * 						   made without exceeding RunKeeper's rate
+		 * 						   limit or the deadline.
+		 * 
+		 * @throws IOException There was an error communicating with the
+		 * 					   server.
+		 */
+		private static Exchange exchange(
+				final String bearer,
+				final String uri,
+				final Map<String, String> headers,
+				final RunKeeperDeadline deadline)
+				throws DomainException, IOException {
+			
+			// Don't hedge if the second request could not be sent before the
+			// deadline.
+			long hedgeDelay = RunKeeperRetryPolicy.getHedgeDelay();
+			if((hedgeDelay < 0) || (hedgeDelay >= deadline.remainingNanos())) {
+				return 
+					send(bearer, createRequest(bearer, uri, headers), deadline);
+			}
+			
+			return sendHedged(bearer, uri, headers, deadline, hedgeDelay);
+		}
+		
+		/**
+		 * Sends a request on this thread and, if it has not been answered
+		 * within the delay, sends an identical request in the background.
+		 * Whichever is answered first is used and the other is aborted. The
+		 * original request is sent on this thread, so that it is made even
+		 * if all of the background threads are busy.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param uri The URI including any parameters.
+		 * 
+		 * @param headers Additional headers to add to the request. This may be
+		 * 				  null.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @param hedgeDelay The number of nanoseconds to wait before sending
+		 * 					 the second request.
+		 * 
+		 * @return The request that was answered first and its response.
+		 * 
+		 * @throws DomainException The original request was cancelled or could
+		 * 						   not be made without exceeding RunKeeper's
+		 * 						   rate limit, and the second request was not
+		 * 						   answered first.
+		 * 
+		 * @throws IOException There was an error communicating with the
+		 * 					   server for the original request, and the 
+		 * 					   second request was not answered first.
+		 */
+		private static Exchange sendHedged(
+				final String bearer,
+				final String uri,
+				final Map<String, String> headers,
+				final RunKeeperDeadline deadline,
+				final long hedgeDelay)
+				throws DomainException, IOException {
+			
+			final HttpGet original = createRequest(bearer, uri, headers);
+			final AtomicReference<Exchange> winner = 
+				new AtomicReference<Exchange>();
+			
+			Future<Exchange> hedge =
+				RunKeeperExecutor.submitAfter(
+					new Callable<Exchange>() {
+						/**
+						 * Sends the second request and, if it is answered
+						 * first, aborts the original one.
+						 */
+						@Override
+						public Exchange call()
+								throws DomainException, IOException {
+							
+							RunKeeperRetryPolicy.recordHedge();
+							Exchange exchange =
+								send(
+									bearer,
+									createRequest(bearer, uri, headers),
+									deadline);
+							
+							// The caller takes over this request, so 
+							// cancelling this task must no longer abort it.
+							RunKeeperExecutor.setCurrentRequest(null);
+							if(! winner.compareAndSet(null, exchange)) {
+								exchange.abort();
+								return null;
+							}
+							
+							RunKeeperRetryPolicy.recordHedgeWin();
+							original.abort();
+							return exchange;
+						}
+					},
+					hedgeDelay);
+			
+			try {
+				Exchange exchange = send(bearer, original, deadline);
+				if(winner.compareAndSet(null, exchange)) {
+					return exchange;
+				}
+				
+				// The second request was answered while this one was 
+				// finishing.
+				exchange.abort();
+			}
+			catch(IOException e) {
+				// Unless the second request was answered first, which aborts
+				// this one, give up on both.
+				if(winner.compareAndSet(null, Exchange.NONE)) {
+					throw e;
+				}
+			}
+			catch(DomainException e) {
+				if(winner.compareAndSet(null, Exchange.NONE)) {
+					throw e;
+				}
+			}
+			finally {
+				hedge.cancel(true);
+			}
+			
+			// The second request was answered first, so take it over such 
+			// that cancelling this thread's task aborts it.
+			Exchange exchange = winner.get();
+			if(RunKeeperExecutor.setCurrentRequest(exchange.request)) {
+				exchange.abort();
+				throw new DomainException("The request was cancelled.");
+			}
+			return exchange;
+		}
+		
+		/**
+		 * Creates a request to RunKeeper.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param uri The URI including any parameters.
+		 * 
+		 * @param headers Additional headers to add to the request. This may be
+		 * 				  null.
+		 * 
+		 * @return The request.
+		 */
+		private static HttpGet createRequest(
+				final String bearer,
+				final String uri,
+				final Map<String, String> headers) {
+			
+			HttpGet httpGet = new HttpGet(uri);
+			httpGet.addHeader("Authorization", "Bearer " + bearer);
+			if(RunKeeperHttpClient.isCompressionEnabled()) {
+				httpGet
+					.addHeader(
+						HttpHeaders.ACCEPT_ENCODING,
+						RunKeeperResponse.ACCEPT_ENCODING);
+			}
+			if(headers != null) {
+				for(String header : headers.keySet()) {
+					httpGet.addHeader(header, headers.get(header));
+				}
+			}
+			
+			return httpGet;
+		}
+		
+		/**
+		 * Sends a request to RunKeeper once it is this request's turn under
+		 * the rate limit.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param httpGet The request.
+		 * 
+		 * @param deadline The deadline by which the request must finish. The
+		 * 				   request's timeouts are shortened to fit within it.
+		 * 
+		 * @return The request and its response.
+		 * 
+		 * @throws DomainException The request was cancelled, RunKeeper is
+		 * 						   unavailable, or the request could not be
+		 * 						   made without exceeding RunKeeper's rate
+		 * 						   limit or the deadline.
+		 * 
+		 * @throws IOException There was an error communicating with the
+		 * 					   server.
+		 */
+		private static Exchange send(
+				final String bearer,
+				final HttpGet httpGet,
+				final RunKeeperDeadline deadline)
+				throws DomainException, IOException {
+			
+			// Fail fast if RunKeeper is known to be unavailable.
+			RunKeeperCircuitBreaker.Permit permit = 
+				RunKeeperCircuitBreaker.acquire();
+			
+			// From here on, the permit must be given back if the call does 
+			// not get far enough to record its outcome, however it fails.
+			HttpResponse httpResponse;
+			HttpContext context = null;
+			long start;
+			long elapsed;
+			boolean recorded = false;
+			try {
+				// Wait for our turn so that we stay under RunKeeper's limits.
+				RunKeeperRateLimiter.acquire(bearer, deadline);
+				
+				// Wait no longer than the time that remains.
+				RunKeeperHttpClient.setTimeouts(httpGet, deadline);
+				
+				// If we are running in the background, register the request 
+				// so that cancelling the task aborts it.
+				if(RunKeeperExecutor.setCurrentRequest(httpGet)) {
+					throw new DomainException(
+						"The request was cancelled before it was made.");
+				}
+				
+				// Use the shared client.
+				HttpClient httpClient = RunKeeperHttpClient.getHttpClient();
+				start = System.nanoTime();
+				
+				// If the read is being timed, have the client record when the
+				// request is sent, which separates leasing a connection from 
+				// waiting for RunKeeper.
+				if(deadline.getTiming().isEnabled()) {
+					context = new BasicHttpContext();
+					context
+						.setAttribute(RunKeeperHttpClient.ATTRIBUTE_SENT, start);
+				}
+				try {
+					httpResponse = httpClient.execute(httpGet, context);
+				}
+				catch(IOException e) {
+					// If we aborted the request ourselves, e.g. because it 
+					// was cancelled or lost to a hedge, it says nothing about
+					// RunKeeper's health. Neither does a timeout that was 
+					// shortened to fit our deadline.
+					if((! httpGet.isAborted()) &&
+						(! RunKeeperHttpClient.isClampedTimeout(httpGet, e))) {
+						permit.failed(System.nanoTime() - start);
+						recorded = true;
+					}
+					httpGet.abort();
+					throw e;
+				}
+				elapsed = System.nanoTime() - start;
+				RunKeeperRetryPolicy.recordResponseTime(elapsed);
+				
+				// Let the breaker know how RunKeeper is doing. Client errors 
+				// are our fault, not RunKeeper's.
+				if(httpResponse.getStatusLine().getStatusCode() >= 500) {
+					permit.failed(elapsed);
+				}
+				else {
+					permit.succeeded(elapsed);
+				}
+				recorded = true;
+			}
+			finally {
+				if(! recorded) {
+					permit.release();
+				}
+			}
+			
+			// Let the limiter know if RunKeeper wants us to slow down.
+			Header retryAfter = 
+				httpResponse.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			RunKeeperRateLimiter
+				.onResponse(
+					bearer,
+					httpResponse.getStatusLine().getStatusCode(),
+					(retryAfter == null) ? null : retryAfter.getValue());
+			
+			long leased = 0;
+			if(context != null) {
+				leased = 
+					(Long) context.getAttribute(
+						RunKeeperHttpClient.ATTRIBUTE_SENT) - start;
+			}
+			
+			return new Exchange(httpGet, httpResponse, elapsed, leased);
+		}
+		
+		/**
+		 * Hands off the response to the caller, unless RunKeeper returned an
+		 * error.
+		 * 
+		 * @param exchange The request and its response.
+		 * 
+		 * @param metrics The metrics for the API.
+		 * 
+		 * @param timing The timing of the read.
+		 * 
+		 * @return The open response from RunKeeper.
+		 * 
+		 * @throws DomainException The server returned an error or its 
+		 * 						   response could not be read.
+		 */
+		private static RunKeeperResponse open(
+				final Exchange exchange,
+				final RunKeeperMetrics metrics,
+				final RunKeeperTiming timing)
+				throws DomainException {
+			
+			HttpGet httpGet = exchange.request;
+			HttpResponse httpResponse = exchange.response;
+			
+			// From here on, the connection must be released if we do not 
+			// hand it off to the caller.
+			HttpEntity entity = httpResponse.getEntity();
+			boolean handedOff = false;
+			try {
+				StatusLine statusLine = httpResponse.getStatusLine();
+				if(statusLine.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+					RunKeeperResponse response =
+						new RunKeeperResponse(
+							httpGet,
+							httpResponse,
+							metrics,
+							timing);
+					handedOff = true;
+					return response;
+				}
+				if(statusLine.getStatusCode() >= 300) {
+					throw new DomainException(
+						"The server returned an error.",
+						new HttpResponseException(
+							statusLine.getStatusCode(),
+							statusLine.getReasonPhrase()));
+				}
+				if(entity == null) {
+					throw new DomainException(
+						"The server returned an empty response.");
+				}
+				
+				// Bind the parser to the body, decompressing it on the way.
+				RunKeeperResponse response =
+					new RunKeeperResponse(
+						httpGet,
+						httpResponse,
+						JSON_FACTORY,
+						metrics,
+						timing);
+				handedOff = true;
+				return response;
+			}
+			catch(IOException e) {
+				throw new DomainException(
+					"There was an error commmunicating with the server.",
+					e);
+			}
+			finally {
+				if(! handedOff) {
+					try {
+						EntityUtils.consume(entity);
+					}
+					catch(IOException e) {
+						httpGet.abort();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Compiles the requested columns into a mask with one bit per field,
+		 * so that writing each record only needs to test bits rather than 
+		 * search the column tree.
+		 * 
+		 * @param columns The requested columns. If this is null or a leaf, 
+		 * 				  all of the fields are requested.
+		 * 
+		 * @param fields The names of the fields, where the field at index 
+		 * 				 'i' is given the bit '1 << i'.
+		 * 
+		 * @return The mask of the requested fields.
+		 */
+		protected static int compileColumns(
+				final ColumnNode<String> columns,
+				final String[] fields) {
+			
+			if((columns == null) || columns.isLeaf()) {
+				return (1 << fields.length) - 1;
+			}
+			
+			int mask = 0;
+			for(int i = 0; i < fields.length; i++) {
+				if(columns.hasChild(fields[i])) {
+					mask |= 1 << i;
+				}
+			}
+			return mask;
+		}
+		
+		/**
+		 * Marks a data point as stale by writing the "stale" and "retrieved"
+		 * fields into its metadata.
+		 * 
+		 * @param generator The generator to write to, positioned inside the
+		 * 					metadata object.
+		 * 
+		 * @param staleSince The time, in milliseconds since the epoch, at 
+		 * 					 which the data point was retrieved.
+		 * 
+		 * @param dateTimeBuffer The buffer to print the date-time to.
+		 * 
+		 * @throws JsonGenerationException There was an error creating the 
+		 * 								   JSON.
+		 * 
+		 * @throws IOException There was an error writing to the generator.
+		 */
+		protected static void writeStaleness(
+				final JsonGenerator generator,
+				final long staleSince,
+				final char[] dateTimeBuffer)
+				throws JsonGenerationException, IOException {
+			
+			generator.writeFieldName(FIELD_STALE);
+			generator.writeBoolean(true);
+			
+			generator.writeFieldName(FIELD_RETRIEVED);
+			generator
+				.writeString(
+					dateTimeBuffer,
+					0,
+					RunKeeperDateTimeCodec.printIso(staleSince, dateTimeBuffer));
+		}
+		
+		/**
+		 * Returns whether or not the exception was caused by RunKeeper
+		 * rejecting the request's credentials.
+		 * 
+		 * @param e The exception thrown from one of the request methods.
+		 * 
+		 * @return True if RunKeeper responded with "401 Unauthorized".
+		 */
+		public static boolean isUnauthorized(final DomainException e) {
+			Throwable cause = e.getCause();
+			return
+				(cause instanceof HttpResponseException) &&
+				(((HttpResponseException) cause).getStatusCode() == 401);
+		}
+	};
+	
+	/**
+	 * A {@link RunKeeperApi} for the user's profile.
+	 *
+	 * @author John Jenkins
+	 */
+	public static class ProfileApi extends RunKeeperApi {
+		/**
+		 * The URL's path to the profile. Should be used in conjunction with 
+		 * the {@link #BASE_URL base URL}.
+		 */
+		private static final String PATH = "profile";
+
+		/**
+		 * The 'birthday' parameter field name.
+		 */
 		private static final String JSON_KEY_BIRTHDAY = "birthday";
 		/**
 		 * The 'location' parameter field name.
@@ -454,31 +1531,265 @@ public class RunKeeperPayloadId implements PayloadId {
 		 */
 		private static final String JSON_KEY_PROFILE = "profile";
 		
-		private DateTime birthday = null;
-		private String location = null;
-		private String name = null;
-		private String elite = null;
-		private String gender = null;
-		private String athleteType = null;
-		private String profile = null;
-		private String userId = null;
+		/**
+		 * The data fields in the order they are written. Each field's bit in
+		 * a {@link #compileColumns(ColumnNode, String[]) column mask} is
+		 * given by its index.
+		 */
+		private static final String[] COLUMNS = 
+			new String[] {
+				JSON_KEY_BIRTHDAY,
+				JSON_KEY_LOCATION,
+				JSON_KEY_NAME,
+				JSON_KEY_ELITE,
+				JSON_KEY_GENDER,
+				JSON_KEY_ATHLETE_TYPE,
+				JSON_KEY_PROFILE
+			};
+		private static final int COLUMN_BIRTHDAY = 1 << 0;
+		private static final int COLUMN_LOCATION = 1 << 1;
+		private static final int COLUMN_NAME = 1 << 2;
+		private static final int COLUMN_ELITE = 1 << 3;
+		private static final int COLUMN_GENDER = 1 << 4;
+		private static final int COLUMN_ATHLETE_TYPE = 1 << 5;
+		private static final int COLUMN_PROFILE = 1 << 6;
 		
 		/**
-		 * Creates a {@link RunKeeperApi} to the user's RunKeeper profile.
+		 * The pre-encoded names of the data fields.
 		 */
-		public ProfileApi() {
-			super(PATH);
-		}
+		private static final SerializedString FIELD_BIRTHDAY =
+			new SerializedString(JSON_KEY_BIRTHDAY);
+		private static final SerializedString FIELD_LOCATION =
+			new SerializedString(JSON_KEY_LOCATION);
+		private static final SerializedString FIELD_NAME =
+			new SerializedString(JSON_KEY_NAME);
+		private static final SerializedString FIELD_ELITE =
+			new SerializedString(JSON_KEY_ELITE);
+		private static final SerializedString FIELD_GENDER =
+			new SerializedString(JSON_KEY_GENDER);
+		private static final SerializedString FIELD_ATHLETE_TYPE =
+			new SerializedString(JSON_KEY_ATHLETE_TYPE);
+		private static final SerializedString FIELD_PROFILE =
+			new SerializedString(JSON_KEY_PROFILE);
 		
-		/*
-		 * (non-Javadoc)
-		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#getPath()
+		/**
+		 * The default maximum number of profiles to cache.
 		 */
-		public String getPath() {
-			return PATH;
-		}
-
-		/*
+		public static final int DEFAULT_CACHE_SIZE = 1000;
+		
+		/**
+		 * The user's profile as it was read from RunKeeper. Once created, it
+		 * is never modified, so it may be shared between requests.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class Profile {
+			/**
+			 * The birthday in milliseconds since the epoch or null if the
+			 * user did not give one.
+			 */
+			private final Long birthday;
+			private final String location;
+			private final String name;
+			private final String elite;
+			private final String gender;
+			private final String athleteType;
+			private final String profile;
+			private final String userId;
+			
+			/**
+			 * Creates a new profile.
+			 */
+			private Profile(
+					final Long birthday,
+					final String location,
+					final String name,
+					final String elite,
+					final String gender,
+					final String athleteType,
+					final String profile,
+					final String userId) {
+				
+				this.birthday = birthday;
+				this.location = location;
+				this.name = name;
+				this.elite = elite;
+				this.gender = gender;
+				this.athleteType = athleteType;
+				this.profile = profile;
+				this.userId = userId;
+			}
+		}
+		
+		/**
+		 * A cached profile along with the validators RunKeeper gave us for it.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class CachedProfile {
+			private final Profile profile;
+			private final String eTag;
+			private final String lastModified;
+			/**
+			 * The {@link System#nanoTime()} until which the profile may be 
+			 * used without asking RunKeeper.
+			 */
+			private final long freshUntil;
+			
+			/**
+			 * Creates a new cached profile.
+			 * 
+			 * @param profile The profile.
+			 * 
+			 * @param eTag The "ETag" header or null.
+			 * 
+			 * @param lastModified The "Last-Modified" header or null.
+			 * 
+			 * @param freshUntil The time until which the profile is fresh.
+			 */
+			private CachedProfile(
+					final Profile profile,
+					final String eTag,
+					final String lastModified,
+					final long freshUntil) {
+				
+				this.profile = profile;
+				this.eTag = eTag;
+				this.lastModified = lastModified;
+				this.freshUntil = freshUntil;
+			}
+		}
+		
+		/**
+		 * The number of milliseconds a cached profile is used without
+		 * revalidating it with RunKeeper. 
+		 */
+		private static volatile long cacheFreshness = 0;
+		/**
+		 * The cached profiles keyed by the bearer token, in 
+		 * least-recently-used order.
+		 */
+		private static volatile Map<String, CachedProfile> cache = 
+			createCache(DEFAULT_CACHE_SIZE);
+		
+		/**
+		 * The user's profile as the results of a single request.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class ProfileResult extends RunKeeperResult {
+			private final Profile profile;
+			
+			/**
+			 * Creates the results for a profile.
+			 * 
+			 * @param profile The user's profile.
+			 */
+			private ProfileResult(final Profile profile) {
+				this.profile = profile;
+			}
+			
+			/**
+			 * @return Always 1 because the user will only have one profile.
+			 */
+			@Override
+			public long getNumDataPoints() {
+				return 1;
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperResult#respond(org.codehaus.jackson.JsonGenerator, org.ohmage.request.observer.StreamReadRequest.ColumnNode, long)
+			 */
+			@Override
+			protected void respond(
+					final JsonGenerator generator,
+					final ColumnNode<String> columns,
+					final long staleSince)
+					throws JsonGenerationException, IOException, DomainException {
+				
+				// Determine which columns need to be output.
+				int mask = compileColumns(columns, COLUMNS);
+				
+				writeProfile(generator, mask, profile, staleSince);
+			}
+		}
+		
+		/**
+		 * Creates a {@link RunKeeperApi} to the user's RunKeeper profile. Only
+		 * the {@link RunKeeperApiFactory factory} creates one.
+		 */
+		private ProfileApi() {
+			super(PATH);
+		}
+		
+		/**
+		 * Configures the profile cache. Any profiles that were already cached
+		 * are discarded.
+		 * 
+		 * @param size The maximum number of profiles to cache.
+		 * 
+		 * @param freshness The number of milliseconds a cached profile is 
+		 * 					used without revalidating it with RunKeeper. If 
+		 * 					zero, every read is revalidated.
+		 * 
+		 * @throws IllegalArgumentException The size is not positive or the
+		 * 									freshness is negative.
+		 */
+		public static void configureCache(
+				final int size,
+				final long freshness) {
+			
+			if(size <= 0) {
+				throw new IllegalArgumentException(
+					"The cache size must be positive.");
+			}
+			if(freshness < 0) {
+				throw new IllegalArgumentException(
+					"The cache freshness must not be negative.");
+			}
+			
+			cache = createCache(size);
+			cacheFreshness = freshness;
+		}
+		
+		/**
+		 * Creates a synchronized, bounded, least-recently-used cache.
+		 * 
+		 * @param maxSize The maximum number of profiles to cache.
+		 * 
+		 * @return The new cache.
+		 */
+		private static Map<String, CachedProfile> createCache(
+				final int maxSize) {
+			
+			return
+				Collections.synchronizedMap(
+					new LinkedHashMap<String, CachedProfile>(16, 0.75f, true) {
+						private static final long serialVersionUID = 1L;
+						
+						/**
+						 * Evicts the least recently used profile once the 
+						 * cache is full.
+						 */
+						@Override
+						protected boolean removeEldestEntry(
+								final Map.Entry<String, CachedProfile> eldest) {
+							
+							return size() > maxSize;
+						}
+					});
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#getPath()
+		 */
+		public String getPath() {
+			return PATH;
+		}
+
+		/*
 		 * (non-Javadoc)
 		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#hasId()
 		 */
@@ -586,280 +1897,1912 @@ public class RunKeeperPayloadId implements PayloadId {
 		 * @param numToReturn This parameter is ignored.
 		 */
 		@Override
-		public void makeRequest(
+		protected RunKeeperResult makeRequest(
 				final String bearer,
 				final DateTime startDate,
 				final DateTime endDate,
 				final long numToSkip,
-				final long numToReturn)
+				final long numToReturn,
+				final RunKeeperDeadline deadline)
 				throws DomainException {
 			
+			// If we have a fresh copy of the profile, use it without asking
+			// RunKeeper at all.
+			Map<String, CachedProfile> cache = ProfileApi.cache;
+			CachedProfile cached = cache.get(bearer);
+			if((cached != null) && (cached.freshUntil - System.nanoTime() > 0)) {
+				return new ProfileResult(cached.profile);
+			}
+			
+			// Otherwise, if we have any copy of the profile, ask RunKeeper to
+			// only send it if it has changed.
+			Map<String, String> headers = null;
+			if(cached != null) {
+				headers = new HashMap<String, String>();
+				if(cached.eTag != null) {
+					headers.put(HttpHeaders.IF_NONE_MATCH, cached.eTag);
+				}
+				if(cached.lastModified != null) {
+					headers
+						.put(
+							HttpHeaders.IF_MODIFIED_SINCE,
+							cached.lastModified);
+				}
+			}
+			
 			// Get the API's response.
-			String result = makeRequest(bearer, null);
+			RunKeeperResponse response = 
+				openRequest(bearer, null, headers, deadline);
+			Profile profile;
+			boolean complete = false;
 			
 			// Process the API's response.
 			try {
-				JsonParser parser = JSON_FACTORY.createJsonParser(result);
+				// If the profile hasn't changed, use our copy.
+				if(response.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+					if(cached == null) {
+						throw new DomainException(
+							"The profile was unmodified, but we don't have a copy.");
+					}
+					profile = cached.profile;
+				}
+				else {
+					profile = readProfile(response.getParser());
+					getMetrics().recordParsed(1);
+				}
+				
+				complete = true;
+			}
+			catch(JsonParseException e) {
+				throw new DomainException("The result was not valid JSON.", e);
+			}
+			catch(IOException e) {
+				throw new DomainException("Could not read the result.", e);
+			}
+			finally {
+				// Reuse the connection if the response was read successfully.
+				// Otherwise, its state is unknown and it must be discarded.
+				if(complete) {
+					response.close();
+				}
+				else {
+					response.abort();
+				}
+			}
+			
+			// Cache the profile along with its newest validators.
+			String eTag = response.getHeader(HttpHeaders.ETAG);
+			String lastModified = 
+				response.getHeader(HttpHeaders.LAST_MODIFIED);
+			if(cached != null) {
+				if(eTag == null) {
+					eTag = cached.eTag;
+				}
+				if(lastModified == null) {
+					lastModified = cached.lastModified;
+				}
+			}
+			cache
+				.put(
+					bearer,
+					new CachedProfile(
+						profile,
+						eTag,
+						lastModified,
+						System.nanoTime() + 
+							(cacheFreshness * 1000 * 1000)));
+			
+			return new ProfileResult(profile);
+		}
+		
+		/**
+		 * Reads the user's profile from RunKeeper's response.
+		 * 
+		 * @param parser The parser positioned before the profile object.
+		 * 
+		 * @return The user's profile.
+		 * 
+		 * @throws DomainException The response was not in the expected 
+		 * 						   format.
+		 * 
+		 * @throws IOException There was an error reading the response.
+		 */
+		private static Profile readProfile(
+				final JsonParser parser)
+				throws DomainException, IOException {
+			
+			Long birthday = null;
+			String location = null;
+			String name = null;
+			String elite = null;
+			String gender = null;
+			String athleteType = null;
+			String profile = null;
+			String userId = null;
+			
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw 
+					new DomainException(
+						"The response was not a JSON object.");
+			}
+			
+			while(parser.nextToken() != JsonToken.END_OBJECT) {
+				// Get the field's name and point to its value.
+				String fieldName = parser.getCurrentName();
+				parser.nextToken();
+				
+				// This is a cheat because all fields' value is a string.
+				String fieldValue = parser.getText();
+				
+				// Switch on the field name and assign the appropriate 
+				// value.
+				if(JSON_KEY_BIRTHDAY.equals(fieldName)) {
+					try {
+						birthday =
+							RunKeeperDateTimeCodec
+								.parseRunKeeper(
+									parser.getTextCharacters(),
+									parser.getTextOffset(),
+									parser.getTextLength());
+					}
+					catch(IllegalArgumentException e) {
+						throw new DomainException(
+							"The date/time value for the birthday could not be parsed: " +
+								fieldValue,
+							e);
+					}
+				}
+				else if(JSON_KEY_LOCATION.equals(fieldName)) {
+					location = fieldValue;
+				}
+				else if(JSON_KEY_NAME.equals(fieldName)) {
+					name = fieldValue;
+				}
+				else if(JSON_KEY_ELITE.equals(fieldName)) {
+					elite = fieldValue;
+				}
+				else if(JSON_KEY_GENDER.equals(fieldName)) {
+					gender = fieldValue;
+				}
+				else if(JSON_KEY_ATHLETE_TYPE.equals(fieldName)) {
+					athleteType = fieldValue;
+				}
+				else if(JSON_KEY_PROFILE.equals(fieldName)) {
+					profile = fieldValue;
+					
+					String[] profileParts = profile.split("/");
+					userId = profileParts[profileParts.length - 1];
+				}
+				// Otherwise, it was a value we didn't understand and will
+				// ignore for now.
+			}
+			
+			return
+				new Profile(
+					birthday,
+					location,
+					name,
+					elite,
+					gender,
+					athleteType,
+					profile,
+					userId);
+		}
 
-				if(parser.nextToken() != JsonToken.START_OBJECT) {
-					throw 
-						new DomainException(
-							"The response was not a JSON object.");
+		/**
+		 * Writes the user's profile as an OMH data point.
+		 * 
+		 * @param generator The generator to write to.
+		 * 
+		 * @param mask The mask of the columns to write.
+		 * 
+		 * @param profile The profile to write.
+		 * 
+		 * @param staleSince When the profile was retrieved if it is stale or
+		 * 					 -1 if it is fresh.
+		 * 
+		 * @throws JsonGenerationException There was an error creating the 
+		 * 								   JSON.
+		 * 
+		 * @throws IOException There was an error writing to the generator.
+		 */
+		private static void writeProfile(
+				final JsonGenerator generator,
+				final int mask,
+				final Profile profile,
+				final long staleSince)
+				throws JsonGenerationException, IOException {
+			
+			// Write each point which, in this case, will only be the one point
+			// representing the user's information.
+			generator.writeStartObject();
+			
+			// Write the metadata.
+			generator.writeFieldName(FIELD_METADATA);
+			generator.writeStartObject();
+			
+			// Write the user's ID.
+			generator.writeFieldName(FIELD_ID);
+			generator.writeString(profile.userId);
+			
+			// If applicable, mark the profile as stale.
+			if(staleSince >= 0) {
+				writeStaleness(
+					generator,
+					staleSince,
+					new char[RunKeeperDateTimeCodec.MAX_LENGTH]);
+			}
+			
+			// End the metadata.
+			generator.writeEndObject();
+			
+			// Write the data.
+			generator.writeFieldName(FIELD_DATA);
+			generator.writeStartObject();
+			
+			// If applicable, output the 'birthday' column.
+			if((mask & COLUMN_BIRTHDAY) != 0) {
+				generator.writeFieldName(FIELD_BIRTHDAY);
+				if(profile.birthday == null) {
+					generator.writeNull();
 				}
+				else {
+					char[] buffer = new char[RunKeeperDateTimeCodec.MAX_LENGTH];
+					generator
+						.writeString(
+							buffer,
+							0,
+							RunKeeperDateTimeCodec
+								.printRunKeeper(profile.birthday, buffer));
+				}
+			}
+
+			// If applicable, output the 'location' column.
+			if((mask & COLUMN_LOCATION) != 0) {
+				generator.writeFieldName(FIELD_LOCATION);
+				generator.writeString(profile.location);
+			}
+
+			// If applicable, output the 'name' column.
+			if((mask & COLUMN_NAME) != 0) {
+				generator.writeFieldName(FIELD_NAME);
+				generator.writeString(profile.name);
+			}
+
+			// If applicable, output the 'elite' column.
+			if((mask & COLUMN_ELITE) != 0) {
+				generator.writeFieldName(FIELD_ELITE);
+				generator.writeString(profile.elite);
+			}
+
+			// If applicable, output the 'gender' column.
+			if((mask & COLUMN_GENDER) != 0) {
+				generator.writeFieldName(FIELD_GENDER);
+				generator.writeString(profile.gender);
+			}
+
+			// If applicable, output the 'athlete_type' column.
+			if((mask & COLUMN_ATHLETE_TYPE) != 0) {
+				generator.writeFieldName(FIELD_ATHLETE_TYPE);
+				generator.writeString(profile.athleteType);
+			}
+
+			// If applicable, output the 'profile' column.
+			if((mask & COLUMN_PROFILE) != 0) {
+				generator.writeFieldName(FIELD_PROFILE);
+				generator.writeString(profile.profile);
+			}
+			
+			// End the data.
+			generator.writeEndObject();
+			
+			// End the only data point.
+			generator.writeEndObject();
+		}
+	}
+	
+	/**
+	 * A {@link RunKeeperApi} for the user's fitness activities.
+	 *
+	 * @author John Jenkins
+	 */
+	public static class FitnessActivitiesApi extends RunKeeperApi {
+		private static final Logger LOGGER =
+			Logger.getLogger(FitnessActivitiesApi.class);
+		
+		/**
+		 * The URL's path to the profile. Should be used in conjunction with 
+		 * the {@link #BASE_URL base URL}.
+		 */
+		private static final String PATH = "fitnessActivities";
+		
+		/**
+		 * The default largest page size to request from RunKeeper.
+		 */
+		public static final int DEFAULT_MAX_PAGE_SIZE = 100;
+		
+		/**
+		 * The 'items' field name in the response.
+		 */
+		private static final String JSON_KEY_ITEMS = "items";
+		/**
+		 * The 'size' field name in the response.
+		 */
+		private static final String JSON_KEY_SIZE = "size";
+		/**
+		 * The 'next' field name in the response.
+		 */
+		private static final String JSON_KEY_NEXT = "next";
+		
+		/**
+		 * Whether or not items should be streamed from RunKeeper straight to
+		 * the output, holding at most one activity at a time, rather than 
+		 * being read into memory when the request is serviced.
+		 */
+		private static volatile boolean streaming = false;
+		
+		/**
+		 * The largest page size to request from RunKeeper.
+		 */
+		private static volatile int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+		
+		/**
+		 * The default number of pages a single request may fetch at once.
+		 */
+		public static final int DEFAULT_FETCH_FAN_OUT = 4;
+		/**
+		 * The default number of pages that may be fetched at once across all
+		 * requests.
+		 */
+		public static final int DEFAULT_MAX_CONCURRENT_FETCHES = 32;
+		
+		/**
+		 * The number of pages a single request may fetch at once.
+		 */
+		private static volatile int fetchFanOut = DEFAULT_FETCH_FAN_OUT;
+		/**
+		 * The permits for fetching pages across all requests.
+		 */
+		private static volatile Semaphore fetchPermits = 
+			new Semaphore(DEFAULT_MAX_CONCURRENT_FETCHES);
+		
+		/**
+		 * The default maximum number of users whose activities are mirrored.
+		 */
+		public static final int DEFAULT_MIRROR_SIZE = 1000;
+		/**
+		 * The default minimum number of milliseconds between synchronizations
+		 * of a user's mirrored activities.
+		 */
+		public static final long DEFAULT_MIRROR_SYNC_INTERVAL = 60 * 1000;
+		/**
+		 * The default minimum number of milliseconds between synchronizations
+		 * that read all of a user's activities again.
+		 */
+		public static final long DEFAULT_MIRROR_FULL_SYNC_INTERVAL = 
+			24 * 60 * 60 * 1000;
+		/**
+		 * The page size to use when synchronizing a mirror.
+		 */
+		private static final int MIRROR_PAGE_SIZE = 100;
+		
+		/**
+		 * Whether or not reads are answered from the local mirror of the 
+		 * user's activities rather than by RunKeeper.
+		 */
+		private static volatile boolean mirrorEnabled = false;
+		/**
+		 * The minimum number of milliseconds between synchronizations of a 
+		 * user's mirror.
+		 */
+		private static volatile long mirrorSyncInterval = 
+			DEFAULT_MIRROR_SYNC_INTERVAL;
+		/**
+		 * The minimum number of milliseconds between full synchronizations of
+		 * a user's mirror or zero if they are only fully synchronized once.
+		 */
+		private static volatile long mirrorFullSyncInterval = 
+			DEFAULT_MIRROR_FULL_SYNC_INTERVAL;
+		/**
+		 * The mirrors keyed by the bearer token, in least-recently-used order.
+		 */
+		private static volatile Map<String, ActivityMirror> mirrors =
+			createMirrors(DEFAULT_MIRROR_SIZE);
+		
+		/**
+		 * This class represents a single data point returned from the API.
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class Result {
+			private static final String JSON_KEY_TYPE = "type";
+			private static final String JSON_KEY_START_TIME = "start_time";
+			private static final String JSON_KEY_TOTAL_DISTANCE = 
+				"total_distance";
+			private static final String JSON_KEY_DURATION = "duration";
+			private static final String JSON_KEY_URI = "uri";
+			
+			/**
+			 * The data fields in the order they are written. Each field's 
+			 * bit in a 
+			 * {@link RunKeeperApi#compileColumns(ColumnNode, String[]) column
+			 * mask} is given by its index.
+			 */
+			private static final String[] COLUMNS =
+				new String[] {
+					JSON_KEY_DURATION,
+					JSON_KEY_START_TIME,
+					JSON_KEY_TOTAL_DISTANCE,
+					JSON_KEY_TYPE,
+					JSON_KEY_URI
+				};
+			private static final int COLUMN_DURATION = 1 << 0;
+			private static final int COLUMN_START_TIME = 1 << 1;
+			private static final int COLUMN_TOTAL_DISTANCE = 1 << 2;
+			private static final int COLUMN_TYPE = 1 << 3;
+			private static final int COLUMN_URI = 1 << 4;
+			/**
+			 * The mask with every field.
+			 */
+			private static final int ALL_COLUMNS = (1 << COLUMNS.length) - 1;
+			/**
+			 * The fields that are always read because they are needed for the
+			 * metadata and for filtering.
+			 */
+			private static final int REQUIRED_COLUMNS =
+				COLUMN_START_TIME | COLUMN_URI;
+			
+			/**
+			 * The pre-encoded names of the data fields.
+			 */
+			private static final SerializedString FIELD_DURATION =
+				new SerializedString(JSON_KEY_DURATION);
+			private static final SerializedString FIELD_START_TIME =
+				new SerializedString(JSON_KEY_START_TIME);
+			private static final SerializedString FIELD_TOTAL_DISTANCE =
+				new SerializedString(JSON_KEY_TOTAL_DISTANCE);
+			private static final SerializedString FIELD_TYPE =
+				new SerializedString(JSON_KEY_TYPE);
+			private static final SerializedString FIELD_URI =
+				new SerializedString(JSON_KEY_URI);
+			
+			private String id;
+			private String type;
+			/**
+			 * The start time in milliseconds since the epoch.
+			 */
+			private long startTime;
+			private double totalDistance;
+			private double duration;
+			private String uri;
+			
+			/**
+			 * Clears all of the values so that this object may be reused.
+			 */
+			private void reset() {
+				id = null;
+				type = null;
+				startTime = 0;
+				totalDistance = 0;
+				duration = 0;
+				uri = null;
+			}
+			
+			/**
+			 * Sets the URI and the ID, which is the URI's last segment.
+			 * 
+			 * @param uri The activity's URI or null.
+			 */
+			private void setUri(final String uri) {
+				this.uri = uri;
+				
+				if(uri == null) {
+					id = null;
+				}
+				else {
+					id = uri.substring(uri.lastIndexOf('/') + 1);
+				}
+			}
+
+			/**
+			 * Generates the Concordia schema for this path.
+			 * 
+			 * @param generator The generator to use to write the definition.
+			 * 
+			 * @return The 'generator' that was passed in to facilitate
+			 * 		   chaining.
+			 * 
+			 * @throws JsonGenerationException There was a problem generating 
+			 * 								   the JSON.
+			 * 
+			 * @throws IOException There was a problem writing to the 
+			 * 					   generator.
+			 */
+			public static JsonGenerator toConcordia(
+					final JsonGenerator generator)
+					throws JsonGenerationException, IOException {
+				
+				// Start the definition.
+				generator.writeStartObject();
+				
+				// The data will always be a JSON object.
+				generator.writeStringField("type", "object");
+				generator.writeArrayFieldStart("schema");
+				
+				// Add the 'duration' field.
+				generator.writeStartObject();
+				generator.writeStringField("name", JSON_KEY_DURATION);
+				generator.writeStringField("type", "number");
+				generator.writeEndObject();
+				
+				// Add the 'start_time' field.
+				generator.writeStartObject();
+				generator.writeStringField("name", JSON_KEY_START_TIME);
+				generator.writeStringField("type", "string");
+				generator.writeEndObject();
+				
+				// Add the 'total_distance' field.
+				generator.writeStartObject();
+				generator.writeStringField("name", JSON_KEY_TOTAL_DISTANCE);
+				generator.writeStringField("type", "number");
+				generator.writeEndObject();
+				
+				// Add the 'type' field.
+				generator.writeStartObject();
+				generator.writeStringField("name", JSON_KEY_TYPE);
+				generator.writeStringField("type", "string");
+				generator.writeEndObject();
+				
+				// Add the 'uri' field.
+				generator.writeStartObject();
+				generator.writeStringField("name", JSON_KEY_URI);
+				generator.writeStringField("type", "string");
+				generator.writeEndObject();
+				
+				// End the overall schema array.
+				generator.writeEndArray();
+				
+				// End the definition.
+				generator.writeEndObject();
+				
+				// Return the generator.
+				return generator;
+			}
+		}
+	
+		/**
+		 * A growable table of activities that is stored by column rather than
+		 * by activity. Each activity costs a few primitive array slots rather
+		 * than an object with several Strings: the types are stored as 
+		 * indices into a dictionary of the distinct types and the URIs are
+		 * reduced to their numeric IDs whenever they have the usual form.
+		 * 
+		 * <p>
+		 * Activities are read back by index, in either direction, by 
+		 * {@link #get(int, Result) copying} them into a reusable 
+		 * {@link Result}. Once a table is {@link #freeze() frozen}, it may no
+		 * longer be modified and may be read by multiple threads.
+		 * </p>
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class ActivityTable {
+			/**
+			 * The prefix of the usual form of an activity's URI, which is
+			 * followed by its numeric ID.
+			 */
+			private static final String URI_PREFIX = "/" + PATH + "/";
+			
+			/**
+			 * The ID of an activity whose URI does not have the usual form.
+			 */
+			private static final long NO_ID = -1;
+			
+			/**
+			 * The type of an activity that does not have one.
+			 */
+			private static final int NO_TYPE = -1;
+			
+			/**
+			 * A frozen table with no activities.
+			 */
+			private static final ActivityTable EMPTY = 
+				new ActivityTable(0).freeze();
+			
+			private int size = 0;
+			private boolean frozen = false;
+			
+			private long[] startTimes;
+			private double[] durations;
+			private double[] totalDistances;
+			/**
+			 * The index of each activity's type in {@link #typeNames} or
+			 * {@link #NO_TYPE}.
+			 */
+			private int[] types;
+			/**
+			 * The numeric ID of each activity or {@link #NO_ID} if its URI is
+			 * in {@link #otherUris}.
+			 */
+			private long[] ids;
+			/**
+			 * The URIs of the activities whose URIs do not have the usual 
+			 * form or null if every activity's URI has the usual form.
+			 */
+			private String[] otherUris = null;
+			
+			/**
+			 * The distinct types in this table.
+			 */
+			private final List<String> typeNames = new ArrayList<String>();
+			/**
+			 * The index of each distinct type in {@link #typeNames}.
+			 */
+			private final Map<String, Integer> typeIndices = 
+				new HashMap<String, Integer>();
+			
+			/**
+			 * Creates an empty table.
+			 * 
+			 * @param capacity The number of activities the table may hold 
+			 * 				   before it needs to grow.
+			 */
+			private ActivityTable(final int capacity) {
+				startTimes = new long[capacity];
+				durations = new double[capacity];
+				totalDistances = new double[capacity];
+				types = new int[capacity];
+				ids = new long[capacity];
+			}
+			
+			/**
+			 * Returns the number of activities in this table.
+			 * 
+			 * @return The number of activities.
+			 */
+			private int size() {
+				return size;
+			}
+			
+			/**
+			 * Returns the start time of an activity.
+			 * 
+			 * @param index The index of the activity.
+			 * 
+			 * @return The start time in milliseconds since the epoch.
+			 */
+			private long getStartTime(final int index) {
+				checkIndex(index);
+				return startTimes[index];
+			}
+			
+			/**
+			 * Returns the URI of an activity.
+			 * 
+			 * @param index The index of the activity.
+			 * 
+			 * @return The activity's URI or null if it has none.
+			 */
+			private String getUri(final int index) {
+				checkIndex(index);
+				if(ids[index] == NO_ID) {
+					return otherUris[index];
+				}
+				return URI_PREFIX + ids[index];
+			}
+			
+			/**
+			 * Copies an activity into a result.
+			 * 
+			 * @param index The index of the activity.
+			 * 
+			 * @param result The result to populate. Any previous values are 
+			 * 				 replaced.
+			 */
+			private void get(final int index, final Result result) {
+				checkIndex(index);
+				
+				result.reset();
+				result.startTime = startTimes[index];
+				result.duration = durations[index];
+				result.totalDistance = totalDistances[index];
+				if(types[index] != NO_TYPE) {
+					result.type = typeNames.get(types[index]);
+				}
+				if(ids[index] == NO_ID) {
+					result.setUri(otherUris[index]);
+				}
+				else {
+					result.id = Long.toString(ids[index]);
+					result.uri = URI_PREFIX + result.id;
+				}
+			}
+			
+			/**
+			 * Appends an activity to this table.
+			 * 
+			 * @param result The activity to append. It is copied, so it may
+			 * 				 be reused.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private void add(final Result result) {
+				int index = grow();
+				
+				startTimes[index] = result.startTime;
+				durations[index] = result.duration;
+				totalDistances[index] = result.totalDistance;
+				types[index] = encodeType(result.type);
+				
+				long id = parseId(result.uri);
+				ids[index] = id;
+				if(id == NO_ID) {
+					if(otherUris == null) {
+						otherUris = new String[startTimes.length];
+					}
+					otherUris[index] = result.uri;
+				}
+			}
+			
+			/**
+			 * Appends an activity from another table to this one without
+			 * decoding it.
+			 * 
+			 * @param source The table that contains the activity.
+			 * 
+			 * @param sourceIndex The index of the activity in that table.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private void add(final ActivityTable source, final int sourceIndex) {
+				source.checkIndex(sourceIndex);
+				int index = grow();
+				
+				startTimes[index] = source.startTimes[sourceIndex];
+				durations[index] = source.durations[sourceIndex];
+				totalDistances[index] = source.totalDistances[sourceIndex];
+				
+				int type = source.types[sourceIndex];
+				types[index] = 
+					(type == NO_TYPE) ? 
+						NO_TYPE : 
+						encodeType(source.typeNames.get(type));
+				
+				long id = source.ids[sourceIndex];
+				ids[index] = id;
+				if(id == NO_ID) {
+					if(otherUris == null) {
+						otherUris = new String[startTimes.length];
+					}
+					otherUris[index] = source.otherUris[sourceIndex];
+				}
+			}
+			
+			/**
+			 * Discards all but the first activities, e.g. those that were 
+			 * appended from a page that could not be read completely.
+			 * 
+			 * @param newSize The number of activities to keep.
+			 * 
+			 * @throws IndexOutOfBoundsException The new size is negative or
+			 * 									  larger than the current 
+			 * 									  size.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private void truncate(final int newSize) {
+				checkNotFrozen();
+				if((newSize < 0) || (newSize > size)) {
+					throw new IndexOutOfBoundsException(
+						"Size: " + newSize + ", Current size: " + size);
+				}
+				
+				if(otherUris != null) {
+					Arrays.fill(otherUris, newSize, size, null);
+				}
+				size = newSize;
+			}
+			
+			/**
+			 * Sorts the activities from newest to oldest, keeping activities
+			 * with the same start time in their current order.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private void sortReverseChronologically() {
+				checkNotFrozen();
+				
+				// RunKeeper already returns activities in this order, so 
+				// there is usually nothing to do.
+				boolean sorted = true;
+				for(int i = 1; sorted && (i < size); i++) {
+					sorted = startTimes[i - 1] >= startTimes[i];
+				}
+				if(sorted) {
+					return;
+				}
+				
+				Integer[] order = new Integer[size];
+				for(int i = 0; i < size; i++) {
+					order[i] = i;
+				}
+				Arrays.sort(
+					order,
+					new Comparator<Integer>() {
+						/**
+						 * Compares the start times such that the later start
+						 * time comes first.
+						 */
+						@Override
+						public int compare(
+								final Integer first,
+								final Integer second) {
+							
+							long firstTime = startTimes[first];
+							long secondTime = startTimes[second];
+							return
+								(firstTime > secondTime) ? -1 :
+									((firstTime == secondTime) ? 0 : 1);
+						}
+					});
+				
+				long[] newStartTimes = new long[startTimes.length];
+				double[] newDurations = new double[durations.length];
+				double[] newTotalDistances = new double[totalDistances.length];
+				int[] newTypes = new int[types.length];
+				long[] newIds = new long[ids.length];
+				String[] newOtherUris = 
+					(otherUris == null) ? null : new String[otherUris.length];
+				for(int i = 0; i < size; i++) {
+					int from = order[i];
+					newStartTimes[i] = startTimes[from];
+					newDurations[i] = durations[from];
+					newTotalDistances[i] = totalDistances[from];
+					newTypes[i] = types[from];
+					newIds[i] = ids[from];
+					if(newOtherUris != null) {
+						newOtherUris[i] = otherUris[from];
+					}
+				}
+				startTimes = newStartTimes;
+				durations = newDurations;
+				totalDistances = newTotalDistances;
+				types = newTypes;
+				ids = newIds;
+				otherUris = newOtherUris;
+			}
+			
+			/**
+			 * Prevents any further changes to this table.
+			 * 
+			 * @return This table to facilitate chaining.
+			 */
+			private ActivityTable freeze() {
+				frozen = true;
+				return this;
+			}
+			
+			/**
+			 * Makes room for one more activity.
+			 * 
+			 * @return The index of the new activity.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private int grow() {
+				checkNotFrozen();
+				
+				if(size == startTimes.length) {
+					int capacity = Math.max(16, startTimes.length * 2);
+					startTimes = Arrays.copyOf(startTimes, capacity);
+					durations = Arrays.copyOf(durations, capacity);
+					totalDistances = Arrays.copyOf(totalDistances, capacity);
+					types = Arrays.copyOf(types, capacity);
+					ids = Arrays.copyOf(ids, capacity);
+					if(otherUris != null) {
+						otherUris = Arrays.copyOf(otherUris, capacity);
+					}
+				}
+				
+				return size++;
+			}
+			
+			/**
+			 * Returns the index of a type in the dictionary, adding it if 
+			 * necessary.
+			 * 
+			 * @param type The type or null.
+			 * 
+			 * @return The type's index or {@link #NO_TYPE} if it is null.
+			 */
+			private int encodeType(final String type) {
+				if(type == null) {
+					return NO_TYPE;
+				}
+				
+				Integer index = typeIndices.get(type);
+				if(index == null) {
+					index = typeNames.size();
+					typeNames.add(type);
+					typeIndices.put(type, index);
+				}
+				return index;
+			}
+			
+			/**
+			 * Extracts the numeric ID from a URI with the usual form. The ID
+			 * must be written exactly as {@link Long#toString(long)} would
+			 * write it so that the URI can be rebuilt from it.
+			 * 
+			 * @param uri The URI or null.
+			 * 
+			 * @return The ID or {@link #NO_ID} if the URI does not have the
+			 * 		   usual form.
+			 */
+			private static long parseId(final String uri) {
+				if((uri == null) || (! uri.startsWith(URI_PREFIX))) {
+					return NO_ID;
+				}
+				
+				int start = URI_PREFIX.length();
+				int length = uri.length() - start;
+				if(	(length == 0) || 
+					(length > 18) ||
+					((length > 1) && (uri.charAt(start) == '0'))) {
+					
+					return NO_ID;
+				}
+				
+				long id = 0;
+				for(int i = start; i < uri.length(); i++) {
+					char c = uri.charAt(i);
+					if((c < '0') || (c > '9')) {
+						return NO_ID;
+					}
+					id = (id * 10) + (c - '0');
+				}
+				return id;
+			}
+			
+			/**
+			 * Ensures that an index refers to an activity in this table.
+			 * 
+			 * @param index The index.
+			 * 
+			 * @throws IndexOutOfBoundsException The index is out of bounds.
+			 */
+			private void checkIndex(final int index) {
+				if((index < 0) || (index >= size)) {
+					throw new IndexOutOfBoundsException(
+						"Index: " + index + ", Size: " + size);
+				}
+			}
+			
+			/**
+			 * Ensures that this table may be modified.
+			 * 
+			 * @throws IllegalStateException This table is frozen.
+			 */
+			private void checkNotFrozen() {
+				if(frozen) {
+					throw new IllegalStateException(
+						"The activities may no longer be modified.");
+				}
+			}
+		}
+	
+		/**
+		 * A local copy of all of one user's fitness activities. The copy is
+		 * kept current by periodically asking RunKeeper for only those 
+		 * activities on or after the day of the newest activity we have, 
+		 * which replace everything we had from that day on, and, less often,
+		 * by reading all of them again, so that activities that were edited
+		 * or deleted before that day are eventually noticed.
+		 * 
+		 * <p>
+		 * Synchronizations run in the background without a deadline, so the
+		 * first one may read a long history across several requests. The 
+		 * requests wait for it, but each only until its own deadline.
+		 * </p>
+		 *
+		 * @author John Jenkins
+		 */
+		private static final class ActivityMirror {
+			/**
+			 * The activities as of one synchronization.
+			 *
+			 * @author John Jenkins
+			 */
+			private static final class Snapshot {
+				/**
+				 * The user's activities in reverse-chronological order. This
+				 * table is frozen.
+				 */
+				private final ActivityTable activities;
+				/**
+				 * The time, in milliseconds since the epoch, at which the 
+				 * activities were retrieved.
+				 */
+				private final long retrieved;
+				/**
+				 * The {@link System#nanoTime()} of the synchronization.
+				 */
+				private final long synced;
+				/**
+				 * The {@link System#nanoTime()} of the last synchronization 
+				 * that read all of the activities.
+				 */
+				private final long fullySynced;
+				/**
+				 * Whether or not a synchronization was due but did not 
+				 * finish, so the activities may be out of date.
+				 */
+				private final boolean stale;
+				
+				/**
+				 * Creates a snapshot.
+				 * 
+				 * @param activities The frozen activities.
+				 * 
+				 * @param retrieved When they were retrieved, in milliseconds
+				 * 					since the epoch.
+				 * 
+				 * @param synced The {@link System#nanoTime()} of the 
+				 * 				 synchronization.
+				 * 
+				 * @param fullySynced The {@link System#nanoTime()} of the 
+				 * 					  last full synchronization.
+				 * 
+				 * @param stale Whether or not the activities may be out of 
+				 * 				date.
+				 */
+				private Snapshot(
+						final ActivityTable activities,
+						final long retrieved,
+						final long synced,
+						final long fullySynced,
+						final boolean stale) {
+					
+					this.activities = activities;
+					this.retrieved = retrieved;
+					this.synced = synced;
+					this.fullySynced = fullySynced;
+					this.stale = stale;
+				}
+				
+				/**
+				 * Returns this snapshot marked as out of date.
+				 * 
+				 * @return The stale snapshot.
+				 */
+				private Snapshot asStale() {
+					return
+						new Snapshot(
+							activities,
+							retrieved,
+							synced,
+							fullySynced,
+							true);
+				}
+			}
+			
+			/**
+			 * The activities as of the last successful synchronization or
+			 * null if there has not been one. A synchronization replaces it.
+			 */
+			private volatile Snapshot snapshot = null;
+			/**
+			 * The synchronization that is running or null if none is. This 
+			 * is guarded by the mirror's monitor, which is only held long
+			 * enough to read or replace it.
+			 */
+			private Future<Snapshot> pending = null;
+			/**
+			 * The parameters of a synchronization that failed part of the
+			 * way through or null if none did. Only the running 
+			 * synchronization uses this and the following fields.
+			 */
+			private Map<String, String> partialParams = null;
+			/**
+			 * The activities that the failed synchronization read.
+			 */
+			private ActivityTable partial = null;
+			/**
+			 * The link to the page after the {@link #partial} activities.
+			 */
+			private String partialNext = null;
+			
+			/**
+			 * Synchronizes this mirror with RunKeeper if it has not been 
+			 * synchronized within the synchronization interval. If the
+			 * synchronization fails or does not finish by the deadline but 
+			 * this mirror had been synchronized before, the existing 
+			 * activities are returned, marked as stale. A synchronization 
+			 * that does not finish by the deadline keeps running for the next
+			 * request.
+			 * 
+			 * @param api The API to use to make the requests.
+			 * 
+			 * @param bearer The "Bearer" token generated by RunKeeper.
+			 * 
+			 * @param deadline The deadline by which the request must finish.
+			 * 
+			 * @return The snapshot of the user's activities.
+			 * 
+			 * @throws DomainException This mirror has never been synchronized
+			 * 						   and synchronizing failed or did not
+			 * 						   finish by the deadline.
+			 */
+			private Snapshot sync(
+					final FitnessActivitiesApi api,
+					final String bearer,
+					final RunKeeperDeadline deadline)
+					throws DomainException {
 				
-				while(parser.nextToken() != JsonToken.END_OBJECT) {
-					// Get the field's name and point to its value.
-					String fieldName = parser.getCurrentName();
-					parser.nextToken();
+				long interval = mirrorSyncInterval * 1000 * 1000;
+				Snapshot current = snapshot;
+				if(	(current != null) && 
+					(System.nanoTime() - current.synced < interval)) {
 					
-					// This is a cheat because all fields' value is a string.
-					String fieldValue = parser.getText();
+					return current;
+				}
+				
+				// Only one request per user needs to start a synchronization.
+				// Everyone else waits for it and then uses its results.
+				Future<Snapshot> future;
+				synchronized(this) {
+					current = snapshot;
+					if(	(current != null) && 
+						(System.nanoTime() - current.synced < interval)) {
+						
+						return current;
+					}
 					
-					// Switch on the field name and assign the appropriate 
-					// value.
-					if(JSON_KEY_BIRTHDAY.equals(fieldName)) {
-						try {
-							birthday =
-								DATE_TIME_RESPONSE_FORMATTER
-									.parseDateTime(fieldValue);
-						}
-						catch(IllegalArgumentException e) {
-							throw new DomainException(
-								"The date/time value for the birthday could not be parsed: " +
-									fieldValue,
-								e);
-						}
+					future = pending;
+					if(future == null) {
+						future = 
+							RunKeeperExecutor.submit(
+								new Callable<Snapshot>() {
+									/**
+									 * Synchronizes the mirror.
+									 */
+									@Override
+									public Snapshot call()
+											throws DomainException {
+										
+										try {
+											return update(api, bearer);
+										}
+										finally {
+											synchronized(ActivityMirror.this) {
+												pending = null;
+											}
+										}
+									}
+								});
+						pending = future;
+					}
+				}
+				
+				// Wait no longer than our own deadline, but do not cancel the
+				// synchronization, which other requests may be waiting for.
+				try {
+					if(deadline.isBounded()) {
+						return
+							future.get(
+								Math.max(0, deadline.remainingNanos()),
+								TimeUnit.NANOSECONDS);
 					}
-					else if(JSON_KEY_LOCATION.equals(fieldName)) {
-						location = fieldValue;
+					else {
+						return future.get();
 					}
-					else if(JSON_KEY_NAME.equals(fieldName)) {
-						name = fieldValue;
+				}
+				catch(TimeoutException e) {
+					if(current != null) {
+						return current.asStale();
 					}
-					else if(JSON_KEY_ELITE.equals(fieldName)) {
-						elite = fieldValue;
+					throw deadline.expired();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DomainException(
+						"Interrupted while waiting for the activities to be " +
+							"synchronized.",
+						e);
+				}
+				catch(ExecutionException e) {
+					// The synchronization already logged its failure.
+					if(current != null) {
+						return current.asStale();
 					}
-					else if(JSON_KEY_GENDER.equals(fieldName)) {
-						gender = fieldValue;
+					
+					Throwable cause = e.getCause();
+					if(cause instanceof DomainException) {
+						throw (DomainException) cause;
 					}
-					else if(JSON_KEY_ATHLETE_TYPE.equals(fieldName)) {
-						athleteType = fieldValue;
+					else if(cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
 					}
-					else if(JSON_KEY_PROFILE.equals(fieldName)) {
-						profile = fieldValue;
-						
-						String[] profileParts = profile.split("/");
-						userId = profileParts[profileParts.length - 1];
+					else if(cause instanceof Error) {
+						throw (Error) cause;
 					}
-					// Otherwise, it was a value we didn't understand and will
-					// ignore for now.
+					
+					throw new DomainException(
+						"Could not synchronize with RunKeeper.",
+						cause);
 				}
 			}
-			catch(JsonParseException e) {
-				throw new DomainException("The result was not valid JSON.", e);
-			}
-			catch(IOException e) {
-				throw new DomainException("Could not read the result.", e);
+			
+			/**
+			 * Reads the activities on or after the day of the newest activity
+			 * we have and replaces everything we had from that day on with 
+			 * them or, if a full synchronization is due, reads and replaces 
+			 * all of the activities. If an earlier synchronization with the 
+			 * same parameters failed part of the way through, this continues 
+			 * from the page after the last one it read.
+			 * 
+			 * @param api The API to use to make the requests.
+			 * 
+			 * @param bearer The "Bearer" token generated by RunKeeper.
+			 * 
+			 * @return The new snapshot of the user's activities.
+			 * 
+			 * @throws DomainException One of the pages could not be read.
+			 */
+			private Snapshot update(
+					final FitnessActivitiesApi api,
+					final String bearer)
+					throws DomainException {
+				
+				Snapshot current = snapshot;
+				long start = System.nanoTime();
+				long fullInterval = mirrorFullSyncInterval * 1000 * 1000;
+				boolean full = 
+					(current == null) ||
+					(current.activities.size() == 0) ||
+					(	(fullInterval > 0) && 
+						(start - current.fullySynced >= fullInterval));
+				
+				// Everything from the start of the overlapping day on is 
+				// replaced by what RunKeeper returns, so activities that were
+				// deleted from that day are dropped.
+				Map<String, String> params = new HashMap<String, String>();
+				params.put("pageSize", Integer.toString(MIRROR_PAGE_SIZE));
+				long overlapStart = Long.MIN_VALUE;
+				if(! full) {
+					String day = 
+						DATE_TIME_REQUEST_FORMATTER
+							.print(current.activities.getStartTime(0));
+					params.put("noEarlierThan", day);
+					overlapStart = DATE_TIME_REQUEST_FORMATTER.parseMillis(day);
+				}
+				
+				// The pages read by a failed synchronization still apply if
+				// it asked for the same activities.
+				ActivityTable fetched;
+				String next;
+				if(params.equals(partialParams)) {
+					fetched = partial;
+					next = partialNext;
+				}
+				else {
+					fetched = new ActivityTable(MIRROR_PAGE_SIZE);
+					next = null;
+				}
+				try {
+					do {
+						next = 
+							api.fetchPage(
+								bearer,
+								params,
+								next,
+								fetched,
+								RunKeeperDeadline.NONE);
+						
+						partialParams = params;
+						partial = fetched;
+						partialNext = next;
+					} while(next != null);
+				}
+				catch(DomainException e) {
+					LOGGER
+						.warn(
+							"Could not synchronize with RunKeeper after " +
+								fetched.size() + " activities were read; " +
+								"the next synchronization will continue " +
+								"from there.",
+							e);
+					throw e;
+				}
+				partialParams = null;
+				partial = null;
+				partialNext = null;
+				
+				// Keep the activities from before the overlap, unless one of
+				// them was moved into it.
+				Set<String> fetchedUris = new HashSet<String>();
+				int numKept = full ? 0 : current.activities.size();
+				ActivityTable merged = 
+					new ActivityTable(numKept + fetched.size());
+				for(int i = 0; i < fetched.size(); i++) {
+					fetchedUris.add(fetched.getUri(i));
+					merged.add(fetched, i);
+				}
+				for(int i = 0; i < numKept; i++) {
+					if(	(current.activities.getStartTime(i) < overlapStart) &&
+						(! fetchedUris.contains(current.activities.getUri(i)))) {
+						
+						merged.add(current.activities, i);
+					}
+				}
+				merged.sortReverseChronologically();
+				
+				Snapshot updated =
+					new Snapshot(
+						merged.freeze(),
+						System.currentTimeMillis(),
+						System.nanoTime(),
+						full ? start : current.fullySynced,
+						false);
+				snapshot = updated;
+				
+				return updated;
 			}
 		}
-
-		/**
-		 * @return Always 1 because the user will only have one profile.
-		 */
-		@Override
-		public long getNumDataPoints() {
-			return 1;
-		}
 		
-		/*
-		 * (non-Javadoc)
-		 * @see org.ohmage.request.omh.OmhReadResponder#respond(org.codehaus.jackson.JsonGenerator, org.ohmage.request.observer.StreamReadRequest.ColumnNode)
+		/**
+		 * Reads the records in a {@link RunKeeperPagePlan plan's} window one
+		 * at a time, following RunKeeper's "next" links from one page to the
+		 * next and discarding the records outside of the window.
+		 * 
+		 * <p>
+		 * The cursor stops as soon as the window is full or it reads a 
+		 * record from before the start date, because RunKeeper returns the
+		 * records from newest to oldest, so nothing after that can be in the
+		 * window. The rest of the current page is then left unread and no 
+		 * more pages are requested.
+		 * </p>
+		 *
+		 * @author John Jenkins
 		 */
-		@Override
-		public void respond(
-				final JsonGenerator generator,
-				final ColumnNode<String> columns)
-				throws JsonGenerationException, IOException, DomainException {
-			
-			// Write each point which, in this case, will only be the one point
-			// representing the user's information.
-			generator.writeStartObject();
-			
-			// Write the metadata.
-			generator.writeObjectFieldStart("metadata");
-			
-			// Write the user's ID.
-			generator.writeStringField("id", userId);
-			
-			// End the metadata.
-			generator.writeEndObject();
-			
-			// Write the data.
-			generator.writeObjectFieldStart("data");
+		private final class PageCursor {
+			private final String bearer;
+			private final RunKeeperPagePlan plan;
+			private final DateTime startDate;
+			private final RunKeeperDeadline deadline;
 			
-			// Determine if all columns need to be output.
-			boolean allColumns = (columns == null) || columns.isLeaf();
+			/**
+			 * The response for the current page or null if there are no more
+			 * pages.
+			 */
+			private RunKeeperResponse response;
+			/**
+			 * The number of pages that have been completely read.
+			 */
+			private long pagesRead = 0;
+			/**
+			 * The number of records read from the first page.
+			 */
+			private long position = 0;
+			/**
+			 * The number of records within the window that were returned.
+			 */
+			private long returned = 0;
+			/**
+			 * Whether or not a record from before the start date was read.
+			 */
+			private boolean passedStartDate = false;
+			/**
+			 * The number of records parsed since the last time they were
+			 * added to the {@link RunKeeperMetrics metrics}.
+			 */
+			private long parsed = 0;
+			/**
+			 * The number of records discarded since the last time they were
+			 * added to the {@link RunKeeperMetrics metrics}.
+			 */
+			private long filtered = 0;
+			/**
+			 * The mask of the fields to read from each record. The values of
+			 * any other fields are skipped without being decoded.
+			 */
+			private int fields = Result.ALL_COLUMNS;
 			
-			// If applicable, output the 'birthday' column.
-			if(allColumns || columns.hasChild(JSON_KEY_BIRTHDAY)) {
-				generator
-					.writeStringField(
-						JSON_KEY_BIRTHDAY,
-						DATE_TIME_RESPONSE_FORMATTER
-							.print(birthday));
-			}
-
-			// If applicable, output the 'location' column.
-			if(allColumns || columns.hasChild(JSON_KEY_LOCATION)) {
-				generator.writeStringField(JSON_KEY_LOCATION, location);
-			}
-
-			// If applicable, output the 'name' column.
-			if(allColumns || columns.hasChild(JSON_KEY_NAME)) {
-				generator.writeStringField(JSON_KEY_NAME, name);
-			}
-
-			// If applicable, output the 'elite' column.
-			if(allColumns || columns.hasChild(JSON_KEY_ELITE)) {
-				generator.writeStringField(JSON_KEY_ELITE, elite);
+			/**
+			 * Creates a cursor over the first page's response.
+			 * 
+			 * @param bearer The "Bearer" token generated by RunKeeper.
+			 * 
+			 * @param plan The plan for the window.
+			 * 
+			 * @param startDate The earliest allowed date or null.
+			 * 
+			 * @param deadline The deadline by which the request must finish.
+			 * 				   No more pages are requested after it.
+			 * 
+			 * @param response The response for the first page, already
+			 * 				   positioned at the start of its items, or null
+			 * 				   if it had no items.
+			 */
+			private PageCursor(
+					final String bearer,
+					final RunKeeperPagePlan plan,
+					final DateTime startDate,
+					final RunKeeperDeadline deadline,
+					final RunKeeperResponse response) {
+				
+				this.bearer = bearer;
+				this.plan = plan;
+				this.startDate = startDate;
+				this.deadline = deadline;
+				this.response = response;
 			}
-
-			// If applicable, output the 'gender' column.
-			if(allColumns || columns.hasChild(JSON_KEY_GENDER)) {
-				generator.writeStringField(JSON_KEY_GENDER, gender);
+			
+			/**
+			 * Reads the next record in the window.
+			 * 
+			 * @param result The result to populate.
+			 * 
+			 * @return True if a record was read; false if the window has been
+			 * 		   exhausted.
+			 * 
+			 * @throws DomainException A record was not in the expected format
+			 * 						   or the next page could not be 
+			 * 						   requested.
+			 * 
+			 * @throws IOException There was an error reading the response.
+			 */
+			private boolean next(
+					final Result result)
+					throws DomainException, IOException {
+				
+				while(	(response != null) &&
+						(returned < plan.getLimit()) &&
+						(! passedStartDate)) {
+					
+					JsonParser parser = response.getParser();
+					if(nextResult(parser, result, fields)) {
+						parsed++;
+						
+						// Once we pass the start date, the rest of the 
+						// records are too old.
+						if(	(startDate != null) && 
+							startDate.isAfter(result.startTime)) {
+							
+							filtered++;
+							passedStartDate = true;
+							break;
+						}
+						
+						// Discard the records before the window.
+						if((pagesRead == 0) && (position++ < plan.getOffset())) {
+							filtered++;
+							continue;
+						}
+						
+						returned++;
+						return true;
+					}
+					
+					// This page is finished, so move on to the next one if 
+					// the window extends into it.
+					pagesRead++;
+					String next = readNext(parser);
+					response.close();
+					response = null;
+					
+					if((next != null) && (pagesRead < plan.getNumPages())) {
+						response = openLink(bearer, next, deadline);
+						if(! seekItems(response.getParser(), null)) {
+							response.close();
+							response = null;
+						}
+					}
+				}
+				
+				return false;
 			}
-
-			// If applicable, output the 'athlete_type' column.
-			if(allColumns || columns.hasChild(JSON_KEY_ATHLETE_TYPE)) {
-				generator.writeStringField(JSON_KEY_ATHLETE_TYPE, athleteType);
+			
+			/**
+			 * Records that the caller discarded the last record that was 
+			 * read, e.g. because it was after the end date.
+			 */
+			private void discard() {
+				filtered++;
 			}
-
-			// If applicable, output the 'profile' column.
-			if(allColumns || columns.hasChild(JSON_KEY_PROFILE)) {
-				generator.writeStringField(JSON_KEY_PROFILE, profile);
+			
+			/**
+			 * Finishes the current page, if any, such that its connection may
+			 * be reused if little of it is left unread.
+			 */
+			private void close() {
+				if(response != null) {
+					response.close();
+					response = null;
+				}
+				flush();
 			}
 			
-			// End the data.
-			generator.writeEndObject();
+			/**
+			 * Discards the current page's connection, if any.
+			 */
+			private void abort() {
+				if(response != null) {
+					response.abort();
+					response = null;
+				}
+				flush();
+			}
 			
-			// End the only data point.
-			generator.writeEndObject();
+			/**
+			 * Adds the records counted so far to the API's 
+			 * {@link RunKeeperMetrics metrics}.
+			 */
+			private void flush() {
+				RunKeeperMetrics metrics = getMetrics();
+				metrics.recordParsed(parsed);
+				metrics.recordFiltered(filtered);
+				parsed = 0;
+				filtered = 0;
+			}
 		}
-	}
-	
-	/**
-	 * A {@link RunKeeperApi} for the user's fitness activities.
-	 *
-	 * @author John Jenkins
-	 */
-	public static class FitnessActivitiesApi extends RunKeeperApi {
-		/**
-		 * The URL's path to the profile. Should be used in conjunction with 
-		 * the {@link #BASE_URL base URL}.
-		 */
-		private static final String PATH = "fitnessActivities";
-		
-		/**
-		 * The number of records to skip _at the end of the returned list_. If
-		 * we are returned 10 records and this value is 3, we return the
-		 * _first_ 7 records.
-		 */
-		private long numToSkip = 0;
 		
 		/**
-		 * This class represents a single data point returned from the API.
+		 * The user's fitness activities as the results of a single request.
 		 *
 		 * @author John Jenkins
 		 */
-		private static final class Result {
-			private static final String JSON_KEY_TYPE = "type";
-			private static final String JSON_KEY_START_TIME = "start_time";
-			private static final String JSON_KEY_TOTAL_DISTANCE = 
-				"total_distance";
-			private static final String JSON_KEY_DURATION = "duration";
-			private static final String JSON_KEY_URI = "uri";
+		private static final class ActivitiesResult extends RunKeeperResult {
+			/**
+			 * The results for this request. Once the request has been 
+			 * serviced, this table is frozen.
+			 */
+			private final ActivityTable results = new ActivityTable(16);
 			
-			private String id;
-			private String type;
-			private DateTime startTime;
-			private double totalDistance;
-			private double duration;
-			private String uri;
-
 			/**
-			 * Generates the Concordia schema for this path.
-			 * 
-			 * @param generator The generator to use to write the definition.
-			 * 
-			 * @return The 'generator' that was passed in to facilitate
-			 * 		   chaining.
-			 * 
-			 * @throws JsonGenerationException There was a problem generating 
-			 * 								   the JSON.
-			 * 
-			 * @throws IOException There was a problem writing to the 
-			 * 					   generator.
+			 * The pages that were requested from RunKeeper.
 			 */
-			public static JsonGenerator toConcordia(
-					final JsonGenerator generator)
-					throws JsonGenerationException, IOException {
-				
-				// Start the definition.
-				generator.writeStartObject();
-				
-				// The data will always be a JSON object.
-				generator.writeStringField("type", "object");
-				generator.writeArrayFieldStart("schema");
-				
-				// Add the 'duration' field.
-				generator.writeStartObject();
-				generator.writeStringField("name", JSON_KEY_DURATION);
-				generator.writeStringField("type", "number");
-				generator.writeEndObject();
-				
-				// Add the 'start_time' field.
-				generator.writeStartObject();
-				generator.writeStringField("name", JSON_KEY_START_TIME);
-				generator.writeStringField("type", "string");
-				generator.writeEndObject();
+			private RunKeeperPagePlan plan = null;
+			/**
+			 * The total number of records RunKeeper reported or -1 if it did
+			 * not report one.
+			 */
+			private long sizeHint = -1;
+			
+			/**
+			 * Whether or not this request is streaming its items.
+			 */
+			private boolean streamed = false;
+			/**
+			 * The open cursor when streaming or null if there is none.
+			 */
+			private PageCursor streamCursor = null;
+			/**
+			 * The start date to filter the streamed items.
+			 */
+			private DateTime startDate = null;
+			/**
+			 * The end date to filter the streamed items.
+			 */
+			private DateTime endDate = null;
+			/**
+			 * The number of streamed items that were written or -1 if they 
+			 * have not been written yet.
+			 */
+			private long numStreamed = -1;
+			/**
+			 * Whether or not the deadline passed before all of the items 
+			 * were read, so only some of them are returned.
+			 */
+			private boolean partial = false;
+			
+			/**
+			 * In streaming mode, this is the number of items that were 
+			 * actually written if the response has already been written. 
+			 * Otherwise, the items have not been read yet, so this is an upper
+			 * bound based on the requested window and the "size" hint from
+			 * RunKeeper, if it was given before the items.
+			 */
+			@Override
+			public long getNumDataPoints() {
+				if(streamed) {
+					if(numStreamed >= 0) {
+						return numStreamed;
+					}
+					else if(sizeHint >= 0) {
+						return
+							Math.min(
+								plan.getLimit(),
+								Math.max(
+									0,
+									sizeHint - 
+										(plan.getFirstPage() * plan.getPageSize()) -
+										plan.getOffset()));
+					}
+					else {
+						return plan.getLimit();
+					}
+				}
 				
-				// Add the 'total_distance' field.
-				generator.writeStartObject();
-				generator.writeStringField("name", JSON_KEY_TOTAL_DISTANCE);
-				generator.writeStringField("type", "number");
-				generator.writeEndObject();
+				return results.size();
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperResult#respond(org.codehaus.jackson.JsonGenerator, org.ohmage.request.observer.StreamReadRequest.ColumnNode, long)
+			 */
+			@Override
+			protected void respond(
+					final JsonGenerator generator,
+					final ColumnNode<String> columns,
+					final long staleSince)
+					throws JsonGenerationException, IOException, DomainException {
+
+				// Create the reusable buffer for the date-times.
+				char[] dateTimeBuffer = 
+					new char[RunKeeperDateTimeCodec.MAX_LENGTH];
 				
-				// Add the 'type' field.
-				generator.writeStartObject();
-				generator.writeStringField("name", JSON_KEY_TYPE);
-				generator.writeStringField("type", "string");
-				generator.writeEndObject();
+				// Determine which columns need to be output.
+				int mask = compileColumns(columns, Result.COLUMNS);
 				
-				// Add the 'uri' field.
-				generator.writeStartObject();
-				generator.writeStringField("name", JSON_KEY_URI);
-				generator.writeStringField("type", "string");
-				generator.writeEndObject();
+				// If we are not streaming, write each of the stored objects, 
+				// reusing the same result object throughout.
+				if(! streamed) {
+					Result result = new Result();
+					for(int i = 0; i < results.size(); i++) {
+						results.get(i, result);
+						writeResult(
+							generator,
+							mask,
+							dateTimeBuffer,
+							result,
+							staleSince);
+					}
+					return;
+				}
 				
-				// End the overall schema array.
-				generator.writeEndArray();
+				// Otherwise, read each item from RunKeeper and write it 
+				// immediately, reusing the same result object throughout.
+				numStreamed = 0;
+				PageCursor cursor = streamCursor;
+				if(cursor == null) {
+					return;
+				}
+				streamCursor = null;
 				
-				// End the definition.
-				generator.writeEndObject();
+				// The columns are only known now, so only the streamed items 
+				// can skip the fields that will not be written.
+				cursor.fields = mask | Result.REQUIRED_COLUMNS;
 				
-				// Return the generator.
-				return generator;
+				RunKeeperTiming timing = cursor.deadline.getTiming();
+				boolean complete = false;
+				try {
+					Result result = new Result();
+					while(cursor.next(result)) {
+						if(isInRange(result, startDate, endDate)) {
+							long writeStart = timing.begin();
+							writeResult(
+								generator,
+								mask,
+								dateTimeBuffer,
+								result,
+								staleSince);
+							numStreamed++;
+							
+							// The page's body is open while the item is 
+							// written, but that time is not spent parsing.
+							timing
+								.stopWithin(
+									RunKeeperTiming.Phase.SERIALIZE,
+									RunKeeperTiming.Phase.PARSE,
+									writeStart);
+						}
+						else {
+							cursor.discard();
+						}
+					}
+					
+					complete = true;
+				}
+				catch(DomainException e) {
+					// If the deadline passed before the next page could be
+					// read, end the response with what was already written.
+					if(! RunKeeperDeadline.isExpiration(e)) {
+						throw e;
+					}
+					
+					LOGGER
+						.warn(
+							"The deadline passed after " + numStreamed + 
+								" activities were written, so the rest " +
+								"were not read.");
+					complete = true;
+				}
+				catch(JsonParseException e) {
+					throw new DomainException(
+						"The result was not valid JSON.",
+						e);
+				}
+				finally {
+					if(complete) {
+						cursor.close();
+					}
+					else {
+						cursor.abort();
+					}
+				}
+			}
+			
+			/**
+			 * Streamed results can only be written once, so they cannot be
+			 * shared. Partial results are not shared either, so that another
+			 * request may try to read all of them.
+			 */
+			@Override
+			public boolean isShareable() {
+				return (! streamed) && (! partial);
+			}
+			
+			/**
+			 * Discards the open response if these results are being streamed
+			 * and were never written.
+			 */
+			@Override
+			public void release() {
+				PageCursor cursor = streamCursor;
+				if(cursor != null) {
+					streamCursor = null;
+					cursor.abort();
+				}
 			}
 		}
-		List<Result> results = new LinkedList<Result>();
 		
 		/**
-		 * Creates a {@link RunKeeperApi} to the user's fitness activities.
+		 * Creates a {@link RunKeeperApi} to the user's fitness activities. 
+		 * Only the {@link RunKeeperApiFactory factory} creates one.
 		 */
-		public FitnessActivitiesApi() {
+		private FitnessActivitiesApi() {
 			super(PATH);
 		}
 		
+		/**
+		 * Sets whether or not new requests should stream their items from 
+		 * RunKeeper directly to the output. Streaming keeps the memory used
+		 * by each request constant regardless of the page size, but it keeps
+		 * the connection to RunKeeper open until the response is written and
+		 * the number of data points is only an estimate until then.
+		 * 
+		 * @param streaming Whether or not to stream the items.
+		 */
+		public static void setStreaming(final boolean streaming) {
+			FitnessActivitiesApi.streaming = streaming;
+		}
+		
+		/**
+		 * Configures how the pages of a window that spans multiple pages are
+		 * fetched.
+		 * 
+		 * @param fanOut The number of pages a single request may fetch at 
+		 * 				 once. If this is one, pages are fetched one after 
+		 * 				 another.
+		 * 
+		 * @param maxConcurrentFetches The number of pages that may be fetched
+		 * 							   at once across all requests.
+		 * 
+		 * @throws IllegalArgumentException Either limit is not positive.
+		 */
+		public static void configureParallelFetch(
+				final int fanOut,
+				final int maxConcurrentFetches) {
+			
+			if(fanOut <= 0) {
+				throw new IllegalArgumentException(
+					"The fan-out must be positive.");
+			}
+			if(maxConcurrentFetches <= 0) {
+				throw new IllegalArgumentException(
+					"The maximum number of concurrent fetches must be positive.");
+			}
+			
+			fetchFanOut = fanOut;
+			fetchPermits = new Semaphore(maxConcurrentFetches);
+		}
+		
+		/**
+		 * Sets the largest page size to request from RunKeeper. Windows that
+		 * are larger than this are read across multiple pages.
+		 * 
+		 * @param maxPageSize The largest page size.
+		 * 
+		 * @throws IllegalArgumentException The page size is not positive.
+		 */
+		public static void setMaxPageSize(final int maxPageSize) {
+			if(maxPageSize <= 0) {
+				throw new IllegalArgumentException(
+					"The maximum page size must be positive.");
+			}
+			
+			FitnessActivitiesApi.maxPageSize = maxPageSize;
+		}
+		
+		/**
+		 * Configures the local mirror of users' fitness activities. Any
+		 * activities that were already mirrored are discarded.
+		 * 
+		 * @param enabled Whether or not reads should be answered from the
+		 * 				  mirror.
+		 * 
+		 * @param size The maximum number of users whose activities are 
+		 * 			   mirrored at once.
+		 * 
+		 * @param syncInterval The minimum number of milliseconds between
+		 * 					   synchronizations of a user's activities with 
+		 * 					   RunKeeper.
+		 * 
+		 * @param fullSyncInterval The minimum number of milliseconds between
+		 * 						   synchronizations that read all of a user's
+		 * 						   activities again, which notice activities 
+		 * 						   that were edited or deleted before the day
+		 * 						   of the newest one. If zero, they are only
+		 * 						   read in full once.
+		 * 
+		 * @throws IllegalArgumentException The size is not positive or either
+		 * 									interval is negative.
+		 */
+		public static void configureMirror(
+				final boolean enabled,
+				final int size,
+				final long syncInterval,
+				final long fullSyncInterval) {
+			
+			if(size <= 0) {
+				throw new IllegalArgumentException(
+					"The mirror size must be positive.");
+			}
+			if(syncInterval < 0) {
+				throw new IllegalArgumentException(
+					"The synchronization interval must not be negative.");
+			}
+			if(fullSyncInterval < 0) {
+				throw new IllegalArgumentException(
+					"The full synchronization interval must not be negative.");
+			}
+			
+			mirrors = createMirrors(size);
+			mirrorSyncInterval = syncInterval;
+			mirrorFullSyncInterval = fullSyncInterval;
+			mirrorEnabled = enabled;
+		}
+		
+		/**
+		 * Creates a synchronized, bounded, least-recently-used map of 
+		 * mirrors.
+		 * 
+		 * @param maxSize The maximum number of users to mirror.
+		 * 
+		 * @return The new map.
+		 */
+		private static Map<String, ActivityMirror> createMirrors(
+				final int maxSize) {
+			
+			return
+				Collections.synchronizedMap(
+					new LinkedHashMap<String, ActivityMirror>(16, 0.75f, true) {
+						private static final long serialVersionUID = 1L;
+						
+						/**
+						 * Evicts the least recently used mirror once the map
+						 * is full.
+						 */
+						@Override
+						protected boolean removeEldestEntry(
+								final Map.Entry<String, ActivityMirror> eldest) {
+							
+							return size() > maxSize;
+						}
+					});
+		}
+		
 		/*
 		 * (non-Javadoc)
 		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#getPath()
@@ -907,139 +3850,510 @@ public class RunKeeperPayloadId implements PayloadId {
 			// Return the generator.
 			return Result.toConcordia(generator);
 		}
-
-		/*
-		 * (non-Javadoc)
-		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#makeRequest(java.lang.String, org.joda.time.DateTime, org.joda.time.DateTime, long, long)
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi#makeRequest(java.lang.String, org.joda.time.DateTime, org.joda.time.DateTime, long, long, org.ohmage.domain.RunKeeperDeadline)
+		 */
+		@Override
+		protected RunKeeperResult makeRequest(
+				final String bearer,
+				final DateTime startDate,
+				final DateTime endDate,
+				final long numToSkip,
+				final long numToReturn,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			ActivitiesResult result = new ActivitiesResult();
+			read(
+				result,
+				bearer,
+				startDate,
+				endDate,
+				numToSkip,
+				numToReturn,
+				deadline);
+			
+			// The results may now be shared, so they must not change.
+			result.results.freeze();
+			
+			return result;
+		}
+		
+		/**
+		 * Reads the activities into the results or, when streaming, prepares
+		 * them to be read while responding.
+		 * 
+		 * @param result The results to populate.
+		 * 
+		 * @see #makeRequest(String, DateTime, DateTime, long, long, RunKeeperDeadline)
+		 */
+		private void read(
+				final ActivitiesResult result,
+				final String bearer,
+				final DateTime startDate,
+				final DateTime endDate,
+				final long numToSkip,
+				final long numToReturn,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			// If we are mirroring, answer the request locally.
+			if(mirrorEnabled) {
+				readMirror(
+					result,
+					bearer,
+					startDate,
+					endDate,
+					numToSkip,
+					numToReturn,
+					deadline);
+				return;
+			}
+			
+			Map<String, String> params = new HashMap<String, String>();
+			if(startDate != null) {
+				params
+					.put(
+						"noEarlierThan",
+						DATE_TIME_REQUEST_FORMATTER.print(startDate));
+			}
+			if(endDate != null) {
+				params
+					.put(
+						"noLaterThan",
+						DATE_TIME_REQUEST_FORMATTER.print(endDate));
+			}
+			
+			// Map the window onto RunKeeper's pages. 
+			RunKeeperPagePlan plan = 
+				RunKeeperPagePlan
+					.create(numToSkip, numToReturn, maxPageSize);
+			result.plan = plan;
+			if(plan.isEmpty()) {
+				return;
+			}
+			params.put("pageSize", Long.toString(plan.getPageSize()));
+			
+			// If the window spans multiple pages, fetch them all at once.
+			if((! streaming) && (plan.getNumPages() > 1) && (fetchFanOut > 1)) {
+				readPagesInParallel(
+					result,
+					bearer,
+					params,
+					plan,
+					startDate,
+					endDate,
+					deadline);
+				return;
+			}
+			params.put("page", Long.toString(plan.getFirstPage()));
+			
+			RunKeeperResponse response = openRequest(bearer, params, deadline);
+			PageCursor cursor = null;
+			boolean complete = false;
+			
+			// Process the API's response.
+			try {
+				// Find the array of result points. If there is none, there is
+				// no data.
+				if(! seekItems(response.getParser(), result)) {
+					complete = true;
+					return;
+				}
+				cursor = 
+					new PageCursor(bearer, plan, startDate, deadline, response);
+				
+				// In streaming mode, leave the cursor open and positioned at
+				// the first item. The items will be read as they are written
+				// in 'respond()'.
+				if(streaming) {
+					result.streamed = true;
+					result.startDate = startDate;
+					result.endDate = endDate;
+					result.streamCursor = cursor;
+					return;
+				}
+				
+				// Otherwise, read all of the items now. If the deadline passes
+				// before the next page can be read, keep what we have.
+				Result currResult = new Result();
+				try {
+					while(cursor.next(currResult)) {
+						if(isInRange(currResult, startDate, endDate)) {
+							result.results.add(currResult);
+						}
+						else {
+							cursor.discard();
+						}
+					}
+				}
+				catch(DomainException e) {
+					if(! RunKeeperDeadline.isExpiration(e)) {
+						throw e;
+					}
+					
+					LOGGER
+						.warn(
+							"The deadline passed after " + 
+								result.results.size() + " activities were " +
+								"read, so only those will be returned.");
+					result.partial = true;
+				}
+				
+				complete = true;
+			}
+			catch(JsonParseException e) {
+				throw new DomainException("The result was not valid JSON.", e);
+			}
+			catch(IOException e) {
+				throw new DomainException("Could not read the result.", e);
+			}
+			finally {
+				// If the cursor was handed off for streaming, it will be
+				// finished in 'respond()'.
+				if((cursor == null) || (result.streamCursor != cursor)) {
+					// Reuse the connection if the response was read 
+					// successfully. Otherwise, its state is unknown and it 
+					// must be discarded.
+					if(complete) {
+						if(cursor != null) {
+							cursor.close();
+						}
+						response.close();
+					}
+					else {
+						response.abort();
+						if(cursor != null) {
+							cursor.abort();
+						}
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Answers the request from the local mirror of the user's activities,
+		 * first synchronizing the mirror if necessary.
+		 * 
+		 * @param result The results to populate.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param startDate The earliest allowed date or null.
+		 * 
+		 * @param endDate The latest allowed date or null.
+		 * 
+		 * @param numToSkip The number of matching activities to skip.
+		 * 
+		 * @param numToReturn The number of matching activities to return.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @throws DomainException The mirror has never been synchronized and
+		 * 						   synchronizing it failed or did not finish by the
+		 * 						   deadline.
+		 */
+		private void readMirror(
+				final ActivitiesResult result,
+				final String bearer,
+				final DateTime startDate,
+				final DateTime endDate,
+				final long numToSkip,
+				final long numToReturn,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			Map<String, ActivityMirror> mirrors = FitnessActivitiesApi.mirrors;
+			ActivityMirror mirror;
+			synchronized(mirrors) {
+				mirror = mirrors.get(bearer);
+				if(mirror == null) {
+					mirror = new ActivityMirror();
+					mirrors.put(bearer, mirror);
+				}
+			}
+			
+			ActivityMirror.Snapshot snapshot = 
+				mirror.sync(this, bearer, deadline);
+			if(snapshot.stale) {
+				result.markStale(snapshot.retrieved);
+			}
+			
+			ActivityTable activities = snapshot.activities;
+			RunKeeperTiming timing = deadline.getTiming();
+			long filterStart = timing.begin();
+			long skipped = 0;
+			for(int i = 0; i < activities.size(); i++) {
+				if(result.results.size() >= numToReturn) {
+					break;
+				}
+				// The activities are in reverse-chronological order, so once
+				// we pass the start date, there is nothing left to find.
+				long startTime = activities.getStartTime(i);
+				if((startDate != null) && startDate.isAfter(startTime)) {
+					break;
+				}
+				if((endDate != null) && endDate.isBefore(startTime)) {
+					continue;
+				}
+				if(skipped < numToSkip) {
+					skipped++;
+					continue;
+				}
+				
+				result.results.add(activities, i);
+			}
+			timing.stop(RunKeeperTiming.Phase.FILTER, filterStart);
+		}
+		
+		/**
+		 * Reads all of the pages in the plan at the same time, up to the
+		 * fan-out per request and the global limit on concurrent page 
+		 * fetches, and then merges them in order.
+		 * 
+		 * @param result The results to populate.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param params The parameters shared by every page.
+		 * 
+		 * @param plan The plan for the window.
+		 * 
+		 * @param startDate The earliest allowed date or null.
+		 * 
+		 * @param endDate The latest allowed date or null.
+		 * 
+		 * @param deadline The deadline by which the request must finish. If 
+		 * 				   it passes, only the pages before the first one that
+		 * 				   was not read are kept.
+		 * 
+		 * @throws DomainException One of the pages could not be read or the
+		 * 						   deadline passed before the first page was
+		 * 						   read.
+		 */
+		private void readPagesInParallel(
+				final ActivitiesResult result,
+				final String bearer,
+				final Map<String, String> params,
+				final RunKeeperPagePlan plan,
+				final DateTime startDate,
+				final DateTime endDate,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
+			
+			final int numPages = (int) plan.getNumPages();
+			final List<ActivityTable> pages = 
+				new ArrayList<ActivityTable>(
+					Collections.<ActivityTable>nCopies(numPages, null));
+			final AtomicInteger nextPage = new AtomicInteger(0);
+			final AtomicReference<DomainException> failure =
+				new AtomicReference<DomainException>();
+			final Semaphore permits = fetchPermits;
+			
+			// Each worker takes the next unclaimed page until there are none
+			// left or one of the workers fails.
+			final class PageWorker implements Callable<Void> {
+				/**
+				 * Reads pages until there are none left.
+				 */
+				@Override
+				public Void call() {
+					int page;
+					while(	(failure.get() == null) &&
+							((page = nextPage.getAndIncrement()) < numPages)) {
+						
+						Map<String, String> pageParams = 
+							new HashMap<String, String>(params);
+						pageParams
+							.put(
+								"page",
+								Long.toString(plan.getFirstPage() + page));
+						
+						// Wait for a permit no longer than the read has left.
+						try {
+							if(! permits
+									.tryAcquire(
+										deadline.remainingNanos(),
+										TimeUnit.NANOSECONDS)) {
+								
+								failure.compareAndSet(null, deadline.expired());
+								return null;
+							}
+						}
+						catch(InterruptedException e) {
+							failure
+								.compareAndSet(
+									null,
+									new DomainException(
+										"Interrupted while waiting to read a page.",
+										e));
+							Thread.currentThread().interrupt();
+							return null;
+						}
+						// Only read as far into the page as the window goes.
+						long maxItems =
+							Math.min(
+								plan.getPageSize(),
+								plan.getOffset() + plan.getLimit() -
+									(page * plan.getPageSize()));
+						try {
+							pages
+								.set(
+									page,
+									fetchPage(
+										bearer,
+										pageParams,
+										startDate,
+										maxItems,
+										deadline));
+						}
+						catch(DomainException e) {
+							failure.compareAndSet(null, e);
+						}
+						finally {
+							permits.release();
+						}
+					}
+					
+					return null;
+				}
+			}
+			PageWorker worker = new PageWorker();
+			
+			// Run the extra workers in the background and one on this thread,
+			// so that progress is made even if the pool is saturated.
+			int numWorkers = Math.min(fetchFanOut, numPages);
+			List<Future<Void>> futures = 
+				new ArrayList<Future<Void>>(numWorkers - 1);
+			for(int i = 1; i < numWorkers; i++) {
+				futures.add(RunKeeperExecutor.submit(worker, deadline));
+			}
+			worker.call();
+			for(Future<Void> future : futures) {
+				// Once a page has failed, the others are useless, so abort 
+				// any that are still being read.
+				if(failure.get() != null) {
+					future.cancel(true);
+					continue;
+				}
+				
+				try {
+					RunKeeperExecutor.await(future, deadline);
+				}
+				catch(DomainException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+			DomainException currFailure = failure.get();
+			if(currFailure != null) {
+				// If the deadline passed, the pages that were being read 
+				// were aborted, so keep those that were read before the 
+				// first one that was not.
+				if(	(! RunKeeperDeadline.isExpiration(currFailure)) &&
+					(! deadline.isExpired())) {
+					
+					throw currFailure;
+				}
+				if(pages.get(0) == null) {
+					throw deadline.expired();
+				}
+				
+				LOGGER
+					.warn(
+						"The deadline passed before all " + numPages + 
+							" pages were read, so only the first pages " +
+							"will be returned.");
+				result.partial = true;
+			}
+			
+			// Merge the pages in order, which keeps the results in 
+			// reverse-chronological order, and trim them to the window.
+			RunKeeperTiming timing = deadline.getTiming();
+			long filterStart = timing.begin();
+			long position = 0;
+			long returned = 0;
+			long parsed = 0;
+			for(ActivityTable page : pages) {
+				if(page == null) {
+					break;
+				}
+				parsed += page.size();
+				for(int i = 0; 
+					(i < page.size()) && (returned < plan.getLimit());
+					i++) {
+					
+					if(position++ < plan.getOffset()) {
+						continue;
+					}
+					returned++;
+					
+					long startTime = page.getStartTime(i);
+					if(	((startDate == null) || 
+							(! startDate.isAfter(startTime))) &&
+						((endDate == null) || 
+							(! endDate.isBefore(startTime)))) {
+						
+						result.results.add(page, i);
+					}
+				}
+			}
+			timing.stop(RunKeeperTiming.Phase.FILTER, filterStart);
+			getMetrics().recordFiltered(parsed - result.results.size());
+		}
+		
+		/**
+		 * Reads a single page of activities, stopping early once it has read
+		 * enough of them or it reads one from before the start date.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param params The parameters for the page.
+		 * 
+		 * @param startDate The earliest allowed date or null. The first 
+		 * 					activity before this date is kept, but nothing
+		 * 					after it is read.
+		 * 
+		 * @param maxItems The most activities to read.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The activities in the order RunKeeper returned them.
+		 * 
+		 * @throws DomainException There was an error making the request or
+		 * 						   reading its response.
 		 */
-		@Override
-		public void makeRequest(
+		private ActivityTable fetchPage(
 				final String bearer,
+				final Map<String, String> params,
 				final DateTime startDate,
-				final DateTime endDate,
-				final long numToSkip,
-				final long numToReturn)
+				final long maxItems,
+				final RunKeeperDeadline deadline)
 				throws DomainException {
 			
-			Map<String, String> params = new HashMap<String, String>();
-			if(startDate != null) {
-				params
-					.put(
-						"noEarlierThan",
-						DATE_TIME_REQUEST_FORMATTER.print(startDate));
-			}
-			if(endDate != null) {
-				params
-					.put(
-						"noLaterThan",
-						DATE_TIME_REQUEST_FORMATTER.print(endDate));
-			}
-			
-			// Calculate the number of records to skip and return. We may end
-			// up getting back more than we wanted, but the 'this.numToSkip'
-			// will indicate how many to omit.
-			if(numToReturn != 0) {
-				this.numToSkip = numToSkip % numToReturn;
-				params.put("page", Long.toString(numToSkip / numToReturn));
-			}
-			else {
-				params.put("page", "0");
-			}
-			params
-				.put("pageSize", Long.toString(numToReturn + this.numToSkip));
+			ActivityTable fetched = 
+				new ActivityTable((int) Math.min(maxItems, maxPageSize));
 			
-			String resultString = makeRequest(bearer, params);
-			// Process the API's response.
+			RunKeeperResponse response = openRequest(bearer, params, deadline);
+			boolean complete = false;
 			try {
-				JsonParser parser = 
-					JSON_FACTORY.createJsonParser(resultString);
-	
-				// Ensure that the response is a JSON object.
-				if(parser.nextToken() != JsonToken.START_OBJECT) {
-					throw 
-						new DomainException(
-							"The response was not a JSON object.");
-				}
-				
-				// FIXME: This is buggy and requires more careful processing.
-				// The issue is, there is an assumption that the resulting data
-				// will not vary from what is expected from this code. If the
-				// data's format were to vary, the results are undefined.
-				//
-				// While we have not reached the end of the response.
-				while(parser.nextToken() != null) {
-					// Get the field's name and point to its value.
-					String fieldName = parser.getCurrentName();
-					
-					// Get the array of result points.
-					if("items".equals(fieldName)) {
-						if(parser.nextToken() != JsonToken.START_ARRAY) {
-							throw new DomainException(
-								"The 'items' field was not a JSON array.");
-						}
+				JsonParser parser = response.getParser();
+				if(seekItems(parser, null)) {
+					Result currResult = new Result();
+					while(	(fetched.size() < maxItems) &&
+							nextResult(parser, currResult, Result.ALL_COLUMNS)) {
 						
-						// Loop through each index.
-						JsonToken currToken;
-						while((currToken = parser.nextToken()) != JsonToken.END_ARRAY) {
-							// The data at each index must be an object.
-							if(currToken != JsonToken.START_OBJECT) {
-								throw new DomainException(
-									"The array element is not a JSON object: " +
-										currToken.toString());
-							}
-							
-							// Create the new Result object.
-							Result currResult = new Result();
+						fetched.add(currResult);
+						if(	(startDate != null) &&
+							startDate.isAfter(currResult.startTime)) {
 							
-							// Loop through all of the elements in the object.
-							while(parser.nextToken() != JsonToken.END_OBJECT) {
-								// Get the field's name.
-								String currFieldName = parser.getCurrentName();
-								
-								// Advance the pointer to the field's value.
-								parser.nextToken();
-								
-								if(Result.JSON_KEY_DURATION.equals(currFieldName)) {
-									currResult.duration = 
-										parser.getNumberValue().doubleValue(); 
-								}
-								else if(Result.JSON_KEY_START_TIME.equals(currFieldName)) {
-									currResult.startTime = 
-										DATE_TIME_RESPONSE_FORMATTER
-											.parseDateTime(parser.getText());
-								}
-								else if(Result.JSON_KEY_TOTAL_DISTANCE.equals(currFieldName)) {
-									currResult.totalDistance =
-										parser.getNumberValue().doubleValue();
-								}
-								else if(Result.JSON_KEY_TYPE.equals(currFieldName)) {
-									currResult.type = parser.getText();
-								}
-								else if(Result.JSON_KEY_URI.equals(currFieldName)) {
-									currResult.uri = parser.getText();
-									
-									String[] uriParts = 
-										currResult.uri.split("/");
-									currResult.id = 
-										uriParts[uriParts.length - 1];
-								}
-							}
-
-							// If it is not before the start date or after the
-							// end date, add it to the results.
-							if(!(	(startDate != null) &&
-									(startDate.isAfter(currResult.startTime))
-								) ||
-								(	(endDate != null) &&
-									(endDate.isBefore(currResult.startTime)))) {
-								
-								results.add(currResult);
-							}
+							break;
 						}
 					}
-					// Otherwise, it was a value we didn't understand and will
-					// ignore for now.
 				}
+				
+				complete = true;
 			}
 			catch(JsonParseException e) {
 				throw new DomainException("The result was not valid JSON.", e);
@@ -1047,120 +4361,420 @@ public class RunKeeperPayloadId implements PayloadId {
 			catch(IOException e) {
 				throw new DomainException("Could not read the result.", e);
 			}
+			finally {
+				if(complete) {
+					response.close();
+				}
+				else {
+					response.abort();
+				}
+				getMetrics().recordParsed(fetched.size());
+			}
+			
+			return fetched;
 		}
-
-		/*
-		 * (non-Javadoc)
-		 * @see org.ohmage.request.omh.OmhReadResponder#getNumDataPoints()
-		 */
-		@Override
-		public long getNumDataPoints() {
-			return results.size();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * @see org.ohmage.request.omh.OmhReadResponder#respond(org.codehaus.jackson.JsonGenerator, org.ohmage.request.observer.StreamReadRequest.ColumnNode)
+		
+		/**
+		 * Reads one page of the activities that match the parameters and
+		 * appends them to a table. If the page cannot be read completely, 
+		 * none of its activities are kept.
+		 * 
+		 * @param bearer The "Bearer" token generated by RunKeeper.
+		 * 
+		 * @param params The parameters for the first page.
+		 * 
+		 * @param link The link to the page to read or null to read the first
+		 * 			   page.
+		 * 
+		 * @param fetched The table to append the page's activities to.
+		 * 
+		 * @param deadline The deadline by which the request must finish.
+		 * 
+		 * @return The link to the next page or null if this is the last page.
+		 * 
+		 * @throws DomainException There was an error making the request or
+		 * 						   reading its response.
 		 */
-		@Override
-		public void respond(
-				final JsonGenerator generator,
-				final ColumnNode<String> columns)
-				throws JsonGenerationException, IOException, DomainException {
-
-			// Create the reusable DateTimeFormatter. 
-			DateTimeFormatter isoDateTimeFormatter = 
-				ISODateTimeFormat.dateTime();
+		private String fetchPage(
+				final String bearer,
+				final Map<String, String> params,
+				final String link,
+				final ActivityTable fetched,
+				final RunKeeperDeadline deadline)
+				throws DomainException {
 			
-			// For each object,
-			for(Result result : results) {
-				// Start the overall object.
-				generator.writeStartObject();
-				
-				// Write the metadata.
-				generator.writeObjectFieldStart("metadata");
-				
-				// Write the ID.
-				generator.writeStringField("id", result.id);
-				
-				// Write the timestamp.
-				generator
-					.writeStringField(
-						"timestamp", 
-						isoDateTimeFormatter.print(result.startTime));
-				
-				// End the metadata object.
-				generator.writeEndObject();
-				
-				// Write the data.
-				generator.writeObjectFieldStart("data");
-				
-				// Determine if all columns are being returned.
-				boolean allColumns = (columns == null) || columns.isLeaf();
+			RunKeeperResponse response = 
+				(link == null) ?
+					openRequest(bearer, params, deadline) :
+					openLink(bearer, link, deadline);
+			int numFetched = fetched.size();
+			boolean complete = false;
+			
+			try {
+				JsonParser parser = response.getParser();
 				
-				// Write the 'duration' field.
-				if(allColumns || columns.hasChild(Result.JSON_KEY_DURATION)) {
-					generator
-						.writeNumberField(
-							Result.JSON_KEY_DURATION,
-							result.duration);
+				String next = null;
+				if(seekItems(parser, null)) {
+					Result currResult = new Result();
+					while(nextResult(parser, currResult, Result.ALL_COLUMNS)) {
+						fetched.add(currResult);
+					}
+					
+					next = readNext(parser);
 				}
 				
-				// Write the 'start_time' field.
-				if(allColumns || columns.hasChild(Result.JSON_KEY_START_TIME)) {
-					generator
-						.writeStringField(
-							Result.JSON_KEY_START_TIME,
-							DATE_TIME_RESPONSE_FORMATTER
-								.print(result.startTime));
+				complete = true;
+				return next;
+			}
+			catch(JsonParseException e) {
+				throw new DomainException("The result was not valid JSON.", e);
+			}
+			catch(IOException e) {
+				throw new DomainException("Could not read the result.", e);
+			}
+			finally {
+				getMetrics().recordParsed(fetched.size() - numFetched);
+				if(complete) {
+					response.close();
 				}
-				
-				// Write the 'total_distance' field.
-				if(allColumns || columns.hasChild(Result.JSON_KEY_TOTAL_DISTANCE)) {
-					generator
-						.writeNumberField(
-							Result.JSON_KEY_TOTAL_DISTANCE,
-							result.totalDistance);
+				else {
+					response.abort();
+					fetched.truncate(numFetched);
 				}
+			}
+		}
+		
+		/**
+		 * Reads the remaining fields of the response after the "items" array
+		 * looking for the link to the next page.
+		 * 
+		 * @param parser The parser positioned at the end of the "items" 
+		 * 				 array.
+		 * 
+		 * @return The link to the next page or null if this is the last page.
+		 * 
+		 * @throws IOException There was an error reading the response.
+		 */
+		private static String readNext(
+				final JsonParser parser)
+				throws IOException {
+			
+			String next = null;
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.getCurrentName();
+				parser.nextToken();
 				
-				// Write the 'type' field.
-				if(allColumns || columns.hasChild(Result.JSON_KEY_TYPE)) {
-					generator
-						.writeStringField(
-							Result.JSON_KEY_TYPE,
-							result.type);
+				if(JSON_KEY_NEXT.equals(fieldName)) {
+					next = parser.getText();
+				}
+				else {
+					parser.skipChildren();
 				}
+			}
+			
+			return next;
+		}
+		
+		/**
+		 * Advances the parser to the beginning of the "items" array. If the
+		 * "size" field is encountered along the way, it is recorded as a hint
+		 * for the number of data points.
+		 * 
+		 * @param parser The parser positioned before the response object.
+		 * 
+		 * @param result The results to record the hint in or null if it is 
+		 * 				 not needed.
+		 * 
+		 * @return True if the parser is now positioned at the start of the
+		 * 		   "items" array; false if the response did not contain one.
+		 * 
+		 * @throws DomainException The response was not in the expected 
+		 * 						   format.
+		 * 
+		 * @throws IOException There was an error reading the response.
+		 */
+		private static boolean seekItems(
+				final JsonParser parser,
+				final ActivitiesResult result)
+				throws DomainException, IOException {
+			
+			// Ensure that the response is a JSON object.
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw 
+					new DomainException(
+						"The response was not a JSON object.");
+			}
+			
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				// Get the field's name and point to its value.
+				String fieldName = parser.getCurrentName();
+				JsonToken valueToken = parser.nextToken();
 				
-				// Write the 'uri' field.
-				if(allColumns || columns.hasChild(Result.JSON_KEY_URI)) {
-					generator
-						.writeStringField(
-							Result.JSON_KEY_URI,
-							result.uri);
+				if(JSON_KEY_ITEMS.equals(fieldName)) {
+					if(valueToken != JsonToken.START_ARRAY) {
+						throw new DomainException(
+							"The 'items' field was not a JSON array.");
+					}
+					
+					return true;
+				}
+				else if(JSON_KEY_SIZE.equals(fieldName)) {
+					if(result != null) {
+						result.sizeHint = parser.getLongValue();
+					}
+				}
+				// Otherwise, it was a value we didn't understand and will
+				// ignore for now.
+				else {
+					parser.skipChildren();
 				}
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Reads the next item from the "items" array into the given result.
+		 * 
+		 * @param parser The parser positioned within the "items" array.
+		 * 
+		 * @param result The result to populate. Any previous values are 
+		 * 				 cleared.
+		 * 
+		 * @param fields The mask of the fields to read. The values of any 
+		 * 				 other fields are skipped without being decoded.
+		 * 
+		 * @return True if an item was read; false if the end of the array was
+		 * 		   reached.
+		 * 
+		 * @throws DomainException The item was not in the expected format or
+		 * 						   did not have a start time.
+		 * 
+		 * @throws IOException There was an error reading the response.
+		 */
+		private static boolean nextResult(
+				final JsonParser parser,
+				final Result result,
+				final int fields)
+				throws DomainException, IOException {
+			
+			JsonToken currToken = parser.nextToken();
+			if((currToken == JsonToken.END_ARRAY) || (currToken == null)) {
+				return false;
+			}
+			
+			// The data at each index must be an object.
+			if(currToken != JsonToken.START_OBJECT) {
+				throw new DomainException(
+					"The array element is not a JSON object: " +
+						currToken.toString());
+			}
+			
+			result.reset();
+			boolean hasStartTime = false;
+			
+			// Loop through all of the elements in the object.
+			while(parser.nextToken() != JsonToken.END_OBJECT) {
+				// Get the field's name.
+				String currFieldName = parser.getCurrentName();
 				
-				// End the data object.
-				generator.writeEndObject();
+				// Advance the pointer to the field's value.
+				parser.nextToken();
 				
-				// End the overall object.
-				generator.writeEndObject();
+				if(Result.JSON_KEY_DURATION.equals(currFieldName)) {
+					if((fields & Result.COLUMN_DURATION) != 0) {
+						result.duration = 
+							parser.getNumberValue().doubleValue();
+					}
+				}
+				else if(Result.JSON_KEY_START_TIME.equals(currFieldName)) {
+					try {
+						result.startTime = 
+							RunKeeperDateTimeCodec
+								.parseRunKeeper(
+									parser.getTextCharacters(),
+									parser.getTextOffset(),
+									parser.getTextLength());
+						hasStartTime = true;
+					}
+					catch(IllegalArgumentException e) {
+						throw new DomainException(
+							"The start time could not be parsed: " +
+								parser.getText(),
+							e);
+					}
+				}
+				else if(Result.JSON_KEY_TOTAL_DISTANCE.equals(currFieldName)) {
+					if((fields & Result.COLUMN_TOTAL_DISTANCE) != 0) {
+						result.totalDistance =
+							parser.getNumberValue().doubleValue();
+					}
+				}
+				else if(Result.JSON_KEY_TYPE.equals(currFieldName)) {
+					if((fields & Result.COLUMN_TYPE) != 0) {
+						result.type = parser.getText();
+					}
+				}
+				else if(Result.JSON_KEY_URI.equals(currFieldName)) {
+					result.setUri(parser.getText());
+				}
+				// Skip any values we don't use, including any nested 
+				// objects or arrays.
+				else {
+					parser.skipChildren();
+				}
+			}
+			
+			// Without a start time, the activity cannot be placed in time.
+			if(! hasStartTime) {
+				throw new DomainException(
+					"The activity does not have a start time: " + result.uri);
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Returns whether or not a result falls within the requested dates.
+		 * 
+		 * @param result The result to check.
+		 * 
+		 * @param startDate The earliest allowed date or null.
+		 * 
+		 * @param endDate The latest allowed date or null.
+		 * 
+		 * @return True if the result is not before the start date and not
+		 * 		   after the end date.
+		 */
+		private static boolean isInRange(
+				final Result result,
+				final DateTime startDate,
+				final DateTime endDate) {
+			
+			return
+				!(	(	(startDate != null) &&
+						(startDate.isAfter(result.startTime))
+					) ||
+					(	(endDate != null) &&
+						(endDate.isBefore(result.startTime))));
+		}
+
+		/**
+		 * Writes a single result as an OMH data point.
+		 * 
+		 * @param generator The generator to write to.
+		 * 
+		 * @param columns The mask of the columns to write.
+		 * 
+		 * @param dateTimeBuffer The buffer to print the date-times to.
+		 * 
+		 * @param result The result to write.
+		 * 
+		 * @param staleSince When the result was retrieved if it is stale or
+		 * 					 -1 if it is fresh.
+		 * 
+		 * @throws JsonGenerationException There was an error creating the 
+		 * 								   JSON.
+		 * 
+		 * @throws IOException There was an error writing to the generator.
+		 */
+		private static void writeResult(
+				final JsonGenerator generator,
+				final int columns,
+				final char[] dateTimeBuffer,
+				final Result result,
+				final long staleSince)
+				throws JsonGenerationException, IOException {
+			
+			// Start the overall object.
+			generator.writeStartObject();
+			
+			// Write the metadata.
+			generator.writeFieldName(FIELD_METADATA);
+			generator.writeStartObject();
+			
+			// Write the ID.
+			generator.writeFieldName(FIELD_ID);
+			generator.writeString(result.id);
+			
+			// Write the timestamp.
+			generator.writeFieldName(FIELD_TIMESTAMP);
+			generator
+				.writeString(
+					dateTimeBuffer,
+					0,
+					RunKeeperDateTimeCodec
+						.printIso(result.startTime, dateTimeBuffer));
+			
+			// If applicable, mark the result as stale.
+			if(staleSince >= 0) {
+				writeStaleness(generator, staleSince, dateTimeBuffer);
+			}
+			
+			// End the metadata object.
+			generator.writeEndObject();
+			
+			// Write the data.
+			generator.writeFieldName(FIELD_DATA);
+			generator.writeStartObject();
+			
+			// Write the 'duration' field.
+			if((columns & Result.COLUMN_DURATION) != 0) {
+				generator.writeFieldName(Result.FIELD_DURATION);
+				generator.writeNumber(result.duration);
 			}
+			
+			// Write the 'start_time' field.
+			if((columns & Result.COLUMN_START_TIME) != 0) {
+				generator.writeFieldName(Result.FIELD_START_TIME);
+				generator
+					.writeString(
+						dateTimeBuffer,
+						0,
+						RunKeeperDateTimeCodec
+							.printRunKeeper(result.startTime, dateTimeBuffer));
+			}
+			
+			// Write the 'total_distance' field.
+			if((columns & Result.COLUMN_TOTAL_DISTANCE) != 0) {
+				generator.writeFieldName(Result.FIELD_TOTAL_DISTANCE);
+				generator.writeNumber(result.totalDistance);
+			}
+			
+			// Write the 'type' field.
+			if((columns & Result.COLUMN_TYPE) != 0) {
+				generator.writeFieldName(Result.FIELD_TYPE);
+				generator.writeString(result.type);
+			}
+			
+			// Write the 'uri' field.
+			if((columns & Result.COLUMN_URI) != 0) {
+				generator.writeFieldName(Result.FIELD_URI);
+				generator.writeString(result.uri);
+			}
+			
+			// End the data object.
+			generator.writeEndObject();
+			
+			// End the overall object.
+			generator.writeEndObject();
 		}
 	}
 	
 	/**
-	 * A factory class for generating {@link RunKeeperApi} objects.
+	 * A factory class for looking up the {@link RunKeeperApi} objects. Each
+	 * API is created once, here, and shared by every request.
 	 *
 	 * @author John Jenkins
 	 */
 	public static enum RunKeeperApiFactory {
 		PROFILE
-			(ProfileApi.PATH, ProfileApi.class),
+			(new ProfileApi()),
 		FITNESS_ACTIVITIES 
-			(FitnessActivitiesApi.PATH, FitnessActivitiesApi.class);
+			(new FitnessActivitiesApi());
 		
 		private final String apiString;
-		private final Class<? extends RunKeeperApi> apiClass;
+		private final RunKeeperApi api;
 		
 		/**
 		 * The mapping of path strings to their corresponding objects.
@@ -1179,24 +4793,13 @@ public class RunKeeperPayloadId implements PayloadId {
 		/**
 		 * Default constructor made private to prevent instantiation.
 		 */
-		private RunKeeperApiFactory(
-				final String apiString, 
-				final Class<? extends RunKeeperApi> apiClass) {
-			
-			if(apiString == null) {
-				throw new IllegalArgumentException("The API string is null.");
-			}
-			if(apiString.trim().length() == 0) {
-				throw new IllegalArgumentException(
-					"The API string is all whitespace.");
-			}
-			if(apiClass == null) {
-				throw new IllegalArgumentException(
-					"The API class is null.");
+		private RunKeeperApiFactory(final RunKeeperApi api) {
+			if(api == null) {
+				throw new IllegalArgumentException("The API is null.");
 			}
 			
-			this.apiString = apiString;
-			this.apiClass = apiClass;
+			this.apiString = api.getPath();
+			this.api = api;
 		}
 		
 		/**
@@ -1209,49 +4812,23 @@ public class RunKeeperPayloadId implements PayloadId {
 		}
 		
 		/**
-		 * Returns a new instance of the RunKeeperApi object specified by the
-		 * 'api' parameter.
+		 * Returns the RunKeeperApi object specified by the 'api' parameter.
+		 * The same object is returned every time and may be shared.
 		 * 
 		 * @param api The string to use to lookup a RunKeeperApi object.
 		 * 
 		 * @return The RunKeeperApi object that corresponds to the 'api'
 		 * 		   parameter.
 		 * 
-		 * @throws DomainException The API was unknown or there was an error
-		 * 						   generating an instance of it.
+		 * @throws DomainException The API was unknown.
 		 */
 		public static final RunKeeperApi getApi(
 				final String api)
 				throws DomainException {
 			
-			if(FACTORY.containsKey(api)) {
-				try {
-					return FACTORY.get(api).apiClass.newInstance();
-				}
-				catch(InstantiationException e) {
-					throw new DomainException(
-						"The Class for the path cannot be instantiated: " +
-							api,
-						e);
-				}
-				catch(IllegalAccessException e) {
-					throw new DomainException(
-						"The Class for the path does not contain a no-argument constructor: " +
-							api,
-						e);
-				}
-				catch(SecurityException e) {
-					throw new DomainException(
-						"The security manager prevented instantiation for the path: " +
-							api,
-						e);
-				}
-				catch(ExceptionInInitializerError e) {
-					throw new DomainException(
-						"The constructor for the path threw an exception: " +
-							api,
-						e);
-				}
+			RunKeeperApiFactory factory = FACTORY.get(api);
+			if(factory != null) {
+				return factory.api;
 			}
 			
 			throw new DomainException("The path is unknown: " + api);
@@ -1313,7 +4890,7 @@ public class RunKeeperPayloadId implements PayloadId {
 		final JsonGenerator generator)
 		throws IOException {
 		
-		api.toConcordia(generator);
+		api.writeConcordia(generator);
 	}
 
 	/**
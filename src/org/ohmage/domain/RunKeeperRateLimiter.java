@@ -0,0 +1,551 @@
+package org.ohmage.domain;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.log4j.Logger;
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * Paces the calls to RunKeeper so that bursts of reads are spread out under
+ * RunKeeper's rate limits rather than being rejected by them. Each call
+ * takes a token from a global bucket, which is shared by every call, and
+ * from its bearer's bucket, which is shared by every call for the same
+ * user. The buckets refill at a steady rate up to a small burst.
+ * </p>
+ *
+ * <p>
+ * When the buckets are empty, callers wait in line for their turn. If a
+ * caller's turn is further away than the maximum wait, it fails at once
+ * instead, because it would only tie up a thread.
+ * </p>
+ *
+ * <p>
+ * When RunKeeper responds with "429 Too Many Requests" or
+ * "503 Service Unavailable", the limiter backs off: no more tokens are
+ * handed out until the time given by the "Retry-After" header, or a short
+ * pause if there is none, and the rate is halved. Each successful call then
+ * restores a little of the rate until it is back to the configured rate.
+ * A "429" affects both the global bucket and the bearer's bucket, while a
+ * "503" only affects the global bucket.
+ * </p>
+ *
+ * <p>
+ * The limiter is created with its defaults. It may be reconfigured with
+ * {@link #configure(int, int, int, int, long)}, which resets its state.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperRateLimiter {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperRateLimiter.class);
+
+	/**
+	 * The default number of calls per minute across all users.
+	 */
+	public static final int DEFAULT_GLOBAL_RATE = 600;
+	/**
+	 * The default number of calls that may be made at once across all users
+	 * after a quiet period.
+	 */
+	public static final int DEFAULT_GLOBAL_BURST = 20;
+	/**
+	 * The default number of calls per minute for a single user.
+	 */
+	public static final int DEFAULT_BEARER_RATE = 60;
+	/**
+	 * The default number of calls that may be made at once for a single user
+	 * after a quiet period.
+	 */
+	public static final int DEFAULT_BEARER_BURST = 5;
+	/**
+	 * The default maximum number of milliseconds a call will wait for its
+	 * turn.
+	 */
+	public static final long DEFAULT_MAX_WAIT = 5 * 1000;
+
+	/**
+	 * The maximum number of bearers whose buckets are kept. Beyond this, the
+	 * least recently used bucket is discarded.
+	 */
+	private static final int MAX_BEARERS = 1000;
+	/**
+	 * The number of milliseconds to pause when RunKeeper rejects a call but
+	 * does not say for how long.
+	 */
+	private static final long DEFAULT_PAUSE = 1000;
+	/**
+	 * The longest pause, in milliseconds, that will be honored from a
+	 * "Retry-After" header.
+	 */
+	private static final long MAX_PAUSE = 60 * 1000;
+	/**
+	 * The lowest fraction of the configured rate that backing off will
+	 * reduce a bucket to.
+	 */
+	private static final double MIN_RATE_FRACTION = 1.0 / 16;
+	/**
+	 * The fraction of the configured rate that each successful call
+	 * restores.
+	 */
+	private static final double RECOVERY_FRACTION = 1.0 / 32;
+
+	/**
+	 * The number of calls that had to wait for their turn.
+	 */
+	private static final AtomicLong WAITED = new AtomicLong();
+	/**
+	 * The number of calls that failed because their turn was too far away.
+	 */
+	private static final AtomicLong REJECTED = new AtomicLong();
+	/**
+	 * The number of calls RunKeeper rejected for being over its limits.
+	 */
+	private static final AtomicLong THROTTLED = new AtomicLong();
+
+	/**
+	 * The current limiter.
+	 */
+	private static volatile RunKeeperRateLimiter instance =
+		new RunKeeperRateLimiter(
+			DEFAULT_GLOBAL_RATE,
+			DEFAULT_GLOBAL_BURST,
+			DEFAULT_BEARER_RATE,
+			DEFAULT_BEARER_BURST,
+			DEFAULT_MAX_WAIT);
+
+	/**
+	 * A token bucket. Tokens may be taken before they are available, which
+	 * leaves the bucket in debt, so that each caller reserves the next turn
+	 * and waits for it, rather than every waiting caller competing for each
+	 * new token.
+	 *
+	 * <p>
+	 * This class is not thread-safe. Callers must synchronize on the bucket.
+	 * </p>
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class Bucket {
+		/**
+		 * A bucket that never runs out.
+		 */
+		private static final Bucket UNLIMITED = new Bucket(0, 0);
+
+		/**
+		 * Whether or not this bucket never runs out.
+		 */
+		private final boolean unlimited;
+		/**
+		 * The configured rate in tokens per nanosecond.
+		 */
+		private final double maxRate;
+		/**
+		 * The most tokens the bucket may hold.
+		 */
+		private final double capacity;
+
+		/**
+		 * The current rate in tokens per nanosecond.
+		 */
+		private double rate;
+		/**
+		 * The number of tokens in the bucket, which is negative if tokens
+		 * have been reserved before they were available.
+		 */
+		private double tokens;
+		/**
+		 * The {@link System#nanoTime()} up to which tokens have been added.
+		 * This is in the future while the bucket is paused.
+		 */
+		private long refilledUntil;
+
+		/**
+		 * Creates a full bucket.
+		 *
+		 * @param perMinute The number of tokens added per minute. If this is
+		 * 					not positive, the bucket never runs out.
+		 *
+		 * @param burst The most tokens the bucket may hold.
+		 */
+		private Bucket(final int perMinute, final int burst) {
+			unlimited = (perMinute <= 0);
+			maxRate = perMinute / (60.0 * 1000 * 1000 * 1000);
+			capacity = Math.max(1, burst);
+			rate = maxRate;
+			tokens = capacity;
+			refilledUntil = System.nanoTime();
+		}
+
+		/**
+		 * Returns how long a caller would have to wait for a token.
+		 *
+		 * @param now The current {@link System#nanoTime()}.
+		 *
+		 * @return The number of nanoseconds to wait.
+		 */
+		private long getWait(final long now) {
+			if(unlimited) {
+				return 0;
+			}
+			refill(now);
+
+			long wait = refilledUntil - now;
+			if(tokens < 1) {
+				wait += (long) Math.ceil((1 - tokens) / rate);
+			}
+			return Math.max(0, wait);
+		}
+
+		/**
+		 * Takes a token, whether or not one is available yet.
+		 */
+		private void take() {
+			if(! unlimited) {
+				tokens -= 1;
+			}
+		}
+
+		/**
+		 * Stops handing out new tokens for some time and halves the rate.
+		 *
+		 * @param now The current {@link System#nanoTime()}.
+		 *
+		 * @param pause The number of nanoseconds to pause.
+		 */
+		private void pause(final long now, final long pause) {
+			if(unlimited) {
+				return;
+			}
+			refill(now);
+
+			tokens = Math.min(tokens, 0);
+			if(now + pause - refilledUntil > 0) {
+				refilledUntil = now + pause;
+			}
+			rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+		}
+
+		/**
+		 * Restores some of the rate after a successful call.
+		 *
+		 * @param now The current {@link System#nanoTime()}.
+		 */
+		private void recover(final long now) {
+			if(unlimited || (rate >= maxRate)) {
+				return;
+			}
+			refill(now);
+
+			rate = Math.min(maxRate, rate + (maxRate * RECOVERY_FRACTION));
+		}
+
+		/**
+		 * Adds the tokens that have accumulated since it was last refilled.
+		 *
+		 * @param now The current {@link System#nanoTime()}.
+		 */
+		private void refill(final long now) {
+			if(now - refilledUntil > 0) {
+				tokens =
+					Math.min(capacity, tokens + ((now - refilledUntil) * rate));
+				refilledUntil = now;
+			}
+		}
+	}
+
+	private final Bucket globalBucket;
+	private final int bearerRate;
+	private final int bearerBurst;
+	private final long maxWait;
+	/**
+	 * The bearers' buckets, in least-recently-used order.
+	 */
+	private final Map<String, Bucket> bearerBuckets;
+
+	/**
+	 * Creates a new limiter.
+	 *
+	 * @see #configure(int, int, int, int, long)
+	 */
+	private RunKeeperRateLimiter(
+			final int globalRate,
+			final int globalBurst,
+			final int bearerRate,
+			final int bearerBurst,
+			final long maxWait) {
+
+		this.globalBucket = new Bucket(globalRate, globalBurst);
+		this.bearerRate = bearerRate;
+		this.bearerBurst = bearerBurst;
+		this.maxWait = maxWait;
+
+		bearerBuckets =
+			Collections.synchronizedMap(
+				new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					/**
+					 * Discards the least recently used bucket once there are
+					 * too many.
+					 */
+					@Override
+					protected boolean removeEldestEntry(
+							final Map.Entry<String, Bucket> eldest) {
+
+						return size() > MAX_BEARERS;
+					}
+				});
+	}
+
+	/**
+	 * Replaces the limiter. Any calls that are waiting keep the turns they
+	 * were given by the old limiter.
+	 *
+	 * @param globalRate The number of calls per minute across all users. If
+	 * 					 this is not positive, there is no global limit.
+	 *
+	 * @param globalBurst The number of calls that may be made at once across
+	 * 					  all users after a quiet period.
+	 *
+	 * @param bearerRate The number of calls per minute for a single user. If
+	 * 					 this is not positive, there is no per-user limit.
+	 *
+	 * @param bearerBurst The number of calls that may be made at once for a
+	 * 					  single user after a quiet period.
+	 *
+	 * @param maxWait The maximum number of milliseconds a call will wait for
+	 * 				  its turn.
+	 *
+	 * @throws IllegalArgumentException A burst is not positive or the
+	 * 									maximum wait is negative.
+	 */
+	public static void configure(
+			final int globalRate,
+			final int globalBurst,
+			final int bearerRate,
+			final int bearerBurst,
+			final long maxWait) {
+
+		if((globalBurst <= 0) || (bearerBurst <= 0)) {
+			throw new IllegalArgumentException(
+				"The bursts must be positive.");
+		}
+		if(maxWait < 0) {
+			throw new IllegalArgumentException(
+				"The maximum wait must not be negative.");
+		}
+
+		instance =
+			new RunKeeperRateLimiter(
+				globalRate,
+				globalBurst,
+				bearerRate,
+				bearerBurst,
+				maxWait);
+	}
+
+	/**
+	 * Waits for the turn to make a call to RunKeeper.
+	 *
+	 * @param bearer The "Bearer" token of the user the call is for.
+	 *
+	 * @param deadline The call's deadline. The turn is not waited for if it
+	 * 				   comes after this.
+	 *
+	 * @throws DomainException The turn is further away than the maximum wait
+	 * 						   or the deadline, or the thread was interrupted
+	 * 						   while waiting.
+	 */
+	public static void acquire(
+			final String bearer,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		RunKeeperRateLimiter limiter = instance;
+		Bucket bearerBucket = limiter.getBearerBucket(bearer);
+
+		long wait;
+		long maxWait = limiter.maxWait * 1000 * 1000;
+		long now = System.nanoTime();
+		synchronized(limiter.globalBucket) {
+			synchronized(bearerBucket) {
+				wait =
+					Math.max(
+						limiter.globalBucket.getWait(now),
+						bearerBucket.getWait(now));
+				if(wait > maxWait) {
+					REJECTED.incrementAndGet();
+					throw new DomainException(
+						"RunKeeper's rate limit would be exceeded, and the " +
+							"call would have to wait " +
+							TimeUnit.NANOSECONDS.toMillis(wait) + "ms.");
+				}
+				// Don't take a turn we would not live to use.
+				if(wait > deadline.remainingNanos()) {
+					REJECTED.incrementAndGet();
+					throw deadline.expired();
+				}
+
+				limiter.globalBucket.take();
+				bearerBucket.take();
+			}
+		}
+
+		if(wait > 0) {
+			WAITED.incrementAndGet();
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DomainException(
+					"Interrupted while waiting for RunKeeper's rate limit.",
+					e);
+			}
+		}
+	}
+
+	/**
+	 * Adjusts the pace of future calls based on RunKeeper's response.
+	 *
+	 * @param bearer The "Bearer" token of the user the call was for.
+	 *
+	 * @param statusCode The response's status code.
+	 *
+	 * @param retryAfter The response's "Retry-After" header or null.
+	 */
+	public static void onResponse(
+			final String bearer,
+			final int statusCode,
+			final String retryAfter) {
+
+		RunKeeperRateLimiter limiter = instance;
+		long now = System.nanoTime();
+
+		if(	(statusCode == 429) ||
+			(statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE)) {
+
+			THROTTLED.incrementAndGet();
+			long pause = getPause(retryAfter);
+			LOGGER
+				.warn(
+					"RunKeeper responded with " + statusCode + ", so calls " +
+						"are being paused for " + pause + "ms.");
+
+			pause *= 1000 * 1000;
+			synchronized(limiter.globalBucket) {
+				limiter.globalBucket.pause(now, pause);
+			}
+			if(statusCode == 429) {
+				Bucket bearerBucket = limiter.getBearerBucket(bearer);
+				synchronized(bearerBucket) {
+					bearerBucket.pause(now, pause);
+				}
+			}
+		}
+		else if(statusCode < 400) {
+			synchronized(limiter.globalBucket) {
+				limiter.globalBucket.recover(now);
+			}
+			Bucket bearerBucket = limiter.getBearerBucket(bearer);
+			synchronized(bearerBucket) {
+				bearerBucket.recover(now);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of calls that had to wait for their turn.
+	 *
+	 * @return The number of calls that waited.
+	 */
+	public static long getWaited() {
+		return WAITED.get();
+	}
+
+	/**
+	 * Returns the number of calls that failed because their turn was further
+	 * away than the maximum wait.
+	 *
+	 * @return The number of rejected calls.
+	 */
+	public static long getRejected() {
+		return REJECTED.get();
+	}
+
+	/**
+	 * Returns the number of calls that RunKeeper rejected for being over its
+	 * limits.
+	 *
+	 * @return The number of throttled calls.
+	 */
+	public static long getThrottled() {
+		return THROTTLED.get();
+	}
+
+	/**
+	 * Returns the bucket for a bearer, creating it if necessary.
+	 *
+	 * @param bearer The "Bearer" token.
+	 *
+	 * @return The bearer's bucket.
+	 */
+	private Bucket getBearerBucket(final String bearer) {
+		if(bearerRate <= 0) {
+			return Bucket.UNLIMITED;
+		}
+
+		synchronized(bearerBuckets) {
+			Bucket bucket = bearerBuckets.get(bearer);
+			if(bucket == null) {
+				bucket = new Bucket(bearerRate, bearerBurst);
+				bearerBuckets.put(bearer, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * Determines how long to pause from a "Retry-After" header, which is
+	 * either a number of seconds or an HTTP date.
+	 *
+	 * @param retryAfter The header's value or null.
+	 *
+	 * @return The number of milliseconds to pause.
+	 */
+	private static long getPause(final String retryAfter) {
+		if(retryAfter == null) {
+			return DEFAULT_PAUSE;
+		}
+
+		long pause;
+		try {
+			pause = Long.parseLong(retryAfter.trim()) * 1000;
+		}
+		catch(NumberFormatException notSeconds) {
+			try {
+				Date date = DateUtils.parseDate(retryAfter.trim());
+				pause = date.getTime() - System.currentTimeMillis();
+			}
+			catch(DateParseException notDate) {
+				LOGGER
+					.warn(
+						"The 'Retry-After' header could not be parsed: " +
+							retryAfter);
+				return DEFAULT_PAUSE;
+			}
+		}
+
+		return Math.min(MAX_PAUSE, Math.max(0, pause));
+	}
+}
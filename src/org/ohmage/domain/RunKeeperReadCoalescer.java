@@ -0,0 +1,469 @@
+package org.ohmage.domain;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi;
+import org.ohmage.domain.RunKeeperPayloadId.RunKeeperResult;
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * Coalesces identical RunKeeper reads that are in flight at the same time.
+ * The first read for a given owner, API, and set of parameters makes the
+ * call to RunKeeper. Any identical reads that arrive before it finishes wait
+ * for it and then share its results rather than making their own calls.
+ * </p>
+ *
+ * <p>
+ * Only reads that are in flight are coalesced. Once a read finishes, the
+ * next identical read makes a new call.
+ * </p>
+ *
+ * <p>
+ * The last results of each read are kept so that, while the
+ * {@link RunKeeperCircuitBreaker circuit breaker} is rejecting calls to
+ * RunKeeper, an identical read is served those results, marked as stale,
+ * rather than failing. Results are only kept for the exact same owner, API,
+ * and parameters, so a read is never served another read's data. Streamed
+ * results are never kept.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperReadCoalescer {
+	/**
+	 * The reads that are currently in flight.
+	 */
+	private static final ConcurrentMap<Key, FutureTask<RunKeeperResult>> IN_FLIGHT =
+		new ConcurrentHashMap<Key, FutureTask<RunKeeperResult>>();
+
+	/**
+	 * The default maximum number of reads whose last results are kept.
+	 */
+	public static final int DEFAULT_MAX_STALE_RESULTS = 1000;
+
+	/**
+	 * The last results of each read or null if they are not kept.
+	 */
+	private static volatile Map<Key, RunKeeperResult> lastResults =
+		createLastResults(DEFAULT_MAX_STALE_RESULTS);
+
+	/**
+	 * The number of reads that called RunKeeper.
+	 */
+	private static final AtomicLong CALLS = new AtomicLong();
+	/**
+	 * The number of reads that shared another read's results.
+	 */
+	private static final AtomicLong COALESCED = new AtomicLong();
+	/**
+	 * The number of reads that were served stale results.
+	 */
+	private static final AtomicLong STALE = new AtomicLong();
+
+	/**
+	 * Identifies a read by everything that affects its results.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class Key {
+		private final String owner;
+		private final String path;
+		private final Long startDate;
+		private final Long endDate;
+		private final long numToSkip;
+		private final long numToReturn;
+
+		/**
+		 * Creates a new key. The owner may be null, e.g. if the request was
+		 * not authenticated, in which case it only matches other keys
+		 * without an owner.
+		 */
+		private Key(
+				final String owner,
+				final String path,
+				final DateTime startDate,
+				final DateTime endDate,
+				final long numToSkip,
+				final long numToReturn) {
+
+			this.owner = owner;
+			this.path = path;
+			this.startDate =
+				(startDate == null) ? null : startDate.getMillis();
+			this.endDate =
+				(endDate == null) ? null : endDate.getMillis();
+			this.numToSkip = numToSkip;
+			this.numToReturn = numToReturn;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			int result = (owner == null) ? 0 : owner.hashCode();
+			result = 31 * result + path.hashCode();
+			result = 31 * result +
+				((startDate == null) ? 0 : startDate.hashCode());
+			result = 31 * result +
+				((endDate == null) ? 0 : endDate.hashCode());
+			result = 31 * result + (int) (numToSkip ^ (numToSkip >>> 32));
+			result = 31 * result + (int) (numToReturn ^ (numToReturn >>> 32));
+			return result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(final Object obj) {
+			if(this == obj) {
+				return true;
+			}
+			if(! (obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			return
+				((owner == null) ?
+					(other.owner == null) :
+					owner.equals(other.owner)) &&
+				path.equals(other.path) &&
+				((startDate == null) ?
+					(other.startDate == null) :
+					startDate.equals(other.startDate)) &&
+				((endDate == null) ?
+					(other.endDate == null) :
+					endDate.equals(other.endDate)) &&
+				(numToSkip == other.numToSkip) &&
+				(numToReturn == other.numToReturn);
+		}
+	}
+
+	/**
+	 * Default constructor made private to prevent instantiation.
+	 */
+	private RunKeeperReadCoalescer() {}
+
+	/**
+	 * Configures how many reads' last results are kept to be served while
+	 * RunKeeper is unavailable. Any results that were already kept are
+	 * discarded.
+	 *
+	 * @param maxStaleResults The maximum number of reads whose last results
+	 * 						  are kept. If zero, no results are kept.
+	 *
+	 * @throws IllegalArgumentException The maximum is negative.
+	 */
+	public static void configure(final int maxStaleResults) {
+		if(maxStaleResults < 0) {
+			throw new IllegalArgumentException(
+				"The maximum number of stale results must not be negative.");
+		}
+
+		lastResults = createLastResults(maxStaleResults);
+	}
+
+	/**
+	 * Services a read, sharing the results of an identical read if one is
+	 * already in flight.
+	 *
+	 * @param owner The user whose data is being read.
+	 *
+	 * @param api The API to read.
+	 *
+	 * @param bearer The "Bearer" token generated by RunKeeper.
+	 *
+	 * @param startDate Limits the data to only those points on or after this
+	 * 					date and time.
+	 *
+	 * @param endDate Limits the data to only those points on or before this
+	 * 				  date and time.
+	 *
+	 * @param numToSkip The number of records to skip.
+	 *
+	 * @param numToReturn The number of records to return.
+	 *
+	 * @param deadline The deadline by which the read must finish. A read
+	 * 				   that is coalesced waits for the identical read no
+	 * 				   longer than this.
+	 *
+	 * @return The results of the read. These are either this read's own
+	 * 		   results, those of the identical read, or, if RunKeeper is
+	 * 		   unavailable, the stale results of an earlier identical read.
+	 * 		   Shared and stale results must only be read from.
+	 *
+	 * @throws DomainException The read failed. If this read was coalesced,
+	 * 						   this is the failure of the identical read.
+	 */
+	public static RunKeeperResult service(
+			final String owner,
+			final RunKeeperApi api,
+			final String bearer,
+			final DateTime startDate,
+			final DateTime endDate,
+			final long numToSkip,
+			final long numToReturn,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		Key key =
+			new Key(
+				owner,
+				api.getPath(),
+				startDate,
+				endDate,
+				numToSkip,
+				numToReturn);
+
+		Map<Key, RunKeeperResult> currLastResults = lastResults;
+		RunKeeperResult result;
+		try {
+			result =
+				coalesce(
+					key,
+					api,
+					bearer,
+					startDate,
+					endDate,
+					numToSkip,
+					numToReturn,
+					deadline);
+		}
+		catch(DomainException e) {
+			// If RunKeeper is unavailable, serve the last results we have,
+			// if any.
+			if(	(currLastResults == null) ||
+				(! RunKeeperCircuitBreaker.isRejection(e))) {
+
+				throw e;
+			}
+
+			RunKeeperResult lastResult = currLastResults.get(key);
+			if(lastResult == null) {
+				throw e;
+			}
+
+			STALE.incrementAndGet();
+			return lastResult.asStale();
+		}
+
+		// Keep the results in case RunKeeper later becomes unavailable.
+		if((currLastResults != null) && result.isShareable()) {
+			currLastResults.put(key, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the number of reads that called RunKeeper.
+	 *
+	 * @return The number of reads that called RunKeeper.
+	 */
+	public static long getCalls() {
+		return CALLS.get();
+	}
+
+	/**
+	 * Returns the number of reads that shared another read's results.
+	 *
+	 * @return The number of coalesced reads.
+	 */
+	public static long getCoalesced() {
+		return COALESCED.get();
+	}
+
+	/**
+	 * Returns the number of reads that were served stale results because
+	 * RunKeeper was unavailable.
+	 *
+	 * @return The number of stale reads.
+	 */
+	public static long getStale() {
+		return STALE.get();
+	}
+
+	/**
+	 * Services a read, sharing the results of an identical read if one is
+	 * already in flight.
+	 *
+	 * @see #service(String, RunKeeperApi, String, DateTime, DateTime, long, long, RunKeeperDeadline)
+	 */
+	private static RunKeeperResult coalesce(
+			final Key key,
+			final RunKeeperApi api,
+			final String bearer,
+			final DateTime startDate,
+			final DateTime endDate,
+			final long numToSkip,
+			final long numToReturn,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		FutureTask<RunKeeperResult> task =
+			new FutureTask<RunKeeperResult>(
+				new Callable<RunKeeperResult>() {
+					/**
+					 * Services the API.
+					 */
+					@Override
+					public RunKeeperResult call() throws DomainException {
+						return
+							api
+								.service(
+									bearer,
+									startDate,
+									endDate,
+									numToSkip,
+									numToReturn,
+									deadline);
+					}
+				});
+
+		// If no identical read is in flight, we make the call.
+		FutureTask<RunKeeperResult> inFlight = IN_FLIGHT.putIfAbsent(key, task);
+		if(inFlight == null) {
+			CALLS.incrementAndGet();
+			try {
+				task.run();
+				return get(task, deadline);
+			}
+			finally {
+				IN_FLIGHT.remove(key, task);
+			}
+		}
+
+		// Otherwise, wait for the identical read. If its results cannot be
+		// shared, e.g. because they are being streamed, or it ran out of time
+		// before our deadline, make our own call.
+		RunKeeperResult result;
+		try {
+			result = get(inFlight, deadline);
+		}
+		catch(DomainException e) {
+			if((! RunKeeperDeadline.isExpiration(e)) || deadline.isExpired()) {
+				throw e;
+			}
+
+			result = null;
+		}
+		if((result == null) || (! result.isShareable())) {
+			CALLS.incrementAndGet();
+			return
+				api
+					.service(
+						bearer,
+						startDate,
+						endDate,
+						numToSkip,
+						numToReturn,
+						deadline);
+		}
+
+		COALESCED.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Creates the map of the last results of each read.
+	 *
+	 * @param maxSize The maximum number of reads to keep results for.
+	 *
+	 * @return The map or null if no results are kept.
+	 */
+	private static Map<Key, RunKeeperResult> createLastResults(
+			final int maxSize) {
+
+		if(maxSize == 0) {
+			return null;
+		}
+
+		return
+			Collections.synchronizedMap(
+				new LinkedHashMap<Key, RunKeeperResult>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					/**
+					 * Discards the least recently used results once there
+					 * are too many.
+					 */
+					@Override
+					protected boolean removeEldestEntry(
+							final Map.Entry<Key, RunKeeperResult> eldest) {
+
+						return size() > maxSize;
+					}
+				});
+	}
+
+	/**
+	 * Waits for a read to finish, but no longer than the deadline. The read
+	 * is not cancelled if the deadline passes, because other reads may be
+	 * waiting for it with later deadlines.
+	 *
+	 * @param task The read.
+	 *
+	 * @param deadline The latest time to wait until.
+	 *
+	 * @return The results of the read.
+	 *
+	 * @throws DomainException The read failed, the deadline passed, or we
+	 * 						   were interrupted.
+	 */
+	private static RunKeeperResult get(
+			final FutureTask<RunKeeperResult> task,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		try {
+			if(deadline.isBounded()) {
+				return
+					task.get(
+						Math.max(0, deadline.remainingNanos()),
+						TimeUnit.NANOSECONDS);
+			}
+			else {
+				return task.get();
+			}
+		}
+		catch(TimeoutException e) {
+			throw deadline.expired();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DomainException(
+				"Interrupted while waiting for an identical read.",
+				e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof DomainException) {
+				throw (DomainException) cause;
+			}
+			else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw new DomainException("The read failed.", cause);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,511 @@
+package org.ohmage.domain;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+
+/**
+ * <p>
+ * An open response from RunKeeper whose body is read directly from the
+ * connection by a {@link JsonParser}. The body is never buffered, so only the
+ * portion currently being parsed is held in memory.
+ * </p>
+ *
+ * <p>
+ * If RunKeeper compressed the body with "gzip" or "deflate", it is
+ * decompressed as it is parsed. The bytes received and the bytes parsed are
+ * counted in the API's {@link RunKeeperTransferStats}, and the time the body
+ * was open is recorded in its {@link RunKeeperMetrics} as its parse time.
+ * If the read is being {@link RunKeeperTiming timed}, the time spent waiting
+ * for the body to arrive is also measured and is recorded separately from
+ * the time spent parsing it.
+ * </p>
+ *
+ * <p>
+ * The underlying connection is leased from the shared pool, so every
+ * response must be finished with exactly one call to either
+ * {@link #close()} or {@link #abort()}, typically in a finally block:
+ * </p>
+ * <ul>
+ * <li>{@link #close()} consumes whatever is left of the body so that the
+ * connection may be reused, unless so much is left that reading it would
+ * cost more than opening a new connection. This should be used when the
+ * body was read successfully, even if the caller stopped reading it
+ * early.</li>
+ * <li>{@link #abort()} discards the connection. This should be used when
+ * reading the body failed and the state of the connection is unknown.</li>
+ * </ul>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperResponse {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperResponse.class);
+
+	/**
+	 * The default for the most unread bytes that will be drained from a
+	 * response to reuse its connection.
+	 */
+	public static final long DEFAULT_DRAIN_THRESHOLD = 16 * 1024;
+
+	/**
+	 * The most unread bytes that will be drained from a response to reuse
+	 * its connection.
+	 */
+	private static volatile long drainThreshold = DEFAULT_DRAIN_THRESHOLD;
+
+	/**
+	 * The value of the "Accept-Encoding" header for the encodings that can
+	 * be decompressed.
+	 */
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/**
+	 * Counts the bytes read through it.
+	 *
+	 * @author John Jenkins
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private final boolean timed;
+		private long count = 0;
+		/**
+		 * The number of nanoseconds spent reading, if the reads are timed.
+		 */
+		private long nanos = 0;
+
+		/**
+		 * Creates a stream that counts the bytes read from another.
+		 *
+		 * @param in The stream to read from.
+		 *
+		 * @param timed Whether or not to measure how long the reads take.
+		 */
+		private CountingInputStream(final InputStream in, final boolean timed) {
+			super(in);
+
+			this.timed = timed;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			long start = timed ? System.nanoTime() : 0;
+			int result = in.read();
+			if(timed) {
+				nanos += System.nanoTime() - start;
+			}
+			if(result >= 0) {
+				count++;
+			}
+			return result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(
+				final byte[] buffer,
+				final int offset,
+				final int length)
+				throws IOException {
+
+			long start = timed ? System.nanoTime() : 0;
+			int result = in.read(buffer, offset, length);
+			if(timed) {
+				nanos += System.nanoTime() - start;
+			}
+			if(result > 0) {
+				count += result;
+			}
+			return result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#skip(long)
+		 */
+		@Override
+		public long skip(final long n) throws IOException {
+			long start = timed ? System.nanoTime() : 0;
+			long result = in.skip(n);
+			if(timed) {
+				nanos += System.nanoTime() - start;
+			}
+			count += result;
+			return result;
+		}
+
+		/**
+		 * Marking would make the count wrong, so it is not supported.
+		 */
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private final HttpGet request;
+	private final HttpResponse response;
+	private final HttpEntity entity;
+	private final RunKeeperMetrics metrics;
+	private final RunKeeperTiming timing;
+	private final JsonParser parser;
+
+	/**
+	 * When the body was opened, per {@link System#nanoTime()}.
+	 */
+	private final long opened;
+
+	/**
+	 * The body as it is received or null if there is no body.
+	 */
+	private final CountingInputStream received;
+	/**
+	 * The body after it is decompressed or null if there is no body.
+	 */
+	private final CountingInputStream decoded;
+	/**
+	 * The stream that decompresses the body or null if the body was not
+	 * compressed.
+	 */
+	private final InputStream decoder;
+	/**
+	 * The inflater that decompresses a "deflate" body or null if the body
+	 * was not compressed with "deflate".
+	 */
+	private final Inflater inflater;
+
+	private boolean finished = false;
+
+	/**
+	 * Creates a response without a body, e.g. "304 Not Modified".
+	 *
+	 * @param request The request that generated this response. This is used
+	 * 				  to abort the connection if necessary.
+	 *
+	 * @param response The HTTP response.
+	 *
+	 * @param metrics The metrics for the API.
+	 *
+	 * @param timing The timing of the read.
+	 */
+	RunKeeperResponse(
+			final HttpGet request,
+			final HttpResponse response,
+			final RunKeeperMetrics metrics,
+			final RunKeeperTiming timing) {
+
+		this.request = request;
+		this.response = response;
+		this.entity = response.getEntity();
+		this.metrics = metrics;
+		this.timing = timing;
+		opened = System.nanoTime();
+
+		parser = null;
+		received = null;
+		decoded = null;
+		decoder = null;
+		inflater = null;
+	}
+
+	/**
+	 * Creates a response whose body is parsed as it is read, decompressing
+	 * it first if necessary.
+	 *
+	 * @param request The request that generated this response. This is used
+	 * 				  to abort the connection if necessary.
+	 *
+	 * @param response The HTTP response, which must have a body.
+	 *
+	 * @param factory The factory to create the parser with.
+	 *
+	 * @param metrics The metrics for the API.
+	 *
+	 * @param timing The timing of the read.
+	 *
+	 * @throws IOException The body could not be read or was compressed with
+	 * 					   an unknown encoding.
+	 */
+	RunKeeperResponse(
+			final HttpGet request,
+			final HttpResponse response,
+			final JsonFactory factory,
+			final RunKeeperMetrics metrics,
+			final RunKeeperTiming timing)
+			throws IOException {
+
+		this.request = request;
+		this.response = response;
+		this.entity = response.getEntity();
+		this.metrics = metrics;
+		this.timing = timing;
+		opened = System.nanoTime();
+
+		received =
+			new CountingInputStream(entity.getContent(), timing.isEnabled());
+
+		Header encodingHeader = entity.getContentEncoding();
+		String encoding =
+			(encodingHeader == null) ?
+				null :
+				encodingHeader.getValue().trim();
+		if(	(encoding == null) ||
+			(encoding.length() == 0) ||
+			"identity".equalsIgnoreCase(encoding)) {
+
+			decoder = null;
+			inflater = null;
+		}
+		else if(
+			"gzip".equalsIgnoreCase(encoding) ||
+			"x-gzip".equalsIgnoreCase(encoding)) {
+
+			decoder = new GZIPInputStream(received);
+			inflater = null;
+		}
+		else if("deflate".equalsIgnoreCase(encoding)) {
+			// "deflate" should be zlib-wrapped, but some servers send the
+			// raw stream, so look at the header to decide.
+			PushbackInputStream pushback = new PushbackInputStream(received, 2);
+			int first = pushback.read();
+			int second = (first < 0) ? -1 : pushback.read();
+			if(second >= 0) {
+				pushback.unread(second);
+			}
+			if(first >= 0) {
+				pushback.unread(first);
+			}
+			boolean zlib =
+				(second >= 0) &&
+				((first & 0x0F) == 8) &&
+				((((first << 8) | second) % 31) == 0);
+
+			inflater = new Inflater(! zlib);
+			decoder = new InflaterInputStream(pushback, inflater);
+		}
+		else {
+			throw new IOException(
+				"The response was encoded with an unknown encoding: " +
+					encoding);
+		}
+
+		decoded =
+			(decoder == null) ?
+				received :
+				new CountingInputStream(decoder, false);
+		parser = factory.createJsonParser(decoded);
+	}
+
+	/**
+	 * Sets the most unread bytes that will be drained from a response when
+	 * it is closed so that its connection may be reused. If more than this
+	 * remains, or the amount remaining is unknown, the connection is
+	 * discarded instead.
+	 *
+	 * @param drainThreshold The number of bytes.
+	 *
+	 * @throws IllegalArgumentException The threshold is negative.
+	 */
+	public static void setDrainThreshold(final long drainThreshold) {
+		if(drainThreshold < 0) {
+			throw new IllegalArgumentException(
+				"The drain threshold is negative.");
+		}
+
+		RunKeeperResponse.drainThreshold = drainThreshold;
+	}
+
+	/**
+	 * Returns the HTTP status code of the response.
+	 *
+	 * @return The HTTP status code.
+	 */
+	public int getStatusCode() {
+		return response.getStatusLine().getStatusCode();
+	}
+
+	/**
+	 * Returns the value of the first header with the given name.
+	 *
+	 * @param name The header's name.
+	 *
+	 * @return The header's value or null if there is no such header.
+	 */
+	public String getHeader(final String name) {
+		Header header = response.getFirstHeader(name);
+		return (header == null) ? null : header.getValue();
+	}
+
+	/**
+	 * Returns the parser that reads the body of the response.
+	 *
+	 * @return The parser for the body of the response or null if the
+	 * 		   response has no body.
+	 */
+	public JsonParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Consumes the remainder of the body and releases the connection back to
+	 * the pool. If the remainder is larger than the drain threshold, its
+	 * size is unknown, or it cannot be consumed, the connection is
+	 * {@link #abort() aborted} instead. Calling this more than once has no
+	 * effect.
+	 */
+	public void close() {
+		if(finished) {
+			return;
+		}
+		finished = true;
+
+		try {
+			drain();
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Discards the connection without reading the remainder of the body.
+	 * Calling this more than once or after {@link #close()} has no effect.
+	 */
+	public void abort() {
+		if(finished) {
+			return;
+		}
+		finished = true;
+
+		try {
+			request.abort();
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Consumes the remainder of the body if it is small enough; otherwise,
+	 * aborts the connection.
+	 */
+	private void drain() {
+		long remaining = getRemaining();
+		if((remaining < 0) || (remaining > drainThreshold)) {
+			if(LOGGER.isDebugEnabled()) {
+				LOGGER
+					.debug(
+						"Discarding the connection rather than draining " +
+							((remaining < 0) ? "an unknown number of" : remaining) +
+							" bytes.");
+			}
+			request.abort();
+			return;
+		}
+
+		try {
+			// Read the rest through the counter, so that it is counted.
+			if(received != null) {
+				long skipped;
+				do {
+					skipped = received.skip(drainThreshold + 1);
+				} while(skipped > 0);
+			}
+
+			EntityUtils.consume(entity);
+		}
+		catch(IOException e) {
+			LOGGER
+				.warn(
+					"The response could not be consumed, so the connection " +
+						"is being discarded.",
+					e);
+			request.abort();
+		}
+	}
+
+	/**
+	 * Frees the decompressor, if any, and records the bytes that were read
+	 * and how long the body was open.
+	 * The connection must already have been consumed or aborted.
+	 */
+	private void release() {
+		if(inflater != null) {
+			inflater.end();
+		}
+		else if(decoder != null) {
+			try {
+				decoder.close();
+			}
+			catch(IOException e) {
+				// The connection was already consumed or aborted, so there
+				// is nothing left to clean up.
+			}
+		}
+
+		RunKeeperTransferStats stats = metrics.getTransferStats();
+		if(received == null) {
+			stats.record(false, 0, 0);
+		}
+		else {
+			stats.record(decoder != null, received.count, decoded.count);
+
+			long open = System.nanoTime() - opened;
+			metrics.recordParseTime(open);
+			timing.add(RunKeeperTiming.Phase.TRANSFER, received.nanos);
+			timing.add(RunKeeperTiming.Phase.PARSE, open - received.nanos);
+		}
+	}
+
+	/**
+	 * Estimates the number of bytes of the body that have not yet been read.
+	 *
+	 * @return The number of unread bytes, zero if the body was read to its
+	 * 		   end, or -1 if it is unknown.
+	 */
+	private long getRemaining() {
+		if(entity == null) {
+			return 0;
+		}
+
+		// If the whole document was parsed, at most some whitespace is left.
+		if(	(parser != null) &&
+			(parser.getCurrentToken() != null) &&
+			parser.getParsingContext().inRoot()) {
+
+			return 0;
+		}
+
+		// The length is of the body as it was received, so compare it with
+		// what was read from the connection rather than with the parser's
+		// position, which is in decompressed bytes.
+		long length = entity.getContentLength();
+		if(length < 0) {
+			return -1;
+		}
+		if(received == null) {
+			return length;
+		}
+
+		return Math.max(0, length - received.count);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,318 @@
+package org.ohmage.domain;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.log4j.Logger;
+import org.ohmage.exception.DomainException;
+
+/**
+ * <p>
+ * Decides when a call to RunKeeper should be retried or hedged. All of the
+ * calls are idempotent GETs, so repeating them is always safe.
+ * </p>
+ *
+ * <p>
+ * A call is retried when it fails with an I/O error or a status code that
+ * is likely to be transient, i.e. "408", "429", "500", "502", "503", or
+ * "504". Before each retry, the caller sleeps for a random time between
+ * zero and an exponentially growing, capped delay ("full jitter"), so that
+ * callers that failed together do not retry together.
+ * </p>
+ *
+ * <p>
+ * A call may also be hedged: if RunKeeper has not responded by the given
+ * percentile of recent response times, a second, identical call is made
+ * and whichever responds first is used. Hedging is off by default.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperRetryPolicy {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperRetryPolicy.class);
+
+	/**
+	 * The default maximum number of times a call is retried.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	/**
+	 * The default number of milliseconds to wait, at most, before the first
+	 * retry. This doubles for every retry after that.
+	 */
+	public static final long DEFAULT_BASE_DELAY = 100;
+	/**
+	 * The default maximum number of milliseconds to wait before any retry.
+	 */
+	public static final long DEFAULT_MAX_DELAY = 2 * 1000;
+
+	/**
+	 * The number of response times that must be recorded before hedging
+	 * starts, so that the percentile is meaningful.
+	 */
+	private static final long MIN_HEDGE_SAMPLES = 100;
+
+	/**
+	 * The source of the jitter.
+	 */
+	private static final Random RANDOM = new Random();
+
+	/**
+	 * The response times, in nanoseconds, of the calls to RunKeeper.
+	 */
+	private static final RunKeeperHistogram RESPONSE_TIMES =
+		new RunKeeperHistogram();
+
+	/**
+	 * The number of retries that were made.
+	 */
+	private static final AtomicLong RETRIES = new AtomicLong();
+	/**
+	 * The number of hedged calls that were made.
+	 */
+	private static final AtomicLong HEDGES = new AtomicLong();
+	/**
+	 * The number of hedged calls that responded first.
+	 */
+	private static final AtomicLong HEDGE_WINS = new AtomicLong();
+
+	private static volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private static volatile long baseDelay = DEFAULT_BASE_DELAY;
+	private static volatile long maxDelay = DEFAULT_MAX_DELAY;
+	/**
+	 * The percentile of the response times after which a call is hedged or
+	 * zero if calls are not hedged.
+	 */
+	private static volatile int hedgePercentile = 0;
+
+	/**
+	 * Default constructor made private to prevent instantiation.
+	 */
+	private RunKeeperRetryPolicy() {}
+
+	/**
+	 * Configures the retries.
+	 *
+	 * @param maxRetries The maximum number of times a call is retried. If
+	 * 					 zero, calls are never retried.
+	 *
+	 * @param baseDelay The maximum number of milliseconds to wait before the
+	 * 					first retry.
+	 *
+	 * @param maxDelay The maximum number of milliseconds to wait before any
+	 * 				   retry.
+	 *
+	 * @throws IllegalArgumentException Any of the values is negative.
+	 */
+	public static void configure(
+			final int maxRetries,
+			final long baseDelay,
+			final long maxDelay) {
+
+		if(maxRetries < 0) {
+			throw new IllegalArgumentException(
+				"The maximum number of retries must not be negative.");
+		}
+		if((baseDelay < 0) || (maxDelay < 0)) {
+			throw new IllegalArgumentException(
+				"The delays must not be negative.");
+		}
+
+		RunKeeperRetryPolicy.maxRetries = maxRetries;
+		RunKeeperRetryPolicy.baseDelay = baseDelay;
+		RunKeeperRetryPolicy.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Configures the hedging.
+	 *
+	 * @param percentile The percentile of the response times after which a
+	 * 					 call is hedged, e.g. 95. If zero, calls are not
+	 * 					 hedged.
+	 *
+	 * @throws IllegalArgumentException The percentile is not between 0 and
+	 * 									100.
+	 */
+	public static void configureHedging(final int percentile) {
+		if((percentile < 0) || (percentile > 100)) {
+			throw new IllegalArgumentException(
+				"The percentile must be between 0 and 100.");
+		}
+
+		hedgePercentile = percentile;
+	}
+
+	/**
+	 * Returns whether or not a call that failed with the given status code
+	 * should be retried.
+	 *
+	 * @param statusCode The status code.
+	 *
+	 * @return True if the status code is likely to be transient.
+	 */
+	public static boolean isRetryable(final int statusCode) {
+		switch(statusCode) {
+		case HttpStatus.SC_REQUEST_TIMEOUT:
+		case 429:
+		case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+		case HttpStatus.SC_BAD_GATEWAY:
+		case HttpStatus.SC_SERVICE_UNAVAILABLE:
+		case HttpStatus.SC_GATEWAY_TIMEOUT:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether or not a call that failed with the given exception
+	 * should be retried. Protocol and TLS errors will not go away by
+	 * themselves, but other I/O errors, e.g. a connection that was reset,
+	 * may.
+	 *
+	 * @param e The exception.
+	 *
+	 * @return True if the error is likely to be transient.
+	 */
+	public static boolean isRetryable(final IOException e) {
+		return
+			(! (e instanceof ClientProtocolException)) &&
+			(! (e instanceof SSLException)) &&
+			(! Thread.currentThread().isInterrupted());
+	}
+
+	/**
+	 * Returns whether or not another retry is allowed.
+	 *
+	 * @param retries The number of retries already made.
+	 *
+	 * @return True if another retry may be made.
+	 */
+	public static boolean canRetry(final int retries) {
+		return retries < maxRetries;
+	}
+
+	/**
+	 * Sleeps before a retry for a random time up to the capped,
+	 * exponentially growing delay.
+	 *
+	 * @param retries The number of retries already made.
+	 *
+	 * @param reason A description of why the call is being retried, for the
+	 * 				 log.
+	 *
+	 * @param deadline The call's deadline. If the retry could not be made
+	 * 				   before it, there is no retry.
+	 *
+	 * @throws DomainException The retry could not be made before the
+	 * 						   deadline or the thread was interrupted while
+	 * 						   sleeping.
+	 */
+	public static void backoff(
+			final int retries,
+			final String reason,
+			final RunKeeperDeadline deadline)
+			throws DomainException {
+
+		long cap = Math.min(maxDelay, baseDelay << Math.min(retries, 30));
+		long delay;
+		synchronized(RANDOM) {
+			delay = (long) (RANDOM.nextDouble() * cap);
+		}
+		if(delay >= deadline.remainingMillis()) {
+			throw deadline.expired();
+		}
+
+		RETRIES.incrementAndGet();
+		LOGGER
+			.info(
+				"Retrying a RunKeeper call in " + delay + "ms because " +
+					reason + ".");
+
+		try {
+			TimeUnit.MILLISECONDS.sleep(delay);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DomainException(
+				"Interrupted while waiting to retry a RunKeeper call.",
+				e);
+		}
+	}
+
+	/**
+	 * Records how long RunKeeper took to respond to a call.
+	 *
+	 * @param nanos The number of nanoseconds until the response's headers
+	 * 				were received.
+	 */
+	public static void recordResponseTime(final long nanos) {
+		RESPONSE_TIMES.record(nanos);
+	}
+
+	/**
+	 * Returns how long to wait for a response before hedging a call.
+	 *
+	 * @return The number of nanoseconds to wait or -1 if the call should not
+	 * 		   be hedged.
+	 */
+	public static long getHedgeDelay() {
+		int percentile = hedgePercentile;
+		if(	(percentile == 0) ||
+			(RESPONSE_TIMES.getCount() < MIN_HEDGE_SAMPLES)) {
+
+			return -1;
+		}
+
+		return RESPONSE_TIMES.getPercentile(percentile);
+	}
+
+	/**
+	 * Records that a hedged call was made.
+	 */
+	public static void recordHedge() {
+		HEDGES.incrementAndGet();
+	}
+
+	/**
+	 * Records that a hedged call responded before the original call.
+	 */
+	public static void recordHedgeWin() {
+		HEDGE_WINS.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of retries that were made.
+	 *
+	 * @return The number of retries.
+	 */
+	public static long getRetries() {
+		return RETRIES.get();
+	}
+
+	/**
+	 * Returns the number of hedged calls that were made.
+	 *
+	 * @return The number of hedged calls.
+	 */
+	public static long getHedges() {
+		return HEDGES.get();
+	}
+
+	/**
+	 * Returns the number of hedged calls that responded before the original
+	 * calls.
+	 *
+	 * @return The number of hedged calls that won.
+	 */
+	public static long getHedgeWins() {
+		return HEDGE_WINS.get();
+	}
+}
@@ -0,0 +1,260 @@
+package org.ohmage.domain;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * The time a single RunKeeper read spent in each of its phases, measured
+ * with {@link System#nanoTime()}. It is carried by the read's
+ * {@link RunKeeperDeadline deadline}, so every call made for the read, on
+ * any thread, adds to it.
+ * </p>
+ *
+ * <p>
+ * Timing is off for most reads, in which case they use {@link #NONE}, whose
+ * {@link #begin()} does not read the clock and whose
+ * {@link #stop(Phase, long)} returns immediately.
+ * </p>
+ *
+ * <p>
+ * When a read requests several pages in parallel, each phase is the sum of
+ * the time spent in it across all of the pages, so the phases may add up to
+ * more than the read took.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperTiming {
+	/**
+	 * The timing used when the phases are not being timed.
+	 */
+	public static final RunKeeperTiming NONE = new RunKeeperTiming(false);
+
+	/**
+	 * The phases of a read. Each has the name and description it is given in
+	 * a "Server-Timing" header.
+	 *
+	 * @author John Jenkins
+	 */
+	public static enum Phase {
+		/**
+		 * Looking up the user's RunKeeper credentials.
+		 */
+		CREDENTIALS ("cred", "Credential lookup"),
+		/**
+		 * Leasing a pooled connection to RunKeeper and, if necessary,
+		 * connecting it.
+		 */
+		LEASE ("lease", "Connection lease"),
+		/**
+		 * Waiting for RunKeeper's response headers after the request was
+		 * sent.
+		 */
+		UPSTREAM ("ttfb", "Upstream time to first byte"),
+		/**
+		 * Waiting for the body of RunKeeper's response to arrive.
+		 */
+		TRANSFER ("transfer", "Body transfer"),
+		/**
+		 * Decompressing and parsing the body of RunKeeper's response.
+		 */
+		PARSE ("parse", "Parse"),
+		/**
+		 * Merging and filtering records that were already parsed.
+		 */
+		FILTER ("filter", "Filter"),
+		/**
+		 * Writing the records to the response.
+		 */
+		SERIALIZE ("serialize", "Serialize");
+
+		private final String name;
+		private final String description;
+
+		/**
+		 * Creates a phase.
+		 *
+		 * @param name The name of the phase's metric.
+		 *
+		 * @param description The description of the phase's metric.
+		 */
+		private Phase(final String name, final String description) {
+			this.name = name;
+			this.description = description;
+		}
+	}
+
+	private final boolean enabled;
+	private final long created;
+	private final AtomicLongArray nanos;
+
+	/**
+	 * Creates a timing.
+	 *
+	 * @param enabled Whether or not the phases are timed.
+	 */
+	private RunKeeperTiming(final boolean enabled) {
+		this.enabled = enabled;
+		created = enabled ? System.nanoTime() : 0;
+		nanos = enabled ? new AtomicLongArray(Phase.values().length) : null;
+	}
+
+	/**
+	 * Creates a timing for a read that starts now.
+	 *
+	 * @return The new timing.
+	 */
+	public static RunKeeperTiming start() {
+		return new RunKeeperTiming(true);
+	}
+
+	/**
+	 * Returns whether or not the phases are being timed.
+	 *
+	 * @return True if the phases are being timed.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts timing a phase.
+	 *
+	 * @return The current {@link System#nanoTime()} or zero if the phases
+	 * 		   are not being timed.
+	 */
+	public long begin() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Finishes timing a phase.
+	 *
+	 * @param phase The phase.
+	 *
+	 * @param start The value returned by {@link #begin()} when the phase
+	 * 				started.
+	 */
+	public void stop(final Phase phase, final long start) {
+		if(enabled) {
+			nanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Finishes timing a phase that ran while another phase was being timed,
+	 * e.g. writing a record while a response's body was open, and takes its
+	 * time back out of the other phase so that it is not counted twice.
+	 *
+	 * @param phase The phase.
+	 *
+	 * @param outer The phase that was being timed around it.
+	 *
+	 * @param start The value returned by {@link #begin()} when the phase
+	 * 				started.
+	 */
+	public void stopWithin(
+			final Phase phase,
+			final Phase outer,
+			final long start) {
+
+		if(enabled) {
+			long duration = System.nanoTime() - start;
+			nanos.addAndGet(phase.ordinal(), duration);
+			nanos.addAndGet(outer.ordinal(), -duration);
+		}
+	}
+
+	/**
+	 * Adds time that was measured elsewhere to a phase.
+	 *
+	 * @param phase The phase.
+	 *
+	 * @param duration The number of nanoseconds.
+	 */
+	public void add(final Phase phase, final long duration) {
+		if(enabled) {
+			nanos.addAndGet(phase.ordinal(), duration);
+		}
+	}
+
+	/**
+	 * Returns the time spent in all of the phases so far.
+	 *
+	 * @return The number of nanoseconds or zero if the phases are not being
+	 * 		   timed.
+	 */
+	public long getTotalNanos() {
+		if(! enabled) {
+			return 0;
+		}
+
+		long total = 0;
+		for(int i = 0; i < nanos.length(); i++) {
+			total += nanos.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Renders the phases in the syntax of a "Server-Timing" header, followed
+	 * by the total time since this timing was started, e.g.:
+	 *
+	 * <pre>
+	 * cred;desc="Credential lookup";dur=0.42, ..., total;dur=120.5
+	 * </pre>
+	 *
+	 * @return The header's value or null if the phases are not being timed.
+	 */
+	public String toServerTiming() {
+		if(! enabled) {
+			return null;
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for(Phase phase : Phase.values()) {
+			appendMetric(
+				builder,
+				phase.name,
+				phase.description,
+				nanos.get(phase.ordinal()));
+			builder.append(", ");
+		}
+		appendMetric(builder, "total", null, System.nanoTime() - created);
+
+		return builder.toString();
+	}
+
+	/**
+	 * Appends a single metric in the syntax of a "Server-Timing" header.
+	 *
+	 * @param builder The builder to append to.
+	 *
+	 * @param name The metric's name.
+	 *
+	 * @param description The metric's description or null.
+	 *
+	 * @param duration The metric's duration in nanoseconds.
+	 */
+	private static void appendMetric(
+			final StringBuilder builder,
+			final String name,
+			final String description,
+			final long duration) {
+
+		builder.append(name);
+		if(description != null) {
+			builder.append(";desc=\"").append(description).append('"');
+		}
+
+		// Round to the nearest hundredth of a millisecond. A phase that was
+		// adjusted for a nested one can come out slightly negative.
+		long hundredths = (Math.max(0, duration) + 5000) / 10000;
+		builder
+			.append(";dur=")
+			.append(hundredths / 100)
+			.append('.')
+			.append((char) ('0' + ((hundredths / 10) % 10)))
+			.append((char) ('0' + (hundredths % 10)));
+	}
+}
@@ -0,0 +1,94 @@
+package org.ohmage.domain;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Counts the bytes of the responses from one RunKeeper API, both as they
+ * were received from RunKeeper and after they were decompressed, so that
+ * the savings from compression can be seen. For responses that were not
+ * compressed, both counts are the same.
+ * </p>
+ *
+ * <p>
+ * Only the bytes that were read are counted. If a response is discarded
+ * before it is read to its end, the rest of it is not counted.
+ * </p>
+ *
+ * @author John Jenkins
+ */
+public final class RunKeeperTransferStats {
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong compressedResponses = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong decompressedBytes = new AtomicLong();
+
+	/**
+	 * Creates an empty set of counters.
+	 */
+	public RunKeeperTransferStats() {
+		// Do nothing.
+	}
+
+	/**
+	 * Records a finished response.
+	 *
+	 * @param compressed Whether or not the response was compressed.
+	 *
+	 * @param received The number of bytes that were read from the
+	 * 				   connection.
+	 *
+	 * @param decoded The number of bytes that were read after they were
+	 * 				  decompressed.
+	 */
+	void record(
+			final boolean compressed,
+			final long received,
+			final long decoded) {
+
+		responses.incrementAndGet();
+		if(compressed) {
+			compressedResponses.incrementAndGet();
+		}
+		compressedBytes.addAndGet(received);
+		decompressedBytes.addAndGet(decoded);
+	}
+
+	/**
+	 * Returns the number of responses that were received.
+	 *
+	 * @return The number of responses.
+	 */
+	public long getResponses() {
+		return responses.get();
+	}
+
+	/**
+	 * Returns the number of responses that were compressed.
+	 *
+	 * @return The number of compressed responses.
+	 */
+	public long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * Returns the number of bytes that were received from RunKeeper, which
+	 * were compressed if RunKeeper compressed them.
+	 *
+	 * @return The number of bytes received.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes that were parsed, after they were
+	 * decompressed.
+	 *
+	 * @return The number of bytes parsed.
+	 */
+	public long getDecompressedBytes() {
+		return decompressedBytes.get();
+	}
+}
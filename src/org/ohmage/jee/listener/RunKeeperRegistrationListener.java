@@ -1,20 +1,349 @@
 package org.ohmage.jee.listener;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import org.apache.log4j.Logger;
+import org.ohmage.cache.OmhCredentialCache;
 import org.ohmage.cache.OmhThirdPartyRegistration;
+import org.ohmage.domain.RunKeeperCircuitBreaker;
+import org.ohmage.domain.RunKeeperExecutor;
+import org.ohmage.domain.RunKeeperHttpClient;
+import org.ohmage.domain.RunKeeperMetrics;
 import org.ohmage.domain.RunKeeperPayloadId;
+import org.ohmage.domain.RunKeeperPayloadId.FitnessActivitiesApi;
+import org.ohmage.domain.RunKeeperPayloadId.ProfileApi;
+import org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi;
 import org.ohmage.domain.RunKeeperPayloadIdBuilder;
+import org.ohmage.domain.RunKeeperRateLimiter;
+import org.ohmage.domain.RunKeeperReadCoalescer;
+import org.ohmage.domain.RunKeeperRetryPolicy;
+import org.ohmage.domain.RunKeeperResponse;
+import org.ohmage.exception.DomainException;
+import org.ohmage.request.omh.OmhReadRunKeeperRequest;
 
 /**
  * <p>
- * Registers the RunKeeper payload IDs.
+ * Registers the RunKeeper payload IDs and manages the lifecycle of the
+ * resources that are shared by all RunKeeper requests.
+ * </p>
+ *
+ * <p>
+ * The shared resources may be tuned with the following context parameters:
  * </p>
+ * <ul>
+ * <li>{@value #PARAM_MAX_TOTAL_CONNECTIONS}</li>
+ * <li>{@value #PARAM_MAX_CONNECTIONS_PER_ROUTE}</li>
+ * <li>{@value #PARAM_IDLE_CONNECTION_TIMEOUT}</li>
+ * <li>{@value #PARAM_DRAIN_THRESHOLD}</li>
+ * <li>{@value #PARAM_LEASE_TIMEOUT}</li>
+ * <li>{@value #PARAM_CONNECT_TIMEOUT}</li>
+ * <li>{@value #PARAM_SOCKET_TIMEOUT}</li>
+ * <li>{@value #PARAM_COMPRESSION}</li>
+ * <li>{@value #PARAM_REQUEST_TIMEOUT}</li>
+ * <li>{@value #PARAM_TIMING_SAMPLE_INTERVAL}</li>
+ * <li>{@value #PARAM_GLOBAL_RATE}</li>
+ * <li>{@value #PARAM_GLOBAL_BURST}</li>
+ * <li>{@value #PARAM_BEARER_RATE}</li>
+ * <li>{@value #PARAM_BEARER_BURST}</li>
+ * <li>{@value #PARAM_MAX_RATE_LIMIT_WAIT}</li>
+ * <li>{@value #PARAM_MAX_RETRIES}</li>
+ * <li>{@value #PARAM_RETRY_BASE_DELAY}</li>
+ * <li>{@value #PARAM_RETRY_MAX_DELAY}</li>
+ * <li>{@value #PARAM_HEDGE_PERCENTILE}</li>
+ * <li>{@value #PARAM_FAILURE_RATE}</li>
+ * <li>{@value #PARAM_SLOW_CALL_DURATION}</li>
+ * <li>{@value #PARAM_SLOW_CALL_RATE}</li>
+ * <li>{@value #PARAM_OPEN_DURATION}</li>
+ * <li>{@value #PARAM_MAX_STALE_RESULTS}</li>
+ * <li>{@value #PARAM_STREAM_FITNESS_ACTIVITIES}</li>
+ * <li>{@value #PARAM_MAX_PAGE_SIZE}</li>
+ * <li>{@value #PARAM_FETCH_FAN_OUT}</li>
+ * <li>{@value #PARAM_MAX_CONCURRENT_FETCHES}</li>
+ * <li>{@value #PARAM_THREAD_MODE}</li>
+ * <li>{@value #PARAM_POOL_SIZE}</li>
+ * <li>{@value #PARAM_MIRROR_FITNESS_ACTIVITIES}</li>
+ * <li>{@value #PARAM_MIRROR_SIZE}</li>
+ * <li>{@value #PARAM_MIRROR_SYNC_INTERVAL}</li>
+ * <li>{@value #PARAM_MIRROR_FULL_SYNC_INTERVAL}</li>
+ * <li>{@value #PARAM_CREDENTIAL_CACHE_SIZE}</li>
+ * <li>{@value #PARAM_CREDENTIAL_CACHE_TTL}</li>
+ * <li>{@value #PARAM_PROFILE_CACHE_SIZE}</li>
+ * <li>{@value #PARAM_PROFILE_CACHE_FRESHNESS}</li>
+ * <li>{@value #PARAM_JMX_METRICS}</li>
+ * </ul>
  *
  * @author John Jenkins
  */
 public class RunKeeperRegistrationListener implements ServletContextListener {
+	private static final Logger LOGGER =
+		Logger.getLogger(RunKeeperRegistrationListener.class);
+	
+	/**
+	 * The largest number of milliseconds that can be converted to 
+	 * nanoseconds without overflowing.
+	 */
+	private static final long MAX_MILLIS = Long.MAX_VALUE / (1000 * 1000);
+
+	/**
+	 * The context parameter for the maximum number of pooled connections to
+	 * RunKeeper.
+	 */
+	public static final String PARAM_MAX_TOTAL_CONNECTIONS =
+		"runkeeper.http.max_total_connections";
+	/**
+	 * The context parameter for the maximum number of pooled connections per
+	 * route to RunKeeper.
+	 */
+	public static final String PARAM_MAX_CONNECTIONS_PER_ROUTE =
+		"runkeeper.http.max_connections_per_route";
+	/**
+	 * The context parameter for the number of milliseconds a pooled 
+	 * connection may be idle before it is closed.
+	 */
+	public static final String PARAM_IDLE_CONNECTION_TIMEOUT =
+		"runkeeper.http.idle_connection_timeout";
+	/**
+	 * The context parameter for the most unread bytes of a response that
+	 * will be drained to reuse its connection rather than discarding it.
+	 */
+	public static final String PARAM_DRAIN_THRESHOLD =
+		"runkeeper.http.drain_threshold";
+	/**
+	 * The context parameter for the most milliseconds to wait to lease a
+	 * pooled connection to RunKeeper.
+	 */
+	public static final String PARAM_LEASE_TIMEOUT =
+		"runkeeper.http.lease_timeout";
+	/**
+	 * The context parameter for the most milliseconds to wait to connect to
+	 * RunKeeper.
+	 */
+	public static final String PARAM_CONNECT_TIMEOUT =
+		"runkeeper.http.connect_timeout";
+	/**
+	 * The context parameter for the most milliseconds to wait for each read
+	 * from a connection to RunKeeper.
+	 */
+	public static final String PARAM_SOCKET_TIMEOUT =
+		"runkeeper.http.socket_timeout";
+	/**
+	 * The context parameter for whether or not RunKeeper is asked to 
+	 * compress its responses.
+	 */
+	public static final String PARAM_COMPRESSION =
+		"runkeeper.http.compression";
+	/**
+	 * The context parameter for the number of milliseconds each OMH read 
+	 * has to read its data from RunKeeper. If zero, there is no limit.
+	 */
+	public static final String PARAM_REQUEST_TIMEOUT =
+		"runkeeper.request_timeout";
+	/**
+	 * The context parameter for how often OMH reads have the time spent in
+	 * each of their phases measured and logged. One in this many reads is
+	 * timed. If zero, reads are only timed while debug logging is enabled.
+	 */
+	public static final String PARAM_TIMING_SAMPLE_INTERVAL =
+		"runkeeper.timing.sample_interval";
+	/**
+	 * The context parameter for the number of calls per minute that may be
+	 * made to RunKeeper across all users. If not positive, there is no 
+	 * limit.
+	 */
+	public static final String PARAM_GLOBAL_RATE =
+		"runkeeper.rate_limit.global_rate";
+	/**
+	 * The context parameter for the number of calls that may be made to
+	 * RunKeeper at once across all users after a quiet period.
+	 */
+	public static final String PARAM_GLOBAL_BURST =
+		"runkeeper.rate_limit.global_burst";
+	/**
+	 * The context parameter for the number of calls per minute that may be
+	 * made to RunKeeper for a single user. If not positive, there is no 
+	 * limit.
+	 */
+	public static final String PARAM_BEARER_RATE =
+		"runkeeper.rate_limit.bearer_rate";
+	/**
+	 * The context parameter for the number of calls that may be made to
+	 * RunKeeper at once for a single user after a quiet period.
+	 */
+	public static final String PARAM_BEARER_BURST =
+		"runkeeper.rate_limit.bearer_burst";
+	/**
+	 * The context parameter for the maximum number of milliseconds a call
+	 * will wait for its turn before it fails.
+	 */
+	public static final String PARAM_MAX_RATE_LIMIT_WAIT =
+		"runkeeper.rate_limit.max_wait";
+	/**
+	 * The context parameter for the maximum number of times a call to
+	 * RunKeeper that failed with a transient error is retried.
+	 */
+	public static final String PARAM_MAX_RETRIES =
+		"runkeeper.retry.max_retries";
+	/**
+	 * The context parameter for the maximum number of milliseconds to wait
+	 * before the first retry. This doubles for each retry after that.
+	 */
+	public static final String PARAM_RETRY_BASE_DELAY =
+		"runkeeper.retry.base_delay";
+	/**
+	 * The context parameter for the maximum number of milliseconds to wait
+	 * before any retry.
+	 */
+	public static final String PARAM_RETRY_MAX_DELAY =
+		"runkeeper.retry.max_delay";
+	/**
+	 * The context parameter for the percentile of RunKeeper's response times
+	 * after which a second, identical call is made. If zero, calls are not
+	 * hedged.
+	 */
+	public static final String PARAM_HEDGE_PERCENTILE =
+		"runkeeper.retry.hedge_percentile";
+	/**
+	 * The context parameter for the percentage of recent calls to RunKeeper
+	 * that must fail before calls are rejected. If zero, failures never
+	 * cause calls to be rejected.
+	 */
+	public static final String PARAM_FAILURE_RATE =
+		"runkeeper.circuit_breaker.failure_rate";
+	/**
+	 * The context parameter for the number of milliseconds after which a
+	 * call to RunKeeper is considered slow.
+	 */
+	public static final String PARAM_SLOW_CALL_DURATION =
+		"runkeeper.circuit_breaker.slow_call_duration";
+	/**
+	 * The context parameter for the percentage of recent calls to RunKeeper
+	 * that must be slow before calls are rejected. If zero, slow calls never
+	 * cause calls to be rejected.
+	 */
+	public static final String PARAM_SLOW_CALL_RATE =
+		"runkeeper.circuit_breaker.slow_call_rate";
+	/**
+	 * The context parameter for the number of milliseconds calls are 
+	 * rejected before a few are let through to test whether RunKeeper has
+	 * recovered.
+	 */
+	public static final String PARAM_OPEN_DURATION =
+		"runkeeper.circuit_breaker.open_duration";
+	/**
+	 * The context parameter for the maximum number of reads whose last 
+	 * results are kept to be served, marked as stale, while calls to 
+	 * RunKeeper are being rejected. If zero, no results are kept.
+	 */
+	public static final String PARAM_MAX_STALE_RESULTS =
+		"runkeeper.circuit_breaker.max_stale_results";
+	/**
+	 * The context parameter for whether or not fitness activities are
+	 * streamed from RunKeeper directly to the response.
+	 */
+	public static final String PARAM_STREAM_FITNESS_ACTIVITIES =
+		"runkeeper.fitness_activities.streaming";
+	/**
+	 * The context parameter for the largest page of fitness activities to
+	 * request from RunKeeper.
+	 */
+	public static final String PARAM_MAX_PAGE_SIZE =
+		"runkeeper.fitness_activities.max_page_size";
+	/**
+	 * The context parameter for the number of pages of fitness activities a
+	 * single request may fetch at once.
+	 */
+	public static final String PARAM_FETCH_FAN_OUT =
+		"runkeeper.fitness_activities.fetch_fan_out";
+	/**
+	 * The context parameter for the number of pages of fitness activities
+	 * that may be fetched at once across all requests.
+	 */
+	public static final String PARAM_MAX_CONCURRENT_FETCHES =
+		"runkeeper.fitness_activities.max_concurrent_fetches";
+	/**
+	 * The context parameter for the kind of threads that make RunKeeper
+	 * requests in the background: "auto", "virtual", or "platform".
+	 */
+	public static final String PARAM_THREAD_MODE =
+		"runkeeper.executor.threads";
+	/**
+	 * The context parameter for the number of threads that make RunKeeper
+	 * requests in the background if platform threads are used.
+	 */
+	public static final String PARAM_POOL_SIZE =
+		"runkeeper.executor.pool_size";
+	/**
+	 * The context parameter for whether or not fitness activities are read
+	 * from a local mirror of each user's activities.
+	 */
+	public static final String PARAM_MIRROR_FITNESS_ACTIVITIES =
+		"runkeeper.fitness_activities.mirror";
+	/**
+	 * The context parameter for the maximum number of users whose fitness
+	 * activities are mirrored.
+	 */
+	public static final String PARAM_MIRROR_SIZE =
+		"runkeeper.fitness_activities.mirror_size";
+	/**
+	 * The context parameter for the minimum number of milliseconds between
+	 * synchronizations of a user's mirrored fitness activities.
+	 */
+	public static final String PARAM_MIRROR_SYNC_INTERVAL =
+		"runkeeper.fitness_activities.mirror_sync_interval";
+	/**
+	 * The context parameter for the minimum number of milliseconds between
+	 * synchronizations that read all of a user's mirrored fitness activities
+	 * again. If zero, they are only read in full once.
+	 */
+	public static final String PARAM_MIRROR_FULL_SYNC_INTERVAL =
+		"runkeeper.fitness_activities.mirror_full_sync_interval";
+	/**
+	 * The context parameter for the maximum number of users' credentials to
+	 * cache.
+	 */
+	public static final String PARAM_CREDENTIAL_CACHE_SIZE =
+		"runkeeper.credentials.cache_size";
+	/**
+	 * The context parameter for the number of milliseconds a user's
+	 * credentials are cached.
+	 */
+	public static final String PARAM_CREDENTIAL_CACHE_TTL =
+		"runkeeper.credentials.cache_ttl";
+	/**
+	 * The context parameter for the maximum number of users' profiles to
+	 * cache.
+	 */
+	public static final String PARAM_PROFILE_CACHE_SIZE =
+		"runkeeper.profile.cache_size";
+	/**
+	 * The context parameter for the number of milliseconds a cached profile
+	 * is used before it is revalidated with RunKeeper.
+	 */
+	public static final String PARAM_PROFILE_CACHE_FRESHNESS =
+		"runkeeper.profile.cache_freshness";
+	/**
+	 * The context parameter for whether or not the metrics of each RunKeeper
+	 * API are published over JMX.
+	 */
+	public static final String PARAM_JMX_METRICS =
+		"runkeeper.metrics.jmx";
+	
+	/**
+	 * The names under which the metrics were published, so that they may be
+	 * removed when the context is destroyed.
+	 */
+	private final List<ObjectName> publishedMetrics = 
+		new ArrayList<ObjectName>();
+
 	/**
 	 * Default constructor.
 	 */
@@ -28,6 +357,252 @@ public class RunKeeperRegistrationListener implements ServletContextListener {
 	 */
 	@Override
 	public void contextInitialized(final ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		
+		// Create the shared HTTP client.
+		RunKeeperHttpClient
+			.initialize(
+				getIntParameter(
+					context,
+					PARAM_MAX_TOTAL_CONNECTIONS,
+					RunKeeperHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS),
+				getIntParameter(
+					context,
+					PARAM_MAX_CONNECTIONS_PER_ROUTE,
+					RunKeeperHttpClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+				getMillisParameter(
+					context,
+					PARAM_IDLE_CONNECTION_TIMEOUT,
+					RunKeeperHttpClient.DEFAULT_IDLE_CONNECTION_TIMEOUT,
+					1));
+		RunKeeperHttpClient
+			.configureTimeouts(
+				getMillisParameter(
+					context,
+					PARAM_LEASE_TIMEOUT,
+					RunKeeperHttpClient.DEFAULT_LEASE_TIMEOUT,
+					1),
+				getIntParameter(
+					context,
+					PARAM_CONNECT_TIMEOUT,
+					RunKeeperHttpClient.DEFAULT_CONNECT_TIMEOUT),
+				getIntParameter(
+					context,
+					PARAM_SOCKET_TIMEOUT,
+					RunKeeperHttpClient.DEFAULT_SOCKET_TIMEOUT));
+		RunKeeperHttpClient
+			.setCompression(
+				getBooleanParameter(context, PARAM_COMPRESSION, true));
+		OmhReadRunKeeperRequest
+			.setTimeout(
+				getMillisParameter(
+					context,
+					PARAM_REQUEST_TIMEOUT,
+					OmhReadRunKeeperRequest.DEFAULT_TIMEOUT,
+					0));
+		OmhReadRunKeeperRequest
+			.setTimingSampleInterval(
+				getIntParameter(
+					context,
+					PARAM_TIMING_SAMPLE_INTERVAL,
+					0,
+					0,
+					Integer.MAX_VALUE));
+		RunKeeperResponse
+			.setDrainThreshold(
+				getLongParameter(
+					context,
+					PARAM_DRAIN_THRESHOLD,
+					RunKeeperResponse.DEFAULT_DRAIN_THRESHOLD,
+					0,
+					Long.MAX_VALUE));
+		
+		// Pace the calls to RunKeeper.
+		RunKeeperRateLimiter
+			.configure(
+				getIntParameter(
+					context,
+					PARAM_GLOBAL_RATE,
+					RunKeeperRateLimiter.DEFAULT_GLOBAL_RATE,
+					Integer.MIN_VALUE,
+					Integer.MAX_VALUE),
+				getIntParameter(
+					context,
+					PARAM_GLOBAL_BURST,
+					RunKeeperRateLimiter.DEFAULT_GLOBAL_BURST),
+				getIntParameter(
+					context,
+					PARAM_BEARER_RATE,
+					RunKeeperRateLimiter.DEFAULT_BEARER_RATE,
+					Integer.MIN_VALUE,
+					Integer.MAX_VALUE),
+				getIntParameter(
+					context,
+					PARAM_BEARER_BURST,
+					RunKeeperRateLimiter.DEFAULT_BEARER_BURST),
+				getMillisParameter(
+					context,
+					PARAM_MAX_RATE_LIMIT_WAIT,
+					RunKeeperRateLimiter.DEFAULT_MAX_WAIT,
+					0));
+		
+		// Retry and hedge the calls to RunKeeper.
+		RunKeeperRetryPolicy
+			.configure(
+				getIntParameter(
+					context,
+					PARAM_MAX_RETRIES,
+					RunKeeperRetryPolicy.DEFAULT_MAX_RETRIES,
+					0,
+					Integer.MAX_VALUE),
+				getMillisParameter(
+					context,
+					PARAM_RETRY_BASE_DELAY,
+					RunKeeperRetryPolicy.DEFAULT_BASE_DELAY,
+					0),
+				getMillisParameter(
+					context,
+					PARAM_RETRY_MAX_DELAY,
+					RunKeeperRetryPolicy.DEFAULT_MAX_DELAY,
+					0));
+		RunKeeperRetryPolicy
+			.configureHedging(
+				getIntParameter(context, PARAM_HEDGE_PERCENTILE, 0, 0, 100));
+		
+		// Stop calling RunKeeper while it is unavailable and serve the last
+		// results instead.
+		RunKeeperCircuitBreaker
+			.configure(
+				getIntParameter(
+					context,
+					PARAM_FAILURE_RATE,
+					RunKeeperCircuitBreaker.DEFAULT_FAILURE_RATE,
+					0,
+					100),
+				getMillisParameter(
+					context,
+					PARAM_SLOW_CALL_DURATION,
+					RunKeeperCircuitBreaker.DEFAULT_SLOW_CALL_DURATION,
+					0),
+				getIntParameter(
+					context,
+					PARAM_SLOW_CALL_RATE,
+					RunKeeperCircuitBreaker.DEFAULT_SLOW_CALL_RATE,
+					0,
+					100),
+				getMillisParameter(
+					context,
+					PARAM_OPEN_DURATION,
+					RunKeeperCircuitBreaker.DEFAULT_OPEN_DURATION,
+					0));
+		RunKeeperReadCoalescer
+			.configure(
+				getIntParameter(
+					context,
+					PARAM_MAX_STALE_RESULTS,
+					RunKeeperReadCoalescer.DEFAULT_MAX_STALE_RESULTS,
+					0,
+					Integer.MAX_VALUE));
+		
+		// Create the background executor.
+		RunKeeperExecutor
+			.initialize(
+				getThreadModeParameter(
+					context,
+					PARAM_THREAD_MODE,
+					RunKeeperExecutor.ThreadMode.AUTO),
+				getIntParameter(
+					context,
+					PARAM_POOL_SIZE,
+					RunKeeperExecutor.DEFAULT_POOL_SIZE));
+		
+		// Create the credential cache.
+		OmhCredentialCache
+			.initialize(
+				getIntParameter(
+					context,
+					PARAM_CREDENTIAL_CACHE_SIZE,
+					OmhCredentialCache.DEFAULT_MAX_SIZE),
+				getMillisParameter(
+					context,
+					PARAM_CREDENTIAL_CACHE_TTL,
+					OmhCredentialCache.DEFAULT_TIME_TO_LIVE,
+					1));
+		
+		// Create the profile cache.
+		ProfileApi
+			.configureCache(
+				getIntParameter(
+					context,
+					PARAM_PROFILE_CACHE_SIZE,
+					ProfileApi.DEFAULT_CACHE_SIZE),
+				getMillisParameter(
+					context,
+					PARAM_PROFILE_CACHE_FRESHNESS,
+					0,
+					0));
+		
+		// Choose how fitness activities are read.
+		FitnessActivitiesApi
+			.setStreaming(
+				getBooleanParameter(
+					context,
+					PARAM_STREAM_FITNESS_ACTIVITIES,
+					false));
+		FitnessActivitiesApi
+			.setMaxPageSize(
+				getIntParameter(
+					context,
+					PARAM_MAX_PAGE_SIZE,
+					FitnessActivitiesApi.DEFAULT_MAX_PAGE_SIZE));
+		FitnessActivitiesApi
+			.configureParallelFetch(
+				getIntParameter(
+					context,
+					PARAM_FETCH_FAN_OUT,
+					FitnessActivitiesApi.DEFAULT_FETCH_FAN_OUT),
+				getIntParameter(
+					context,
+					PARAM_MAX_CONCURRENT_FETCHES,
+					FitnessActivitiesApi.DEFAULT_MAX_CONCURRENT_FETCHES));
+		FitnessActivitiesApi
+			.configureMirror(
+				getBooleanParameter(
+					context,
+					PARAM_MIRROR_FITNESS_ACTIVITIES,
+					false),
+				getIntParameter(
+					context,
+					PARAM_MIRROR_SIZE,
+					FitnessActivitiesApi.DEFAULT_MIRROR_SIZE),
+				getMillisParameter(
+					context,
+					PARAM_MIRROR_SYNC_INTERVAL,
+					FitnessActivitiesApi.DEFAULT_MIRROR_SYNC_INTERVAL,
+					0),
+				getMillisParameter(
+					context,
+					PARAM_MIRROR_FULL_SYNC_INTERVAL,
+					FitnessActivitiesApi.DEFAULT_MIRROR_FULL_SYNC_INTERVAL,
+					0));
+		
+		// Render the static registry entries and schemas up front.
+		try {
+			RunKeeperApi.prerender();
+		}
+		catch(DomainException e) {
+			LOGGER
+				.warn(
+					"The RunKeeper definitions could not be rendered, so " +
+						"they will be rendered when they are first read.",
+					e);
+		}
+		
+		// Publish the metrics of each API.
+		if(getBooleanParameter(context, PARAM_JMX_METRICS, true)) {
+			publishMetrics();
+		}
+		
 		// Register the RunKeeper payload ID.
 		OmhThirdPartyRegistration
 			.registerDomain(
@@ -41,6 +616,288 @@ public class RunKeeperRegistrationListener implements ServletContextListener {
 	 */
 	@Override
 	public void contextDestroyed(final ServletContextEvent event) {
-		// Do nothing.
+		// Stop any background requests.
+		RunKeeperExecutor.shutdown();
+		
+		// Close all of the connections to RunKeeper.
+		RunKeeperHttpClient.shutdown();
+		
+		// Forget all of the cached credentials.
+		OmhCredentialCache.instance().clear();
+		
+		// Stop publishing the metrics.
+		unpublishMetrics();
+	}
+	
+	/**
+	 * Registers each API's metrics with the platform's MBean server. If any
+	 * cannot be registered, a warning is logged and the rest are still 
+	 * registered.
+	 */
+	private void publishMetrics() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(RunKeeperMetrics metrics : RunKeeperApi.getAllMetrics()) {
+			try {
+				ObjectName name = metrics.getObjectName();
+				if(server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(metrics, name);
+				publishedMetrics.add(name);
+			}
+			catch(JMException e) {
+				LOGGER
+					.warn(
+						"The metrics could not be published: " +
+							metrics.getPath(),
+						e);
+			}
+		}
+	}
+	
+	/**
+	 * Unregisters the metrics that were published.
+	 */
+	private void unpublishMetrics() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : publishedMetrics) {
+			try {
+				server.unregisterMBean(name);
+			}
+			catch(JMException e) {
+				LOGGER
+					.warn("The metrics could not be unpublished: " + name, e);
+			}
+		}
+		publishedMetrics.clear();
+	}
+	
+	/**
+	 * Reads a boolean context parameter.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing.
+	 * 
+	 * @return The parameter's value or the default value.
+	 */
+	private static boolean getBooleanParameter(
+			final ServletContext context,
+			final String name,
+			final boolean defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		
+		return Boolean.parseBoolean(value.trim());
+	}
+	
+	/**
+	 * Reads a thread mode context parameter.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing or
+	 * 					   invalid.
+	 * 
+	 * @return The parameter's value or the default value.
+	 */
+	private static RunKeeperExecutor.ThreadMode getThreadModeParameter(
+			final ServletContext context,
+			final String name,
+			final RunKeeperExecutor.ThreadMode defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return
+				RunKeeperExecutor.ThreadMode
+					.valueOf(value.trim().toUpperCase());
+		}
+		catch(IllegalArgumentException e) {
+			LOGGER
+				.warn(
+					"The context parameter '" + name + "' is not a known " +
+						"thread mode, so the default will be used: " + value);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Reads an integer context parameter that must be positive.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing or
+	 * 					   invalid.
+	 * 
+	 * @return The parameter's value or the default value.
+	 * 
+	 * @see #getIntParameter(ServletContext, String, int, int, int)
+	 */
+	private static int getIntParameter(
+			final ServletContext context,
+			final String name,
+			final int defaultValue) {
+		
+		return 
+			getIntParameter(
+				context,
+				name,
+				defaultValue,
+				1,
+				Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Reads an integer context parameter. If it is not a number or is 
+	 * outside of the allowed range, a warning is logged and the default is
+	 * used instead.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing or
+	 * 					   invalid.
+	 * 
+	 * @param minimum The smallest allowed value.
+	 * 
+	 * @param maximum The largest allowed value.
+	 * 
+	 * @return The parameter's value or the default value.
+	 */
+	private static int getIntParameter(
+			final ServletContext context,
+			final String name,
+			final int defaultValue,
+			final int minimum,
+			final int maximum) {
+		
+		String value = context.getInitParameter(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		
+		int result;
+		try {
+			result = Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException e) {
+			LOGGER
+				.warn(
+					"The context parameter '" + name + "' is not an " +
+						"integer, so the default will be used: " + value);
+			return defaultValue;
+		}
+		
+		if((result < minimum) || (result > maximum)) {
+			LOGGER
+				.warn(
+					"The context parameter '" + name + "' must be between " +
+						minimum + " and " + maximum + ", so the default " +
+						"will be used: " + value);
+			return defaultValue;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reads a context parameter that is a number of milliseconds. The 
+	 * largest allowed value is the largest that can be converted to 
+	 * nanoseconds.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing or
+	 * 					   invalid.
+	 * 
+	 * @param minimum The smallest allowed value.
+	 * 
+	 * @return The parameter's value or the default value.
+	 * 
+	 * @see #getLongParameter(ServletContext, String, long, long, long)
+	 */
+	private static long getMillisParameter(
+			final ServletContext context,
+			final String name,
+			final long defaultValue,
+			final long minimum) {
+		
+		return
+			getLongParameter(
+				context,
+				name,
+				defaultValue,
+				minimum,
+				MAX_MILLIS);
+	}
+	
+	/**
+	 * Reads a long context parameter. If it is not a number or is outside of
+	 * the allowed range, a warning is logged and the default is used 
+	 * instead.
+	 * 
+	 * @param context The servlet context.
+	 * 
+	 * @param name The name of the parameter.
+	 * 
+	 * @param defaultValue The value to use if the parameter is missing or
+	 * 					   invalid.
+	 * 
+	 * @param minimum The smallest allowed value.
+	 * 
+	 * @param maximum The largest allowed value.
+	 * 
+	 * @return The parameter's value or the default value.
+	 */
+	private static long getLongParameter(
+			final ServletContext context,
+			final String name,
+			final long defaultValue,
+			final long minimum,
+			final long maximum) {
+		
+		String value = context.getInitParameter(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		
+		long result;
+		try {
+			result = Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e) {
+			LOGGER
+				.warn(
+					"The context parameter '" + name + "' is not a number, " +
+						"so the default will be used: " + value);
+			return defaultValue;
+		}
+		
+		if((result < minimum) || (result > maximum)) {
+			LOGGER
+				.warn(
+					"The context parameter '" + name + "' must be between " +
+						minimum + " and " + maximum + ", so the default " +
+						"will be used: " + value);
+			return defaultValue;
+		}
+		
+		return result;
 	}
 }
\ No newline at end of file
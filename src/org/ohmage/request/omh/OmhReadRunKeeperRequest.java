@@ -2,6 +2,7 @@ package org.ohmage.request.omh;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,17 +13,32 @@ import org.codehaus.jackson.JsonGenerator;
 import org.joda.time.DateTime;
 import org.json.JSONObject;
 import org.ohmage.annotator.Annotator.ErrorCode;
+import org.ohmage.cache.OmhCredentialCache;
 import org.ohmage.domain.RunKeeperPayloadId;
+import org.ohmage.domain.RunKeeperDeadline;
+import org.ohmage.domain.RunKeeperMetrics;
 import org.ohmage.domain.RunKeeperPayloadId.RunKeeperApi;
+import org.ohmage.domain.RunKeeperPayloadId.RunKeeperResult;
+import org.ohmage.domain.RunKeeperReadCoalescer;
+import org.ohmage.domain.RunKeeperTiming;
 import org.ohmage.exception.DomainException;
 import org.ohmage.exception.InvalidRequestException;
 import org.ohmage.exception.ServiceException;
 import org.ohmage.request.UserRequest;
 import org.ohmage.request.observer.StreamReadRequest.ColumnNode;
-import org.ohmage.service.OmhServices;
 
 /**
+ * <p>
  * This is an Open mHealth-compliant read for RunKeeper data.
+ * </p>
+ * 
+ * <p>
+ * If debug logging is enabled for this class or the read is 
+ * {@link #setTimingSampleInterval(int) sampled}, the time spent in each 
+ * phase of the read is measured. Once the read has responded, the complete
+ * breakdown is logged and is available, in the syntax of a "Server-Timing"
+ * header, from {@link #getServerTiming()}.
+ * </p>
  *
  * @author John Jenkins
  */
@@ -32,8 +48,42 @@ public class OmhReadRunKeeperRequest
 	
 	private static final Logger LOGGER = 
 		Logger.getLogger(OmhReadRunKeeperRequest.class);
+	
+	/**
+	 * The default number of milliseconds a request has, from when it is 
+	 * created, to read its data from RunKeeper.
+	 */
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+	
+	/**
+	 * The number of milliseconds a request has to read its data from 
+	 * RunKeeper or zero if there is no limit.
+	 */
+	private static volatile long timeout = DEFAULT_TIMEOUT;
+	
+	/**
+	 * One in this many reads has its phases timed or zero if only reads made
+	 * while debug logging is enabled are timed.
+	 */
+	private static volatile int timingSampleInterval = 0;
+	/**
+	 * The number of reads that have been created, used to choose which of 
+	 * them are sampled.
+	 */
+	private static final AtomicLong NUM_READS = new AtomicLong();
 
 	private final RunKeeperApi api;
+	/**
+	 * The deadline by which this request must have read its data. Every 
+	 * call to RunKeeper made for this request gives up once it passes.
+	 */
+	private final RunKeeperDeadline deadline;
+	/**
+	 * The results that are used to respond. These are either this request's
+	 * own results or, if an identical read was already in flight, that
+	 * read's results. This is null until the request has been serviced.
+	 */
+	private RunKeeperResult result = null;
 	
 	/**
 	 * Creates a request to read a RunKeeper API.
@@ -102,6 +152,76 @@ public class OmhReadRunKeeperRequest
 			nullApi.logException(LOGGER);
 		}
 		this.api = api;
+		
+		// Start the clock as soon as the request is created, so that any 
+		// time spent before it is serviced counts against it.
+		long currTimeout = timeout;
+		RunKeeperDeadline currDeadline =
+			(currTimeout == 0) ?
+				RunKeeperDeadline.NONE :
+				RunKeeperDeadline.after(currTimeout);
+		
+		// Decide whether or not to time this read's phases.
+		int currInterval = timingSampleInterval;
+		if(	LOGGER.isDebugEnabled() ||
+			(	(currInterval > 0) &&
+				(NUM_READS.getAndIncrement() % currInterval == 0))) {
+			
+			currDeadline = currDeadline.withTiming(RunKeeperTiming.start());
+		}
+		deadline = currDeadline;
+	}
+	
+	/**
+	 * Sets how long each request has to read its data from RunKeeper. This
+	 * applies to requests created after this call. If the time runs out 
+	 * partway through a read that spans multiple pages, the pages that were
+	 * read are returned; otherwise, the request fails.
+	 * 
+	 * @param timeout The number of milliseconds from when a request is 
+	 * 				  created. If zero, there is no limit.
+	 * 
+	 * @throws IllegalArgumentException The timeout is negative.
+	 */
+	public static void setTimeout(final long timeout) {
+		if(timeout < 0) {
+			throw new IllegalArgumentException(
+				"The timeout must not be negative.");
+		}
+		
+		OmhReadRunKeeperRequest.timeout = timeout;
+	}
+	
+	/**
+	 * Sets how often reads have their phases timed, in addition to every 
+	 * read made while debug logging is enabled. This applies to requests 
+	 * created after this call.
+	 * 
+	 * @param interval One in this many reads is timed. If zero, reads are 
+	 * 				   only timed while debug logging is enabled.
+	 * 
+	 * @throws IllegalArgumentException The interval is negative.
+	 */
+	public static void setTimingSampleInterval(final int interval) {
+		if(interval < 0) {
+			throw new IllegalArgumentException(
+				"The interval must not be negative.");
+		}
+		
+		timingSampleInterval = interval;
+	}
+	
+	/**
+	 * Returns the time this read spent in each of its phases in the syntax 
+	 * of a "Server-Timing" header. The breakdown is only complete once this
+	 * request has responded, so a caller that streams the data points 
+	 * should emit it once, after they have all been written, e.g. as a 
+	 * trailer or in the response's metadata.
+	 * 
+	 * @return The header's value or null if this read is not being timed.
+	 */
+	public String getServerTiming() {
+		return deadline.getTiming().toServerTiming();
 	}
 	
 	/*
@@ -136,12 +256,17 @@ public class OmhReadRunKeeperRequest
 			// Get the authentication information from the database.
 			LOGGER
 				.info("Getting the authentication credentials for RunKeeper.");
-			Map<String, String> runKeeperCredentials =
-				OmhServices
-					.instance().getCredentials(RunKeeperPayloadId.DOMAIN_ID);
-			
-			// Retrieve the bearer's credentials for this user.
-			String bearer = runKeeperCredentials.get("bearer_" + owner);
+			String credentialName = "bearer_" + owner;
+			long lookupStart = System.nanoTime();
+			String bearer =
+				OmhCredentialCache
+					.instance()
+					.get(RunKeeperPayloadId.DOMAIN_ID, credentialName);
+			long lookupTime = System.nanoTime() - lookupStart;
+			api.getMetrics().recordCredentialLookupTime(lookupTime);
+			deadline
+				.getTiming()
+				.add(RunKeeperTiming.Phase.CREDENTIALS, lookupTime);
 			if(bearer == null) {
 				// If the user is not linked, we treat it as if they have no
 				// data.
@@ -157,14 +282,28 @@ public class OmhReadRunKeeperRequest
 					.info(
 						"Calling the RunKeeper API: " +
 							api.getUri().toString());
-				api.service(
-					bearer, 
-					startDate, 
-					endDate, 
-					numToSkip, 
-					numToReturn);
+				result =
+					RunKeeperReadCoalescer
+						.service(
+							owner,
+							api,
+							bearer, 
+							startDate, 
+							endDate, 
+							numToSkip, 
+							numToReturn,
+							deadline);
 			}
 			catch(DomainException e) {
+				// If RunKeeper rejected the token, don't keep using it.
+				if(RunKeeperApi.isUnauthorized(e)) {
+					OmhCredentialCache
+						.instance()
+						.invalidate(
+							RunKeeperPayloadId.DOMAIN_ID,
+							credentialName);
+				}
+				
 				throw new ServiceException("Could not retrieve the data.", e);
 			}
 		}
@@ -180,7 +319,7 @@ public class OmhReadRunKeeperRequest
 	 */
 	@Override
 	public long getNumDataPoints() {
-		return api.getNumDataPoints();
+		return (result == null) ? 0 : result.getNumDataPoints();
 	}
 
 	/*
@@ -195,8 +334,35 @@ public class OmhReadRunKeeperRequest
 		
 		LOGGER.info("Responding to an OMH read request for RunKeeper data.");
 		
-		// We call through to the API to respond.
-		api.respond(generator, columns);
+		// If the request was never serviced, e.g. because the user's account
+		// is not linked, there is no data. Otherwise, we call through to the
+		// results to respond.
+		RunKeeperTiming timing = deadline.getTiming();
+		if(result != null) {
+			long timed = timing.getTotalNanos();
+			long start = System.nanoTime();
+			result.respond(generator, columns);
+			long respondTime = System.nanoTime() - start;
+			
+			RunKeeperMetrics metrics = api.getMetrics();
+			metrics.recordRespondTime(respondTime);
+			metrics.recordReturned(result.getNumDataPoints());
+			
+			// Streamed results read from RunKeeper while they respond, so 
+			// only the time that was not already attributed to a phase is 
+			// spent serializing.
+			timing
+				.add(
+					RunKeeperTiming.Phase.SERIALIZE,
+					respondTime - (timing.getTotalNanos() - timed));
+		}
+		
+		if(timing.isEnabled()) {
+			LOGGER
+				.info(
+					"Server-Timing for " + api.getPath() + ": " +
+						getServerTiming());
+		}
 	}
 
 	/*
@@ -209,6 +375,12 @@ public class OmhReadRunKeeperRequest
 			final HttpServletResponse httpResponse) {
 		
 		if(isFailed()) {
+			// Release anything the results are holding for a response that 
+			// will never be written.
+			if(result != null) {
+				result.release();
+			}
+			
 			super.respond(httpRequest, httpResponse, (JSONObject) null);
 		}
 		else {